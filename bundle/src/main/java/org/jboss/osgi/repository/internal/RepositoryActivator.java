@@ -28,12 +28,15 @@ import java.util.Hashtable;
 import java.util.List;
 
 import org.jboss.osgi.repository.RepositoryStorage;
+import org.jboss.osgi.repository.RepositoryStorageException;
 import org.jboss.osgi.repository.RepositoryStorageFactory;
 import org.jboss.osgi.repository.ResourceInstaller;
 import org.jboss.osgi.repository.XPersistentRepository;
 import org.jboss.osgi.repository.XRepository;
 import org.jboss.osgi.repository.spi.AbstractPersistentRepository;
 import org.jboss.osgi.repository.spi.AbstractResourceInstaller;
+import org.jboss.osgi.repository.spi.BackgroundRepositoryStorage;
+import org.jboss.osgi.repository.spi.DiskRepositoryStorage;
 import org.jboss.osgi.repository.spi.FileBasedRepositoryStorage;
 import org.jboss.osgi.repository.spi.MavenIdentityRepository;
 import org.jboss.osgi.repository.spi.MavenIdentityRepository.ConfigurationPropertyProvider;
@@ -51,7 +54,13 @@ import org.osgi.service.repository.Repository;
  */
 public class RepositoryActivator implements BundleActivator {
 
+    // The default time in milliseconds that queries wait for a storage that is loaded in the background
+    private static final long DEFAULT_LOAD_TIMEOUT = 10000;
+    // The storage type that keeps the resources on disk
+    private static final String STORAGE_TYPE_DISK = "disk";
+
     private List<ServiceRegistration<?>> registrations = new ArrayList<ServiceRegistration<?>>();
+    private XPersistentRepository repository;
 
     @Override
     public void start(final BundleContext context) throws Exception {
@@ -66,16 +75,32 @@ public class RepositoryActivator implements BundleActivator {
         };
 
         // Create the {@link RepositoryStorageFactory}
-        final RepositoryStorageFactory factory = new RepositoryStorageFactory() {
+        final boolean diskStorage = STORAGE_TYPE_DISK.equals(propProvider.getProperty(XRepository.PROPERTY_REPOSITORY_STORAGE_TYPE, null));
+        final RepositoryStorageFactory fileFactory = new RepositoryStorageFactory() {
             @Override
             public RepositoryStorage create(XRepository repository) {
                 File storageDir = getRepositoryStorageDir(propProvider, context);
+                if (diskStorage) {
+                    return new DiskRepositoryStorage(repository, storageDir, propProvider);
+                }
                 return new FileBasedRepositoryStorage(repository, storageDir, propProvider);
             }
         };
 
+        // Load the storage in the background, the services are registered right away
+        RepositoryStorageFactory factory = fileFactory;
+        if (Boolean.parseBoolean(propProvider.getProperty(XRepository.PROPERTY_REPOSITORY_STORAGE_ASYNC, null))) {
+            final long loadTimeout = getLoadTimeout(propProvider);
+            factory = new RepositoryStorageFactory() {
+                @Override
+                public RepositoryStorage create(XRepository repository) {
+                    return new BackgroundRepositoryStorage(repository, fileFactory, loadTimeout);
+                }
+            };
+        }
+
         // Setup the repositories
-        XPersistentRepository repository = new AbstractPersistentRepository(factory);
+        repository = new AbstractPersistentRepository(factory);
         repository.addRepositoryDelegate(new MavenIdentityRepository(propProvider));
 
         // Register the {@link XRepository} service
@@ -94,6 +119,36 @@ public class RepositoryActivator implements BundleActivator {
         for (ServiceRegistration<?> reg : registrations) {
             reg.unregister();
         }
+        // Write pending modifications of the storage
+        RepositoryStorage storage = repository != null ? repository.adapt(RepositoryStorage.class) : null;
+        if (storage instanceof BackgroundRepositoryStorage) {
+            try {
+                storage = ((BackgroundRepositoryStorage) storage).awaitStorage();
+            } catch (RepositoryStorageException ex) {
+                storage = null;
+            }
+        }
+        if (storage instanceof FileBasedRepositoryStorage) {
+            ((FileBasedRepositoryStorage) storage).close();
+        }
+        if (storage instanceof DiskRepositoryStorage) {
+            ((DiskRepositoryStorage) storage).close();
+        }
+    }
+
+    private long getLoadTimeout(ConfigurationPropertyProvider propProvider) {
+        String key = XRepository.PROPERTY_REPOSITORY_STORAGE_LOAD_TIMEOUT;
+        String value = propProvider.getProperty(key, null);
+        if (value == null)
+            return DEFAULT_LOAD_TIMEOUT;
+        try {
+            long result = Long.parseLong(value.trim());
+            if (result < 0)
+                throw MESSAGES.invalidPropertyValue(key, value);
+            return result;
+        } catch (NumberFormatException ex) {
+            throw MESSAGES.invalidPropertyValue(key, value);
+        }
     }
 
     private File getRepositoryStorageDir(ConfigurationPropertyProvider propProvider, BundleContext context) {
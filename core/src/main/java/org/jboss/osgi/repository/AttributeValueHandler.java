@@ -23,6 +23,8 @@ import static org.jboss.osgi.repository.RepositoryMessages.MESSAGES;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.jboss.osgi.repository.Namespace100.Type;
 import org.osgi.framework.Version;
@@ -35,6 +37,9 @@ import org.osgi.framework.Version;
  */
 public final class AttributeValueHandler {
 
+    // The attribute type of every value class that was written so far
+    private static final ConcurrentMap<Class<?>, Type> valueTypes = new ConcurrentHashMap<Class<?>, Type>();
+
     /**
      * Read attribute values according to
      * 132.5.6 Attribute Element
@@ -103,6 +108,49 @@ public final class AttributeValueHandler {
         return new AttributeValue(type, value);
     }
 
+    /**
+     * Get the attribute type of the given value class
+     *
+     * @throws IllegalArgumentException If the class is not a supported attribute type
+     */
+    static Type getValueType(Class<?> valueClass) {
+        Type type = valueTypes.get(valueClass);
+        if (type == null) {
+            type = Type.valueOf(valueClass.getSimpleName());
+            valueTypes.put(valueClass, type);
+        }
+        return type;
+    }
+
+    /**
+     * Escape the backslashes and commas in a string value, so that it can be part of a list.
+     *
+     * @return The given value if there is nothing to escape
+     */
+    static String escapeValue(String valstr) {
+        int length = valstr.length();
+        int index = 0;
+        while (index < length) {
+            char ch = valstr.charAt(index);
+            if (ch == '\\' || ch == ',')
+                break;
+            index++;
+        }
+        if (index == length)
+            return valstr;
+
+        StringBuilder result = new StringBuilder(length + 8);
+        result.append(valstr, 0, index);
+        for (int i = index; i < length; i++) {
+            char ch = valstr.charAt(i);
+            if (ch == '\\' || ch == ',') {
+                result.append('\\');
+            }
+            result.append(ch);
+        }
+        return result.toString();
+    }
+
     private static List<String> split(String valstr) {
         boolean escape = false;
         StringBuffer tok = new StringBuffer();
@@ -157,7 +205,7 @@ public final class AttributeValueHandler {
                     valueType = String.class;
                 }
             }
-            Type type = Type.valueOf(valueType.getSimpleName());
+            Type type = getValueType(valueType);
             return new AttributeValue(type, value);
         }
 
@@ -181,35 +229,22 @@ public final class AttributeValueHandler {
         }
 
         public String getValueString() {
-            StringBuffer result = new StringBuffer();
-            if (listType) {
-                for (Object val : (List<?>) value) {
-                    if (result.length() > 0) {
-                        result.append(", ");
-                    }
-                    result.append(escape(val));
+            if (!listType)
+                return escape(value);
+
+            StringBuilder result = new StringBuilder();
+            for (Object val : (List<?>) value) {
+                if (result.length() > 0) {
+                    result.append(", ");
                 }
-            } else {
-                result.append(escape(value));
+                result.append(escape(val));
             }
             return result.toString();
         }
 
         private String escape(Object val) {
             String valstr = val.toString();
-            if (type != Type.String)
-                return valstr;
-            
-            StringBuffer result = new StringBuffer();
-            for (int i = 0; i < valstr.length(); i++) {
-                char ch = valstr.charAt(i);
-                if (ch == '\\' || ch == ',') {
-                    result.append("\\" + ch);
-                } else {
-                    result.append(ch);
-                }
-            }
-            return result.toString();
+            return type != Type.String ? valstr : escapeValue(valstr);
         }
 
         public boolean isListType() {
@@ -40,6 +40,7 @@ public interface Namespace100 {
         NAME("name"),
         NAMESPACE("namespace"),
         INCREMENT("increment"),
+        SINCE("since"),
         VALUE("value"),
         TYPE("type"),
         ;
@@ -82,6 +83,7 @@ public interface Namespace100 {
         REQUIREMENT("requirement"),
         REPOSITORY("repository"),
         RESOURCE("resource"),
+        TOMBSTONE("tombstone"),
         ;
 
         private final String name;
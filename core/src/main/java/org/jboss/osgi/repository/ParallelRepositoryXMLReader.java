@@ -0,0 +1,527 @@
+/*
+ * #%L
+ * JBossOSGi Repository
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.jboss.osgi.repository;
+
+import static org.jboss.osgi.repository.RepositoryMessages.MESSAGES;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+import org.jboss.osgi.repository.spi.AttributeInterner;
+import org.jboss.osgi.resolver.XResource;
+
+/**
+ * Read repository content from XML on multiple threads.
+ *
+ * The document is split into chunks of complete resource elements while it is read.
+ * Every chunk is parsed by a {@link RepositoryXMLReader} on a {@link ForkJoinPool},
+ * in a document that consists of the prolog and the repository element of the original
+ * document. Only a few chunks are read ahead of the resource that is returned, so the
+ * whole document is never held in memory.
+ *
+ * The document must be encoded in UTF-8 or another ASCII compatible encoding.
+ * Entities that are declared in a DOCTYPE are not supported.
+ *
+ * @author agent@local
+ * @since 18-Oct-2026
+ */
+public class ParallelRepositoryXMLReader implements RepositoryReader {
+
+    // The size of the resource elements that are parsed in one task
+    private static final int CHUNK_SIZE = 512 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String RESOURCE_ELEMENT = Namespace100.Element.RESOURCE.getLocalName();
+
+    private static final byte[] COMMENT_START = bytes("<!--");
+    private static final byte[] COMMENT_END = bytes("-->");
+    private static final byte[] CDATA_START = bytes("<![CDATA[");
+    private static final byte[] CDATA_END = bytes("]]>");
+    private static final byte[] PI_START = bytes("<?");
+    private static final byte[] PI_END = bytes("?>");
+
+    private final InputStream input;
+    private final AttributeInterner interner;
+    private final ForkJoinPool pool;
+    private final boolean ordered;
+    private final int maxPending;
+    private final Map<String, String> attributes;
+    private final Deque<ForkJoinTask<List<XResource>>> pending = new ArrayDeque<ForkJoinTask<List<XResource>>>();
+    private Iterator<XResource> current = Collections.<XResource> emptyList().iterator();
+
+    // The prolog and the start tag of the repository element, followed by the end tag
+    private byte[] documentStart;
+    private byte[] documentEnd;
+    private byte[] resourceName;
+    private byte[] repositoryName;
+
+    // The bytes of the current chunk are kept in the buffer from the chunk start up to the limit
+    private byte[] buffer = new byte[BUFFER_SIZE];
+    private int chunkStart;
+    private int position;
+    private int limit;
+    private boolean endOfInput;
+    private boolean endOfResources;
+    // The number of resource elements in the current chunk
+    private int chunkResources;
+
+    public static RepositoryReader create(InputStream input) {
+        return new ParallelRepositoryXMLReader(input, null, DefaultPool.INSTANCE, true);
+    }
+
+    /**
+     * Create a reader that builds the resources from attributes and directives
+     * that are shared through the given interner.
+     */
+    public static RepositoryReader create(InputStream input, AttributeInterner interner) {
+        if (interner == null)
+            throw MESSAGES.illegalArgumentNull("interner");
+        return new ParallelRepositoryXMLReader(input, interner, DefaultPool.INSTANCE, true);
+    }
+
+    /**
+     * Create a reader that parses on the given pool.
+     *
+     * @param interner The interner that shares equal attributes and directives, may be null
+     * @param ordered If false, the resources of a chunk that is parsed first are returned first
+     */
+    public static RepositoryReader create(InputStream input, AttributeInterner interner, ForkJoinPool pool, boolean ordered) {
+        if (pool == null)
+            throw MESSAGES.illegalArgumentNull("pool");
+        return new ParallelRepositoryXMLReader(input, interner, pool, ordered);
+    }
+
+    private ParallelRepositoryXMLReader(InputStream input, AttributeInterner interner, ForkJoinPool pool, boolean ordered) {
+        if (input == null)
+            throw MESSAGES.illegalArgumentNull("input");
+        this.input = input;
+        this.interner = interner;
+        this.pool = pool;
+        this.ordered = ordered;
+        this.maxPending = 2 * pool.getParallelism();
+        try {
+            readDocumentStart();
+        } catch (IOException ex) {
+            throw MESSAGES.cannotInitializeRepositoryReader(ex);
+        }
+        RepositoryReader reader = createChunkReader(new byte[0]);
+        attributes = reader.getRepositoryAttributes();
+        reader.close();
+    }
+
+    @Override
+    public Map<String, String> getRepositoryAttributes() {
+        return attributes;
+    }
+
+    @Override
+    public synchronized XResource nextResource() {
+        while (!current.hasNext()) {
+            submitChunks();
+            if (pending.isEmpty())
+                return null;
+            current = takeCompletedTask().join().iterator();
+        }
+        return current.next();
+    }
+
+    @Override
+    public synchronized void close() {
+        for (ForkJoinTask<List<XResource>> task : pending) {
+            task.cancel(false);
+        }
+        pending.clear();
+        current = Collections.<XResource> emptyList().iterator();
+        endOfResources = true;
+        try {
+            input.close();
+        } catch (IOException ex) {
+            // ignore
+        }
+    }
+
+    /**
+     * Get a spliterator over the resources that are not yet read.
+     *
+     * Splits are chunks of resource elements with a known size, which are parsed by the thread that
+     * traverses them. Traversing the spliterator itself parses on the calling thread, use
+     * {@link #nextResource()} to read sequentially. Resources of a reader should either be read with
+     * {@link #nextResource()} or with the spliterator, not both. The reader is closed when the
+     * spliterator reaches the end.
+     */
+    public ResourceSpliterator spliterator() {
+        return new ChunkSpliterator(null, 0);
+    }
+
+    private void submitChunks() {
+        while (!endOfResources && pending.size() < maxPending) {
+            byte[] chunk = nextChunk();
+            if (chunk != null) {
+                pending.add(pool.submit(new ParseTask(chunk)));
+            }
+        }
+    }
+
+    private ForkJoinTask<List<XResource>> takeCompletedTask() {
+        if (!ordered) {
+            Iterator<ForkJoinTask<List<XResource>>> iterator = pending.iterator();
+            while (iterator.hasNext()) {
+                ForkJoinTask<List<XResource>> task = iterator.next();
+                if (task.isDone()) {
+                    iterator.remove();
+                    return task;
+                }
+            }
+        }
+        return pending.removeFirst();
+    }
+
+    private RepositoryReader createChunkReader(byte[] chunk) {
+        InputStream chunkInput = new SequenceInputStream(new ByteArrayInputStream(documentStart),
+                new SequenceInputStream(new ByteArrayInputStream(chunk), new ByteArrayInputStream(documentEnd)));
+        return interner != null ? RepositoryXMLReader.create(chunkInput, interner) : RepositoryXMLReader.create(chunkInput);
+    }
+
+    private void readDocumentStart() throws IOException {
+        // Skip the prolog up to the start tag of the repository element
+        int index = nextMarkup(0);
+        while (index >= 0 && !isElementStart(index)) {
+            index = nextMarkup(skipMarkup(index));
+        }
+        if (index < 0)
+            throw new IOException("No repository element");
+
+        repositoryName = readName(index + 1);
+        int end = skipTag(index);
+        documentStart = Arrays.copyOf(buffer, end + 1);
+        if (buffer[end - 1] == '/') {
+            // An empty repository element
+            documentEnd = new byte[0];
+            endOfResources = true;
+        } else {
+            documentEnd = bytes("</" + new String(repositoryName, "UTF-8") + ">");
+        }
+
+        // Resource elements have the prefix of the repository element
+        String qname = new String(repositoryName, "UTF-8");
+        int colon = qname.indexOf(':');
+        resourceName = bytes(colon > 0 ? qname.substring(0, colon + 1) + RESOURCE_ELEMENT : RESOURCE_ELEMENT);
+        chunkStart = position = end + 1;
+    }
+
+    /**
+     * Read the next chunk of complete resource elements
+     *
+     * @return The chunk or null if there are no more resources
+     */
+    private byte[] readChunk() throws IOException {
+        compactBuffer();
+        int index = nextMarkup(position);
+        while (index >= 0) {
+            if (isElementEnd(index)) {
+                byte[] name = readName(index + 2);
+                int end = skipTag(index);
+                if (Arrays.equals(name, resourceName)) {
+                    position = end + 1;
+                    chunkResources++;
+                    if (position - chunkStart >= CHUNK_SIZE)
+                        return cutChunk(position);
+                } else if (Arrays.equals(name, repositoryName)) {
+                    endOfResources = true;
+                    return cutChunk(index);
+                }
+                index = nextMarkup(end + 1);
+            } else if (isElementStart(index)) {
+                byte[] name = readName(index + 1);
+                int end = skipTag(index);
+                // An empty resource element ends where it starts
+                if (Arrays.equals(name, resourceName) && buffer[end - 1] == '/') {
+                    position = end + 1;
+                    chunkResources++;
+                    if (position - chunkStart >= CHUNK_SIZE)
+                        return cutChunk(position);
+                }
+                index = nextMarkup(end + 1);
+            } else {
+                index = nextMarkup(skipMarkup(index));
+            }
+        }
+        throw new IOException("Unexpected end of repository element");
+    }
+
+    private byte[] cutChunk(int end) {
+        byte[] chunk = Arrays.copyOfRange(buffer, chunkStart, end);
+        chunkStart = position = end;
+        return chunk.length > 0 ? chunk : null;
+    }
+
+    // Read the next chunk, the number of its resources is in chunkResources
+    private synchronized byte[] nextChunk() {
+        chunkResources = 0;
+        if (endOfResources)
+            return null;
+        try {
+            return readChunk();
+        } catch (IOException ex) {
+            throw MESSAGES.cannotReadRepositoryXML(ex);
+        }
+    }
+
+    // Get the index of the next '<', or -1 at the end of the input
+    private int nextMarkup(int from) throws IOException {
+        for (int i = from; available(i); i++) {
+            if (buffer[i] == '<')
+                return i;
+        }
+        return -1;
+    }
+
+    private boolean isElementStart(int index) throws IOException {
+        byte next = nextByte(index);
+        return next != '!' && next != '?' && next != '/';
+    }
+
+    private boolean isElementEnd(int index) throws IOException {
+        return nextByte(index) == '/';
+    }
+
+    private byte nextByte(int index) throws IOException {
+        if (!available(index + 1))
+            throw new IOException("Unexpected end of input");
+        return buffer[index + 1];
+    }
+
+    // Skip a comment, CDATA section, processing instruction or declaration, returns the index after it
+    private int skipMarkup(int index) throws IOException {
+        if (startsWith(index, COMMENT_START)) {
+            return find(index + COMMENT_START.length, COMMENT_END) + COMMENT_END.length;
+        } else if (startsWith(index, CDATA_START)) {
+            return find(index + CDATA_START.length, CDATA_END) + CDATA_END.length;
+        } else if (startsWith(index, PI_START)) {
+            return find(index + PI_START.length, PI_END) + PI_END.length;
+        } else {
+            return skipTag(index) + 1;
+        }
+    }
+
+    // Get the index of the '>' that ends the tag, attribute values may contain '>'
+    private int skipTag(int index) throws IOException {
+        byte quote = 0;
+        for (int i = index + 1; available(i); i++) {
+            byte b = buffer[i];
+            if (quote != 0) {
+                if (b == quote)
+                    quote = 0;
+            } else if (b == '"' || b == '\'') {
+                quote = b;
+            } else if (b == '>') {
+                return i;
+            }
+        }
+        throw new IOException("Unexpected end of input");
+    }
+
+    private byte[] readName(int from) throws IOException {
+        int i = from;
+        while (available(i)) {
+            byte b = buffer[i];
+            if (b == '>' || b == '/' || b == ' ' || b == '\t' || b == '\r' || b == '\n')
+                return Arrays.copyOfRange(buffer, from, i);
+            i++;
+        }
+        throw new IOException("Unexpected end of input");
+    }
+
+    private int find(int from, byte[] pattern) throws IOException {
+        for (int i = from; available(i + pattern.length - 1); i++) {
+            if (startsWith(i, pattern))
+                return i;
+        }
+        throw new IOException("Unexpected end of input");
+    }
+
+    private boolean startsWith(int index, byte[] pattern) throws IOException {
+        if (!available(index + pattern.length - 1))
+            return false;
+        for (int i = 0; i < pattern.length; i++) {
+            if (buffer[index + i] != pattern[i])
+                return false;
+        }
+        return true;
+    }
+
+    // Read more input until the byte at the given index is available
+    private boolean available(int index) throws IOException {
+        while (index >= limit) {
+            if (endOfInput)
+                return false;
+            if (limit == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            int count = input.read(buffer, limit, buffer.length - limit);
+            if (count < 0) {
+                endOfInput = true;
+            } else {
+                limit += count;
+            }
+        }
+        return true;
+    }
+
+    // Move the current chunk to the start of the buffer, indices are only shifted between chunks
+    private void compactBuffer() {
+        if (chunkStart > 0) {
+            System.arraycopy(buffer, chunkStart, buffer, 0, limit - chunkStart);
+            limit -= chunkStart;
+            position -= chunkStart;
+            chunkStart = 0;
+        }
+    }
+
+    private static byte[] bytes(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private List<XResource> parseChunk(byte[] chunk) {
+        List<XResource> result = new ArrayList<XResource>();
+        RepositoryReader reader = createChunkReader(chunk);
+        try {
+            XResource resource = reader.nextResource();
+            while (resource != null) {
+                result.add(resource);
+                resource = reader.nextResource();
+            }
+        } finally {
+            reader.close();
+        }
+        return result;
+    }
+
+    /**
+     * A spliterator over a single chunk if the chunk is given, otherwise over the remaining chunks
+     */
+    private final class ChunkSpliterator extends ResourceSpliterator {
+
+        private byte[] chunk;
+        private long size;
+        private Iterator<XResource> resources = Collections.<XResource> emptyList().iterator();
+
+        ChunkSpliterator(byte[] chunk, int size) {
+            this.chunk = chunk;
+            this.size = chunk != null ? size : Long.MAX_VALUE;
+        }
+
+        @Override
+        protected XResource readNext() {
+            while (!resources.hasNext()) {
+                if (size != Long.MAX_VALUE) {
+                    if (chunk == null)
+                        return null;
+                    resources = parseChunk(chunk).iterator();
+                    chunk = null;
+                } else {
+                    byte[] next = nextChunk();
+                    if (next == null) {
+                        close();
+                        return null;
+                    }
+                    resources = parseChunk(next).iterator();
+                }
+            }
+            if (size != Long.MAX_VALUE) {
+                size--;
+            }
+            return resources.next();
+        }
+
+        @Override
+        public ResourceSpliterator trySplit() {
+            if (size != Long.MAX_VALUE)
+                return null;
+
+            // The resources that were already parsed come first
+            List<XResource> parsed = new ArrayList<XResource>();
+            XResource next = takeNext();
+            if (next != null) {
+                parsed.add(next);
+            }
+            while (resources.hasNext()) {
+                parsed.add(resources.next());
+            }
+            if (!parsed.isEmpty())
+                return ResourceSpliterator.create(parsed);
+
+            synchronized (ParallelRepositoryXMLReader.this) {
+                byte[] chunk = nextChunk();
+                if (chunk == null) {
+                    close();
+                    return null;
+                }
+                return new ChunkSpliterator(chunk, chunkResources);
+            }
+        }
+
+        @Override
+        public long estimateSize() {
+            return size;
+        }
+
+        @Override
+        public int characteristics() {
+            return size != Long.MAX_VALUE ? ORDERED | NONNULL | SIZED | SUBSIZED : ORDERED | NONNULL;
+        }
+    }
+
+    private final class ParseTask extends RecursiveTask<List<XResource>> {
+
+        private static final long serialVersionUID = 1L;
+        private final byte[] chunk;
+
+        ParseTask(byte[] chunk) {
+            this.chunk = chunk;
+        }
+
+        @Override
+        protected List<XResource> compute() {
+            return parseChunk(chunk);
+        }
+    }
+
+    // The pool is created when it is first used, its worker threads are daemon threads
+    private static final class DefaultPool {
+        private static final ForkJoinPool INSTANCE = new ForkJoinPool();
+    }
+}
@@ -21,6 +21,7 @@ package org.jboss.osgi.repository;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
@@ -33,6 +34,9 @@ import java.security.NoSuchAlgorithmException;
 public final class RepositoryContentHelper {
 
     public static final String DEFAULT_DIGEST_ALGORITHM = "SHA-256";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
     
     // Hide ctor
     private RepositoryContentHelper() {
@@ -52,17 +56,44 @@ public final class RepositoryContentHelper {
         MessageDigest md = MessageDigest.getInstance(algorithm);
         try {
             int nread = 0;
-            byte[] dataBytes = new byte[1024];
+            byte[] dataBytes = new byte[BUFFER_SIZE];
             while ((nread = input.read(dataBytes)) != -1) {
                 md.update(dataBytes, 0, nread);
             }
         } finally {
             input.close();
         }
-        StringBuilder builder = new StringBuilder();
-        for (byte b : md.digest()) {
-            builder.append(String.format("%02x", b));
+        return toHexString(md.digest());
+    }
+
+    /**
+     * Copy the input stream to the output stream and update the given digest with every byte copied.
+     * Neither stream is closed.
+     *
+     * @return the number of bytes copied
+     */
+    public static long copyWithDigest(InputStream input, OutputStream output, MessageDigest md) throws IOException {
+        long total = 0;
+        int nread = 0;
+        byte[] dataBytes = new byte[BUFFER_SIZE];
+        while ((nread = input.read(dataBytes)) != -1) {
+            md.update(dataBytes, 0, nread);
+            output.write(dataBytes, 0, nread);
+            total += nread;
+        }
+        return total;
+    }
+
+    /**
+     * Get the lower case hex representation of the given digest bytes
+     */
+    public static String toHexString(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int b = bytes[i] & 0xFF;
+            chars[2 * i] = HEX_DIGITS[b >>> 4];
+            chars[2 * i + 1] = HEX_DIGITS[b & 0x0F];
         }
-        return builder.toString();
+        return new String(chars);
     }
 }
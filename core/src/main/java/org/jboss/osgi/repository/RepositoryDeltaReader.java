@@ -0,0 +1,46 @@
+/*
+ * #%L
+ * JBossOSGi Repository: API
+ * %%
+ * Copyright (C) 2011 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.jboss.osgi.repository;
+
+import org.jboss.osgi.resolver.XResource;
+
+/**
+ * A reader for the changes of a repository after a given increment.
+ *
+ * The repository attributes carry the increment that the changes are read up to
+ * and the increment that they are read after, as {@code since}. The removed resources
+ * are read before the added resources. A follower that removes the resources and then
+ * adds the resources is at the repository increment.
+ *
+ * @author agent@local
+ * @since 18-Oct-2026
+ */
+public interface RepositoryDeltaReader extends RepositoryReader {
+
+    /**
+     * Get the next resource that was removed after the given increment.
+     *
+     * Resources that were added and removed after the given increment are not returned.
+     * A removed resource may only carry its identity.
+     *
+     * @return The removed resource or null if there are no more removed resources
+     */
+    XResource nextRemovedResource();
+}
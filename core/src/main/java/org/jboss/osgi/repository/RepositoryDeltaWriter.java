@@ -0,0 +1,39 @@
+/*
+ * #%L
+ * JBossOSGi Repository: API
+ * %%
+ * Copyright (C) 2011 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.jboss.osgi.repository;
+
+import org.jboss.osgi.resolver.XResource;
+
+/**
+ * Write the changes of a repository after a given increment.
+ *
+ * The removed resources are written before the added resources.
+ *
+ * @author agent@local
+ * @since 18-Oct-2026
+ * @see RepositoryDeltaReader
+ */
+public interface RepositoryDeltaWriter extends RepositoryWriter {
+
+    /**
+     * Write the identity of the given removed resource.
+     */
+    void writeRemovedResource(XResource resource);
+}
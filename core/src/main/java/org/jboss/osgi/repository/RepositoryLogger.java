@@ -23,6 +23,8 @@ import static org.jboss.logging.Logger.Level.ERROR;
 import static org.jboss.logging.Logger.Level.INFO;
 import static org.jboss.logging.Logger.Level.WARN;
 
+import java.io.File;
+
 import org.jboss.logging.BasicLogger;
 import org.jboss.logging.Logger;
 import org.jboss.logging.annotations.Cause;
@@ -54,4 +56,32 @@ public interface RepositoryLogger extends BasicLogger {
     @LogMessage(level = WARN)
     @Message(id = 20402, value = "Cannot infer value type from %s")
     void warnCannotInferValueType(Object value);
+
+    @LogMessage(level = WARN)
+    @Message(id = 20403, value = "Ignoring incomplete journal record in: %s")
+    void warnIncompleteJournalRecord(File file);
+
+    @LogMessage(level = ERROR)
+    @Message(id = 20404, value = "Cannot write repository snapshot: %s")
+    void errorCannotWriteRepositorySnapshot(@Cause Throwable th, File file);
+
+    @LogMessage(level = WARN)
+    @Message(id = 20405, value = "Cannot read repository index, loading the repository file instead: %s")
+    void warnCannotReadRepositoryIndex(@Cause Throwable th, File file);
+
+    @LogMessage(level = WARN)
+    @Message(id = 20406, value = "Cannot write repository index: %s")
+    void warnCannotWriteRepositoryIndex(@Cause Throwable th, File file);
+
+    @LogMessage(level = INFO)
+    @Message(id = 20407, value = "Loaded repository storage %s in %d ms")
+    void infoRepositoryStorageLoaded(String name, long millis);
+
+    @LogMessage(level = ERROR)
+    @Message(id = 20408, value = "Cannot load repository storage: %s")
+    void errorCannotLoadRepositoryStorage(@Cause Throwable th, String name);
+
+    @LogMessage(level = WARN)
+    @Message(id = 20409, value = "Repository store was not closed cleanly, recovered its last completed modification: %s")
+    void warnRecoveredRepositoryStore(File file);
 }
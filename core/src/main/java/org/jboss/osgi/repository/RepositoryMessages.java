@@ -19,6 +19,9 @@
  */
 package org.jboss.osgi.repository;
 
+import java.io.File;
+import java.io.IOException;
+
 import javax.xml.stream.Location;
 
 import org.jboss.logging.Messages;
@@ -116,4 +119,43 @@ public interface RepositoryMessages {
 
     @Message(id = 20524, value = "Malformed Requirement Expression: %s")
     IllegalArgumentException malformedRequirementExpression(RequirementExpression re);
+
+    @Message(id = 20525, value = "Invalid value for property %s: %s")
+    IllegalArgumentException invalidPropertyValue(String key, String value);
+
+    @Message(id = 20526, value = "%s must not be negative")
+    IllegalArgumentException illegalArgumentNegative(String name);
+
+    @Message(id = 20527, value = "Cannot write repository journal: %s")
+    RepositoryStorageException cannotWriteRepositoryJournal(@Cause Throwable th, File file);
+
+    @Message(id = 20528, value = "Cannot read repository journal: %s")
+    RepositoryStorageException cannotReadRepositoryJournal(@Cause Throwable th, File file);
+
+    @Message(id = 20529, value = "Cannot move content from %s to %s")
+    IOException cannotMoveContent(File source, File target);
+
+    @Message(id = 20530, value = "Cannot write repository index: %s")
+    RepositoryStorageException cannotWriteRepositoryIndex(@Cause Throwable th, File file);
+
+    @Message(id = 20531, value = "Cannot read repository index: %s")
+    RepositoryStorageException cannotReadRepositoryIndex(@Cause Throwable th, File file);
+
+    @Message(id = 20532, value = "Unsupported attribute value type: %s")
+    IllegalArgumentException unsupportedAttributeValueType(Class<?> type);
+
+    @Message(id = 20533, value = "Cannot load repository storage: %s")
+    RepositoryStorageException cannotLoadRepositoryStorage(@Cause Throwable th, String name);
+
+    @Message(id = 20534, value = "Cannot write repository file: %s")
+    RepositoryStorageException cannotWriteRepositoryFile(@Cause Throwable th, File file);
+
+    @Message(id = 20535, value = "Cannot write repository store: %s")
+    RepositoryStorageException cannotWriteRepositoryStore(@Cause Throwable th, File file);
+
+    @Message(id = 20536, value = "Cannot read repository store: %s")
+    RepositoryStorageException cannotReadRepositoryStore(@Cause Throwable th, File file);
+
+    @Message(id = 20537, value = "Cannot read repository XML")
+    IllegalStateException cannotReadRepositoryXML(@Cause Throwable th);
 }
@@ -20,6 +20,7 @@ package org.jboss.osgi.repository;
  */
 
 import java.util.Collection;
+import java.util.List;
 
 import org.jboss.osgi.resolver.XIdentityCapability;
 import org.jboss.osgi.resolver.XResource;
@@ -29,6 +30,9 @@ import org.osgi.resource.Requirement;
 /**
  * Repository resource storage
  *
+ * Implementations should extend {@link org.jboss.osgi.repository.spi.AbstractRepositoryStorage},
+ * which provides defaults for the methods that were added to this interface.
+ *
  * @author thomas.diesler@jboss.com
  * @since 16-Jan-2012
  */
@@ -39,6 +43,13 @@ public interface RepositoryStorage {
      */
     XRepository getRepository();
 
+    /**
+     * True if this storage is loaded.
+     *
+     * A storage that is still being loaded blocks its modifications until it is loaded.
+     */
+    boolean isReady();
+
     /**
      * Find the capabilities that match the specified requirement.
      *
@@ -54,6 +65,18 @@ public interface RepositoryStorage {
      */
     RepositoryReader getRepositoryReader();
 
+    /**
+     * Get a reader for the changes of this storage after the given increment.
+     *
+     * The storage remembers a bounded number of removed resources. The changes after an
+     * increment from before the oldest remembered removal, or before the storage was
+     * loaded, are not known.
+     *
+     * @param increment The increment that the caller is at
+     * @return The reader for the changes or null if the changes are not known, the full repository must be read
+     */
+    RepositoryDeltaReader getRepositoryDeltaReader(long increment);
+
     /**
      * Get the resource for the given identity capability.
      *
@@ -70,6 +93,18 @@ public interface RepositoryStorage {
      */
     XResource addResource(XResource resource) throws RepositoryStorageException;
 
+    /**
+     * Add the given resources to storage.
+     *
+     * All resources are validated before the storage is modified.
+     * The resources are added at a single increment.
+     *
+     * @param resources The resources to add
+     * @return The resources being added in the given order, which may be modified copies of the given resources
+     * @throws RepositoryStorageException If there is a problem storing the resources
+     */
+    List<XResource> addResources(Collection<XResource> resources) throws RepositoryStorageException;
+
     /**
      * Remove a the given resource from the cache.
      *
@@ -78,4 +113,15 @@ public interface RepositoryStorage {
      * @throws RepositoryStorageException If there is a problem removing the resource from storage
      */
     boolean removeResource(XResource resource) throws RepositoryStorageException;
+
+    /**
+     * Remove the given resources from the cache.
+     *
+     * The resources are removed at a single increment.
+     *
+     * @param resources The resources to remove
+     * @return true if all of the resources could be found and removed
+     * @throws RepositoryStorageException If there is a problem removing the resources from storage
+     */
+    boolean removeResources(Collection<XResource> resources) throws RepositoryStorageException;
 }
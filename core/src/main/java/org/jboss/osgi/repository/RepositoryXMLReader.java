@@ -29,6 +29,7 @@ import static org.jboss.osgi.repository.RepositoryMessages.MESSAGES;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -40,30 +41,54 @@ import javax.xml.stream.XMLStreamReader;
 import org.jboss.osgi.repository.AttributeValueHandler.AttributeValue;
 import org.jboss.osgi.repository.Namespace100.Attribute;
 import org.jboss.osgi.repository.Namespace100.Element;
-import org.jboss.osgi.resolver.XCapability;
+import org.jboss.osgi.repository.spi.AttributeInterner;
 import org.jboss.osgi.resolver.XResource;
 import org.jboss.osgi.resolver.XResourceBuilder;
 import org.jboss.osgi.resolver.XResourceBuilderFactory;
-import org.osgi.resource.Capability;
-import org.osgi.resource.Requirement;
 import org.osgi.service.repository.ContentNamespace;
 
 /**
  * Read repository contnet from XML.
  *
+ * The tombstone elements of a delta are read as removed resources. They precede the resource elements,
+ * a reader that is only asked for the resources skips them.
+ *
  * @author thomas.diesler@jboss.com
  * @since 21-May-2012
  */
-public class RepositoryXMLReader implements RepositoryReader {
+public class RepositoryXMLReader implements RepositoryDeltaReader {
 
     private final Map<String, String> attributes = new HashMap<String, String>();
     private final XMLStreamReader reader;
+    private final AttributeInterner interner;
+    // The first resource, when it was read while looking for removed resources
+    private XResource pendingResource;
+    private boolean resourcesStarted;
+    private boolean endOfResources;
 
     public static RepositoryReader create(InputStream input) {
-        return new RepositoryXMLReader(input);
+        return new RepositoryXMLReader(input, null);
+    }
+
+    /**
+     * Create a reader that builds the resources from attributes and directives
+     * that are shared through the given interner.
+     */
+    public static RepositoryReader create(InputStream input, AttributeInterner interner) {
+        if (interner == null)
+            throw MESSAGES.illegalArgumentNull("interner");
+        return new RepositoryXMLReader(input, interner);
     }
 
-    private RepositoryXMLReader(InputStream input) {
+    /**
+     * Create a reader for the changes of a repository.
+     */
+    public static RepositoryDeltaReader createDeltaReader(InputStream input) {
+        return new RepositoryXMLReader(input, null);
+    }
+
+    private RepositoryXMLReader(InputStream input, AttributeInterner interner) {
+        this.interner = interner;
         try {
             reader = XMLInputFactory.newInstance().createXMLStreamReader(input);
         } catch (Exception ex) {
@@ -88,18 +113,56 @@ public class RepositoryXMLReader implements RepositoryReader {
 
     @Override
     public XResource nextResource() {
+        if (pendingResource != null) {
+            XResource result = pendingResource;
+            pendingResource = null;
+            return result;
+        }
+        if (endOfResources)
+            return null;
         try {
             while (reader.hasNext() && reader.nextTag() != END_ELEMENT) {
                 Element element = Element.forName(reader.getLocalName());
                 switch (element) {
                     case RESOURCE: {
+                        resourcesStarted = true;
+                        return readResourceElement(reader);
+                    }
+                    case TOMBSTONE: {
+                        readResourceElement(reader);
+                        break;
+                    }
+                }
+            }
+        } catch (XMLStreamException ex) {
+            throw MESSAGES.cannotReadResourceElement(ex, reader.getLocation());
+        }
+        endOfResources = true;
+        return null;
+    }
+
+    @Override
+    public XResource nextRemovedResource() {
+        if (resourcesStarted || endOfResources)
+            return null;
+        try {
+            while (reader.hasNext() && reader.nextTag() != END_ELEMENT) {
+                Element element = Element.forName(reader.getLocalName());
+                switch (element) {
+                    case TOMBSTONE: {
                         return readResourceElement(reader);
                     }
+                    case RESOURCE: {
+                        resourcesStarted = true;
+                        pendingResource = readResourceElement(reader);
+                        return null;
+                    }
                 }
             }
         } catch (XMLStreamException ex) {
             throw MESSAGES.cannotReadResourceElement(ex, reader.getLocation());
         }
+        endOfResources = true;
         return null;
     }
 
@@ -113,33 +176,40 @@ public class RepositoryXMLReader implements RepositoryReader {
     }
 
     private XResource readResourceElement(XMLStreamReader reader) throws XMLStreamException {
-        XResourceBuilder<XResource> builder = XResourceBuilderFactory.create();
+        Map<String, String> resatts = new HashMap<String, String>();
         for (int i = 0; i < reader.getAttributeCount(); i++) {
             // [TODO] add support for namespaced attributes
-            String key = reader.getAttributeLocalName(i);
-            String value = reader.getAttributeValue(i);
-            builder.addAttribute(key, value);
+            String key = intern(reader.getAttributeLocalName(i));
+            String value = intern(reader.getAttributeValue(i));
+            resatts.put(key, value);
         }
+
+        // Collect the elements, the builder depends on the first content capability
+        List<ParsedElement> caps = new ArrayList<ParsedElement>();
+        List<ParsedElement> reqs = new ArrayList<ParsedElement>();
+        ParsedElement ccap = null;
         while (reader.hasNext() && reader.nextTag() != END_ELEMENT) {
             Element element = Element.forName(reader.getLocalName());
             switch (element) {
                 case CAPABILITY: {
-                    readCapabilityElement(reader, builder);
+                    ParsedElement cap = readParsedElement(reader);
+                    if (ccap == null && ContentNamespace.CONTENT_NAMESPACE.equals(cap.namespace)) {
+                        ccap = cap;
+                    }
+                    caps.add(cap);
                     break;
                 }
                 case REQUIREMENT: {
-                    readRequirementElement(reader, builder);
+                    reqs.add(readParsedElement(reader));
                     break;
                 }
             }
         }
-        XResource resource = builder.getResource();
 
-        // Transform the resource into an URLResource
-        List<Capability> caps = resource.getCapabilities(ContentNamespace.CONTENT_NAMESPACE);
-        if (caps.size() > 0) {
-            XCapability ccap = (XCapability) caps.get(0);
-            String urlspec = (String) ccap.getAttribute(ContentNamespace.CAPABILITY_URL_ATTRIBUTE);
+        // Build an URLResource directly, if there is a content URL
+        XResourceBuilder<XResource> builder = null;
+        if (ccap != null) {
+            String urlspec = (String) ccap.atts.get(ContentNamespace.CAPABILITY_URL_ATTRIBUTE);
             if (urlspec != null) {
                 URL contentURL;
                 try {
@@ -147,44 +217,38 @@ public class RepositoryXMLReader implements RepositoryReader {
                 } catch (MalformedURLException ex) {
                     throw MESSAGES.invalidContentURL(urlspec);
                 }
-                builder = URLResourceBuilderFactory.create(contentURL, ccap.getAttributes());
-                for (Capability cap : resource.getCapabilities(null)) {
-                    if (cap != ccap) {
-                        builder.addCapability(cap.getNamespace(), cap.getAttributes(), cap.getDirectives());
-                    }
-                }
-                for (Requirement req : resource.getRequirements(null)) {
-                    String namespace = req.getNamespace();
-                    builder.addRequirement(namespace, req.getAttributes(), req.getDirectives());
-                }
-                resource = builder.getResource();
+                builder = URLResourceBuilderFactory.create(contentURL, ccap.atts);
+            } else {
+                ccap = null;
             }
         }
-        return resource;
-    }
-
-    private void readCapabilityElement(XMLStreamReader reader, XResourceBuilder<XResource> builder) throws XMLStreamException {
-        String namespace = reader.getAttributeValue(null, Attribute.NAMESPACE.toString());
-        Map<String, Object> atts = new HashMap<String, Object>();
-        Map<String, String> dirs = new HashMap<String, String>();
-        readAttributesAndDirectives(reader, atts, dirs);
+        if (builder == null) {
+            builder = XResourceBuilderFactory.create();
+        }
         try {
-            builder.addCapability(namespace, atts, dirs);
+            for (Map.Entry<String, String> entry : resatts.entrySet()) {
+                builder.addAttribute(entry.getKey(), entry.getValue());
+            }
+            for (ParsedElement cap : caps) {
+                if (cap != ccap) {
+                    builder.addCapability(cap.namespace, cap.atts, cap.dirs);
+                }
+            }
+            for (ParsedElement req : reqs) {
+                builder.addRequirement(req.namespace, req.atts, req.dirs);
+            }
         } catch (RuntimeException ex) {
             throw MESSAGES.cannotReadResourceElement(ex, reader.getLocation());
         }
+        return builder.getResource();
     }
 
-    private void readRequirementElement(XMLStreamReader reader, XResourceBuilder<XResource> builder) throws XMLStreamException {
-        String namespace = reader.getAttributeValue(null, Attribute.NAMESPACE.toString());
+    private ParsedElement readParsedElement(XMLStreamReader reader) throws XMLStreamException {
+        String namespace = intern(reader.getAttributeValue(null, Attribute.NAMESPACE.toString()));
         Map<String, Object> atts = new HashMap<String, Object>();
         Map<String, String> dirs = new HashMap<String, String>();
         readAttributesAndDirectives(reader, atts, dirs);
-        try {
-            builder.addRequirement(namespace, atts, dirs);
-        } catch (RuntimeException ex) {
-            throw MESSAGES.cannotReadResourceElement(ex, reader.getLocation());
-        }
+        return new ParsedElement(namespace, atts, internDirectives(dirs));
     }
 
     private void readAttributesAndDirectives(XMLStreamReader reader, Map<String, Object> atts, Map<String, String> dirs) throws XMLStreamException {
@@ -204,11 +268,11 @@ public class RepositoryXMLReader implements RepositoryReader {
     }
 
     private void readAttributeElement(XMLStreamReader reader, Map<String, Object> attributes) throws XMLStreamException {
-        String name = reader.getAttributeValue(null, Attribute.NAME.toString());
+        String name = intern(reader.getAttributeValue(null, Attribute.NAME.toString()));
         String valstr = reader.getAttributeValue(null, Attribute.VALUE.toString());
         String typespec = reader.getAttributeValue(null, Attribute.TYPE.toString());
         AttributeValue value = AttributeValueHandler.readAttributeValue(typespec, valstr);
-        attributes.put(name, value.getValue());
+        attributes.put(name, interner != null ? interner.internValue(value.getValue()) : value.getValue());
         while (reader.hasNext() && reader.nextTag() != END_ELEMENT);
     }
 
@@ -219,4 +283,25 @@ public class RepositoryXMLReader implements RepositoryReader {
         while (reader.hasNext() && reader.nextTag() != END_ELEMENT) {
         }
     }
+
+    private String intern(String value) {
+        return interner != null ? interner.intern(value) : value;
+    }
+
+    private Map<String, String> internDirectives(Map<String, String> dirs) {
+        return interner != null ? interner.internDirectives(dirs) : dirs;
+    }
+
+    // A capability or requirement that is added to the builder when the resource element is complete
+    private static final class ParsedElement {
+        private final String namespace;
+        private final Map<String, Object> atts;
+        private final Map<String, String> dirs;
+
+        ParsedElement(String namespace, Map<String, Object> atts, Map<String, String> dirs) {
+            this.namespace = namespace;
+            this.atts = atts;
+            this.dirs = dirs;
+        }
+    }
 }
@@ -30,16 +30,20 @@ import static org.jboss.osgi.repository.Namespace100.Element.DIRECTIVE;
 import static org.jboss.osgi.repository.Namespace100.Element.REPOSITORY;
 import static org.jboss.osgi.repository.Namespace100.Element.REQUIREMENT;
 import static org.jboss.osgi.repository.Namespace100.Element.RESOURCE;
+import static org.jboss.osgi.repository.Namespace100.Element.TOMBSTONE;
 import static org.jboss.osgi.repository.RepositoryMessages.MESSAGES;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import javax.xml.stream.XMLOutputFactory;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamWriter;
 
-import org.jboss.osgi.repository.AttributeValueHandler.AttributeValue;
 import org.jboss.osgi.repository.Namespace100.Type;
 import org.jboss.osgi.resolver.XResource;
 import org.osgi.resource.Capability;
@@ -48,20 +52,55 @@ import org.osgi.resource.Requirement;
 /**
  * Write repository contnet to XML.
  *
+ * The output is buffered, unless it already is, and the stream writers are created from a shared factory.
+ * Attribute values are written without intermediate value objects, the attribute type
+ * of a value class is only determined once.
+ *
+ * A removed resource is written as a tombstone element that carries the identity capability.
+ *
  * @author thomas.diesler@jboss.com
  * @since 21-May-2012
  */
-public class RepositoryXMLWriter implements RepositoryWriter {
+public class RepositoryXMLWriter implements RepositoryDeltaWriter {
 
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
+    private static final String[] TYPE_NAMES = new String[Type.values().length];
+    private static final String[] LIST_TYPE_NAMES = new String[Type.values().length];
+    static {
+        for (Type type : Type.values()) {
+            TYPE_NAMES[type.ordinal()] = type.toString();
+            LIST_TYPE_NAMES[type.ordinal()] = "List<" + type + ">";
+        }
+    }
+
+    private final OutputStream output;
     private final XMLStreamWriter writer;
+    private final StringBuilder valueBuilder = new StringBuilder();
 
     public static RepositoryWriter create(OutputStream output) {
         return new RepositoryXMLWriter(output);
     }
 
+    /**
+     * Create a writer for the changes of a repository.
+     */
+    public static RepositoryDeltaWriter createDeltaWriter(OutputStream output) {
+        return new RepositoryXMLWriter(output);
+    }
+
     private RepositoryXMLWriter(OutputStream output) {
         try {
-            writer = XMLOutputFactory.newInstance().createXMLStreamWriter(output);
+            // In memory and buffered output is not buffered again
+            if (output instanceof ByteArrayOutputStream || output instanceof BufferedOutputStream) {
+                this.output = output;
+            } else {
+                this.output = new BufferedOutputStream(output, BUFFER_SIZE);
+            }
+            synchronized (OUTPUT_FACTORY) {
+                writer = OUTPUT_FACTORY.createXMLStreamWriter(this.output);
+            }
         } catch (Exception ex) {
             throw MESSAGES.cannotInitializeRepositoryWriter(ex);
         }
@@ -92,11 +131,7 @@ public class RepositoryXMLWriter implements RepositoryWriter {
                 writer.writeAttribute(key, "" + value);
             }
             for (Capability cap : resource.getCapabilities(null)) {
-                writer.writeStartElement(CAPABILITY.getLocalName());
-                writer.writeAttribute(NAMESPACE.getLocalName(), cap.getNamespace());
-                writeAttributes(cap.getAttributes());
-                writeDirectives(cap.getDirectives());
-                writer.writeEndElement();
+                writeCapability(cap);
             }
             for (Requirement req : resource.getRequirements(null)) {
                 writer.writeStartElement(REQUIREMENT.getLocalName());
@@ -111,35 +146,80 @@ public class RepositoryXMLWriter implements RepositoryWriter {
         }
     }
 
+    @Override
+    public void writeRemovedResource(XResource resource) {
+        try {
+            writer.writeStartElement(TOMBSTONE.getLocalName());
+            writeCapability(resource.getIdentityCapability());
+            writer.writeEndElement();
+        } catch (XMLStreamException ex) {
+            throw MESSAGES.cannotWriteRepositoryElement(ex);
+        }
+    }
+
+    /**
+     * Write the end of the document and flush the output.
+     * The output stream is not closed.
+     */
     @Override
     public void close() {
         try {
             writer.writeEndElement();
             writer.writeEndDocument();
             writer.close();
+            output.flush();
         } catch (XMLStreamException ex) {
             throw MESSAGES.cannotWriteRepositoryElement(ex);
+        } catch (IOException ex) {
+            throw MESSAGES.cannotWriteRepositoryElement(ex);
         }
     }
 
+    private void writeCapability(Capability cap) throws XMLStreamException {
+        writer.writeStartElement(CAPABILITY.getLocalName());
+        writer.writeAttribute(NAMESPACE.getLocalName(), cap.getNamespace());
+        writeAttributes(cap.getAttributes());
+        writeDirectives(cap.getDirectives());
+        writer.writeEndElement();
+    }
+
     private void writeAttributes(Map<String, Object> attributes) throws XMLStreamException {
         for (Entry<String, Object> entry : attributes.entrySet()) {
-            AttributeValue attval = AttributeValue.create(entry.getValue());
+            Object value = entry.getValue();
             writer.writeStartElement(ATTRIBUTE.getLocalName());
             writer.writeAttribute(NAME.getLocalName(), entry.getKey());
-            if (attval.isListType()) {
-                writer.writeAttribute(VALUE.getLocalName(), attval.getValueString());
-                writer.writeAttribute(TYPE.getLocalName(), "List<" + attval.getType() + ">");
+            if (value instanceof List) {
+                // Use the type of the first element in the list, an empty list is a list of strings
+                List<?> list = (List<?>) value;
+                Type type = list.isEmpty() ? Type.String : AttributeValueHandler.getValueType(list.get(0).getClass());
+                writer.writeAttribute(VALUE.getLocalName(), getListValueString(list, type));
+                writer.writeAttribute(TYPE.getLocalName(), LIST_TYPE_NAMES[type.ordinal()]);
             } else {
-                writer.writeAttribute(VALUE.getLocalName(), attval.getValueString());
-                if (attval.getType() != Type.String) {
-                    writer.writeAttribute(TYPE.getLocalName(), attval.getType().toString());
+                Type type = AttributeValueHandler.getValueType(value.getClass());
+                if (type == Type.String) {
+                    writer.writeAttribute(VALUE.getLocalName(), AttributeValueHandler.escapeValue((String) value));
+                } else {
+                    writer.writeAttribute(VALUE.getLocalName(), value.toString());
+                    writer.writeAttribute(TYPE.getLocalName(), TYPE_NAMES[type.ordinal()]);
                 }
             }
             writer.writeEndElement();
         }
     }
 
+    private String getListValueString(List<?> list, Type type) {
+        StringBuilder result = valueBuilder;
+        result.setLength(0);
+        for (Object val : list) {
+            if (result.length() > 0) {
+                result.append(", ");
+            }
+            String valstr = val.toString();
+            result.append(type == Type.String ? AttributeValueHandler.escapeValue(valstr) : valstr);
+        }
+        return result.toString();
+    }
+
     private void writeDirectives(Map<String, String> directives) throws XMLStreamException {
         for (Entry<String, String> entry : directives.entrySet()) {
             writer.writeStartElement(DIRECTIVE.getLocalName());
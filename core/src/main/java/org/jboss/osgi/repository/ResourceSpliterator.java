@@ -0,0 +1,347 @@
+/*
+ * #%L
+ * JBossOSGi Repository
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.jboss.osgi.repository;
+
+import static org.jboss.osgi.repository.RepositoryMessages.MESSAGES;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+import org.jboss.osgi.resolver.XResource;
+
+/**
+ * An iterator over resources that can be split for parallel processing.
+ *
+ * A split covers a prefix of the remaining resources, so that results can be combined
+ * in encounter order. The characteristics and size estimates follow the contract of
+ * the Java 8 Spliterator, which this class stands in for.
+ *
+ * Splits of a {@link RepositoryReader} are batches of resources that are read when the
+ * split is made. Splits of a {@link ParallelRepositoryXMLReader} are chunks of XML that
+ * are parsed by the thread that traverses them.
+ *
+ * @author agent@local
+ * @since 18-Oct-2026
+ */
+public abstract class ResourceSpliterator implements Iterator<XResource> {
+
+    public static final int ORDERED = 0x00000010;
+    public static final int SIZED = 0x00000040;
+    public static final int NONNULL = 0x00000100;
+    public static final int IMMUTABLE = 0x00000400;
+    public static final int SUBSIZED = 0x00004000;
+
+    private XResource next;
+
+    /**
+     * A function that is applied to every resource by {@link ResourceSpliterator#transform(ForkJoinPool, ResourceFunction)}
+     */
+    public interface ResourceFunction<T> {
+
+        /**
+         * Apply the function to the given resource
+         *
+         * @return The result or null if the resource is not part of the result
+         */
+        T apply(XResource resource);
+    }
+
+    /**
+     * Get a spliterator over the resources of the given reader.
+     *
+     * The reader is closed when the spliterator reaches the end.
+     */
+    public static ResourceSpliterator create(RepositoryReader reader) {
+        if (reader == null)
+            throw MESSAGES.illegalArgumentNull("reader");
+        if (reader instanceof ParallelRepositoryXMLReader)
+            return ((ParallelRepositoryXMLReader) reader).spliterator();
+        return new ReaderSpliterator(reader);
+    }
+
+    /**
+     * Get a spliterator over the given resources
+     */
+    public static ResourceSpliterator create(List<XResource> resources) {
+        if (resources == null)
+            throw MESSAGES.illegalArgumentNull("resources");
+        return new ListSpliterator(resources);
+    }
+
+    /**
+     * Get the resources of the given reader for use in a for-each loop.
+     *
+     * The resources are read with {@link RepositoryReader#nextResource()}, so that a
+     * {@link ParallelRepositoryXMLReader} parses ahead on its pool while the loop runs.
+     * The reader is closed when the loop reaches the end.
+     */
+    public static Iterable<XResource> iterable(final RepositoryReader reader) {
+        if (reader == null)
+            throw MESSAGES.illegalArgumentNull("reader");
+        return new Iterable<XResource>() {
+            private boolean used;
+
+            @Override
+            public synchronized Iterator<XResource> iterator() {
+                // The reader can only be traversed once
+                if (used)
+                    throw new IllegalStateException("Already iterated");
+                used = true;
+                return new ReaderSpliterator(reader);
+            }
+        };
+    }
+
+    /**
+     * Get the next resource from the source of this spliterator
+     *
+     * @return The resource or null if there are no more resources
+     */
+    protected abstract XResource readNext();
+
+    /**
+     * Split off a spliterator that covers a prefix of the remaining resources
+     *
+     * @return The spliterator or null if this spliterator cannot be split
+     */
+    public abstract ResourceSpliterator trySplit();
+
+    /**
+     * Get an estimate of the number of remaining resources
+     *
+     * @return The estimate or {@link Long#MAX_VALUE} if it is unknown
+     */
+    public abstract long estimateSize();
+
+    /**
+     * Get the characteristics of this spliterator
+     */
+    public abstract int characteristics();
+
+    public boolean hasCharacteristics(int characteristics) {
+        return (characteristics() & characteristics) == characteristics;
+    }
+
+    /**
+     * Get the number of remaining resources, if it is known
+     *
+     * @return The size or -1 if this spliterator is not sized
+     */
+    public long getExactSizeIfKnown() {
+        return hasCharacteristics(SIZED) ? estimateSize() : -1;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null) {
+            next = readNext();
+        }
+        return next != null;
+    }
+
+    @Override
+    public XResource next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        XResource result = next;
+        next = null;
+        return result;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Take the resource that was read by {@link #hasNext()} and not yet returned.
+     * Implementations put it at the start of a split.
+     */
+    protected final XResource takeNext() {
+        XResource result = next;
+        next = null;
+        return result;
+    }
+
+    /**
+     * Apply the given function to the remaining resources on the given pool.
+     *
+     * Splits are made while the results of earlier splits are computed, at most twice the
+     * pool parallelism are pending at a time. The remaining resources are never all in memory,
+     * unless they are collected in the result.
+     *
+     * @return The results that are not null, in encounter order
+     */
+    public <T> List<T> transform(ForkJoinPool pool, ResourceFunction<T> function) {
+        if (pool == null)
+            throw MESSAGES.illegalArgumentNull("pool");
+        if (function == null)
+            throw MESSAGES.illegalArgumentNull("function");
+
+        int maxPending = 2 * pool.getParallelism();
+        Deque<ForkJoinTask<List<T>>> pending = new ArrayDeque<ForkJoinTask<List<T>>>();
+        List<T> result = new ArrayList<T>();
+        ResourceSpliterator split = trySplit();
+        while (split != null) {
+            pending.add(pool.submit(new TransformTask<T>(split, function)));
+            if (pending.size() >= maxPending) {
+                result.addAll(pending.removeFirst().join());
+            }
+            split = trySplit();
+        }
+        // This spliterator cannot be split any further
+        TransformTask<T> rest = new TransformTask<T>(this, function);
+        pending.add(pool.submit(rest));
+        while (!pending.isEmpty()) {
+            result.addAll(pending.removeFirst().join());
+        }
+        return result;
+    }
+
+    private static final class TransformTask<T> extends RecursiveTask<List<T>> {
+
+        private static final long serialVersionUID = 1L;
+        private final ResourceSpliterator spliterator;
+        private final ResourceFunction<T> function;
+
+        TransformTask(ResourceSpliterator spliterator, ResourceFunction<T> function) {
+            this.spliterator = spliterator;
+            this.function = function;
+        }
+
+        @Override
+        protected List<T> compute() {
+            List<T> result = new ArrayList<T>();
+            while (spliterator.hasNext()) {
+                T value = function.apply(spliterator.next());
+                if (value != null) {
+                    result.add(value);
+                }
+            }
+            return result;
+        }
+    }
+
+    // Splits are batches of increasing size, like the Java 8 iterator spliterator
+    private static final class ReaderSpliterator extends ResourceSpliterator {
+
+        private static final int BATCH_UNIT = 64;
+        private static final int MAX_BATCH = 1 << 12;
+
+        private final RepositoryReader reader;
+        private int batch;
+        private boolean closed;
+
+        ReaderSpliterator(RepositoryReader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        protected synchronized XResource readNext() {
+            if (closed)
+                return null;
+            XResource result = reader.nextResource();
+            if (result == null) {
+                closed = true;
+                reader.close();
+            }
+            return result;
+        }
+
+        @Override
+        public synchronized ResourceSpliterator trySplit() {
+            batch = Math.min(batch + BATCH_UNIT, MAX_BATCH);
+            List<XResource> resources = new ArrayList<XResource>(batch);
+            XResource next = takeNext();
+            if (next != null) {
+                resources.add(next);
+            }
+            while (resources.size() < batch && (next = readNext()) != null) {
+                resources.add(next);
+            }
+            return resources.isEmpty() ? null : new ListSpliterator(resources);
+        }
+
+        @Override
+        public long estimateSize() {
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | NONNULL;
+        }
+    }
+
+    // Splits are halves of the list, it is traversed without reading ahead
+    private static final class ListSpliterator extends ResourceSpliterator {
+
+        private final List<XResource> resources;
+        private int index;
+
+        ListSpliterator(List<XResource> resources) {
+            this.resources = resources;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return index < resources.size();
+        }
+
+        @Override
+        public XResource next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return resources.get(index++);
+        }
+
+        @Override
+        protected XResource readNext() {
+            return hasNext() ? next() : null;
+        }
+
+        @Override
+        public ResourceSpliterator trySplit() {
+            int mid = (index + resources.size()) >>> 1;
+            if (mid == index)
+                return null;
+            ResourceSpliterator prefix = new ListSpliterator(resources.subList(index, mid));
+            index = mid;
+            return prefix;
+        }
+
+        @Override
+        public long estimateSize() {
+            return resources.size() - index;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | SIZED | SUBSIZED;
+        }
+    }
+}
@@ -29,6 +29,10 @@ import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Map;
 
 import org.jboss.osgi.repository.spi.AbstractContentCapability;
@@ -83,7 +87,7 @@ public final class URLResourceBuilderFactory extends XResourceBuilderFactory<XRe
         return urlres;
     }
 
-    static class URLResource extends AbstractResource implements RepositoryContent {
+    static class URLResource extends AbstractResource implements XRepositoryContent {
 
         private final URL contentURL;
 
@@ -111,6 +115,36 @@ public final class URLResourceBuilderFactory extends XResourceBuilderFactory<XRe
                 throw MESSAGES.cannotObtainInputStream(ex, this);
             }
         }
+
+        @Override
+        public Path getContentPath() {
+            if (!contentURL.getProtocol().equals("file"))
+                return null;
+            try {
+                return urlToFile(contentURL).toPath();
+            } catch (URISyntaxException ex) {
+                throw MESSAGES.invalidContentURL(contentURL.toExternalForm());
+            }
+        }
+
+        @Override
+        public FileChannel getContentChannel() throws IOException {
+            Path path = getContentPath();
+            return path != null ? FileChannel.open(path, StandardOpenOption.READ) : null;
+        }
+
+        @Override
+        public ByteBuffer mapContent() throws IOException {
+            FileChannel channel = getContentChannel();
+            if (channel == null)
+                return null;
+            try {
+                // The mapping stays valid after the channel is closed
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } finally {
+                channel.close();
+            }
+        }
     }
 
     public static File urlToFile(URL url) throws URISyntaxException
@@ -45,6 +45,65 @@ public interface XRepository extends Repository {
      * The property that defines the repository storage file.
      */
     String PROPERTY_REPOSITORY_STORAGE_FILE = "org.jboss.osgi.repository.storage.file";
+    /**
+     * The property that defines the maximum number of requirements for which the storage caches the providers.
+     * The cache is disabled by default.
+     */
+    String PROPERTY_REPOSITORY_PROVIDER_CACHE_SIZE = "org.jboss.osgi.repository.provider.cache.size";
+    /**
+     * The property that enables the compact storage mode, which shares equal attributes and directives between resources.
+     */
+    String PROPERTY_REPOSITORY_STORAGE_COMPACT = "org.jboss.osgi.repository.storage.compact";
+    /**
+     * The property that enables the journal, to which the storage appends its modifications instead of writing the repository file.
+     */
+    String PROPERTY_REPOSITORY_STORAGE_JOURNAL = "org.jboss.osgi.repository.storage.journal";
+    /**
+     * The property that enables the binary index, which is written next to the repository file and loads faster than XML.
+     */
+    String PROPERTY_REPOSITORY_STORAGE_INDEX = "org.jboss.osgi.repository.storage.index";
+    /**
+     * The property that defines when modifications are forced to disk: none, batch or operation.
+     * See {@link org.jboss.osgi.repository.spi.FileBasedRepositoryStorage.Durability}.
+     */
+    String PROPERTY_REPOSITORY_STORAGE_DURABILITY = "org.jboss.osgi.repository.storage.durability";
+    /**
+     * The property that defines the interval in milliseconds at which modifications are written to the repository file
+     * in the background. By default the repository file is written after every modification.
+     */
+    String PROPERTY_REPOSITORY_STORAGE_SNAPSHOT_INTERVAL = "org.jboss.osgi.repository.storage.snapshot.interval";
+    /**
+     * The property that defines the number of modifications after which the repository file is written in the background,
+     * before the snapshot interval has passed.
+     */
+    String PROPERTY_REPOSITORY_STORAGE_SNAPSHOT_MUTATIONS = "org.jboss.osgi.repository.storage.snapshot.mutations";
+    /**
+     * The property that enables loading the repository storage on a background thread, after the repository is registered.
+     */
+    String PROPERTY_REPOSITORY_STORAGE_ASYNC = "org.jboss.osgi.repository.storage.async";
+    /**
+     * The property that defines the time in milliseconds that queries wait for a storage that is loaded in the background.
+     * Queries that are made while the storage is still loading after that go to the repository delegates.
+     */
+    String PROPERTY_REPOSITORY_STORAGE_LOAD_TIMEOUT = "org.jboss.osgi.repository.storage.load.timeout";
+    /**
+     * The property that defines the type of the repository storage: file or disk.
+     * The disk storage keeps the resources and their indexes on disk, instead of in memory.
+     */
+    String PROPERTY_REPOSITORY_STORAGE_TYPE = "org.jboss.osgi.repository.storage.type";
+    /**
+     * The property that defines the maximum number of index pages that the disk storage keeps in memory.
+     */
+    String PROPERTY_REPOSITORY_STORAGE_PAGE_CACHE_SIZE = "org.jboss.osgi.repository.storage.page.cache.size";
+    /**
+     * The property that defines the maximum number of resources that the disk storage keeps in memory.
+     */
+    String PROPERTY_REPOSITORY_STORAGE_RESOURCE_CACHE_SIZE = "org.jboss.osgi.repository.storage.resource.cache.size";
+    /**
+     * The property that defines the maximum number of removed resources that the storage remembers,
+     * so that the changes after an increment can be read.
+     */
+    String PROPERTY_REPOSITORY_STORAGE_TOMBSTONES = "org.jboss.osgi.repository.storage.tombstones";
 
     /**
      * Get the name for this repository
@@ -0,0 +1,60 @@
+/*
+ * #%L
+ * JBossOSGi Resolver API
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.jboss.osgi.repository;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+import org.osgi.service.repository.RepositoryContent;
+
+/**
+ * Repository content that gives direct access to local content files.
+ *
+ * Content that is not a local file, such as a remote URL, is only available as a stream.
+ *
+ * @author agent@local
+ * @since 18-Oct-2026
+ */
+public interface XRepositoryContent extends RepositoryContent {
+
+    /**
+     * The path to the content
+     *
+     * @return The path or null if the content is not a local file
+     */
+    Path getContentPath();
+
+    /**
+     * Open a read-only channel to the content, which the caller must close.
+     * The channel can be used to transfer the content without copying it through the heap.
+     *
+     * @return The channel or null if the content is not a local file
+     */
+    FileChannel getContentChannel() throws IOException;
+
+    /**
+     * Map the content into memory read-only
+     *
+     * @return The mapped content or null if the content is not a local file
+     */
+    ByteBuffer mapContent() throws IOException;
+}
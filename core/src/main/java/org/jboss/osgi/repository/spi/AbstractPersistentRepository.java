@@ -25,7 +25,10 @@ import static org.jboss.osgi.repository.RepositoryMessages.MESSAGES;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.jboss.osgi.repository.RepositoryStorage;
 import org.jboss.osgi.repository.RepositoryStorageFactory;
@@ -111,15 +114,34 @@ public class AbstractPersistentRepository extends AbstractRepository implements
             for (XRepository delegate : delegates) {
                 Collection<Capability> caps = delegate.findProviders(req);
                 if (!caps.isEmpty()) {
-                    // Add the delegate resources to the storage
+                    // Do not wait for a storage that is still loading
+                    if (!storage.isReady()) {
+                        providers.addAll(caps);
+                        break;
+                    }
+                    // Add the delegate resources to the storage in one batch
+                    Map<IdentityKey, XResource> storageResources = new HashMap<IdentityKey, XResource>();
+                    Map<IdentityKey, XResource> missing = new LinkedHashMap<IdentityKey, XResource>();
                     for (Capability cap : caps) {
                         XResource res = (XResource) cap.getResource();
                         XIdentityCapability icap = res.getIdentityCapability();
+                        IdentityKey key = IdentityKey.create(icap);
                         XResource storageResource = storage.getResource(icap);
-                        if (storageResource == null) {
-                            storageResource = storage.addResource(res);
+                        if (storageResource != null) {
+                            storageResources.put(key, storageResource);
+                        } else {
+                            missing.put(key, res);
+                        }
+                    }
+                    if (!missing.isEmpty()) {
+                        for (XResource res : storage.addResources(missing.values())) {
+                            storageResources.put(IdentityKey.create(res.getIdentityCapability()), res);
                         }
-                        providers.add(storageResource.getIdentityCapability());
+                    }
+                    for (Capability cap : caps) {
+                        XResource res = (XResource) cap.getResource();
+                        IdentityKey key = IdentityKey.create(res.getIdentityCapability());
+                        providers.add(storageResources.get(key).getIdentityCapability());
                     }
                     break;
                 }
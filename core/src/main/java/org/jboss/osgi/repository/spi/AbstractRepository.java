@@ -26,6 +26,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -34,6 +35,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.jar.JarFile;
 import java.util.jar.JarInputStream;
 import java.util.jar.Manifest;
 
@@ -42,6 +44,7 @@ import org.jboss.osgi.metadata.OSGiMetaData;
 import org.jboss.osgi.metadata.OSGiMetaDataBuilder;
 import org.jboss.osgi.repository.URLResourceBuilderFactory;
 import org.jboss.osgi.repository.XRepository;
+import org.jboss.osgi.repository.XRepositoryContent;
 import org.jboss.osgi.repository.internal.ExpressionCombinerImpl;
 import org.jboss.osgi.repository.internal.RequirementBuilderImpl;
 import org.jboss.osgi.resolver.XCapability;
@@ -276,7 +279,15 @@ public abstract class AbstractRepository implements XRepository {
 
     protected Manifest getResourceManifest(XResource resource) throws IOException {
         Manifest manifest = null;
-        if (resource instanceof RepositoryContent) {
+        Path contentPath = resource instanceof XRepositoryContent ? ((XRepositoryContent) resource).getContentPath() : null;
+        if (contentPath != null) {
+            // Read the manifest entry directly, instead of streaming the whole archive
+            try (JarFile jarFile = new JarFile(contentPath.toFile())) {
+                manifest = jarFile.getManifest();
+            } catch (IOException ex) {
+                LOGGER.debugf("Cannot access manifest from: %s", resource);
+            }
+        } else if (resource instanceof RepositoryContent) {
             try (InputStream content = ((RepositoryContent) resource).getContent();
                     JarInputStream jis = new JarInputStream(content)) {
                 manifest = jis.getManifest();
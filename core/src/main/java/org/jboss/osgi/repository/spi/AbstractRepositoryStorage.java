@@ -0,0 +1,76 @@
+package org.jboss.osgi.repository.spi;
+/*
+ * #%L
+ * JBossOSGi Repository
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import static org.jboss.osgi.repository.RepositoryMessages.MESSAGES;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.jboss.osgi.repository.RepositoryDeltaReader;
+import org.jboss.osgi.repository.RepositoryStorage;
+import org.jboss.osgi.repository.RepositoryStorageException;
+import org.jboss.osgi.resolver.XResource;
+
+/**
+ * An abstract {@link RepositoryStorage} that provides defaults for the optional methods.
+ *
+ * A storage that extends this class is always ready and does not know its changes.
+ * It adds and removes a batch one resource at a time, so the batch is neither validated
+ * up front nor applied at a single increment. Storages that can do better override these methods.
+ *
+ * @author agent@local
+ * @since 18-Oct-2026
+ */
+public abstract class AbstractRepositoryStorage implements RepositoryStorage {
+
+    @Override
+    public boolean isReady() {
+        return true;
+    }
+
+    @Override
+    public RepositoryDeltaReader getRepositoryDeltaReader(long increment) {
+        return null;
+    }
+
+    @Override
+    public List<XResource> addResources(Collection<XResource> resources) throws RepositoryStorageException {
+        if (resources == null)
+            throw MESSAGES.illegalArgumentNull("resources");
+        List<XResource> result = new ArrayList<XResource>(resources.size());
+        for (XResource res : resources) {
+            result.add(addResource(res));
+        }
+        return result;
+    }
+
+    @Override
+    public boolean removeResources(Collection<XResource> resources) throws RepositoryStorageException {
+        if (resources == null)
+            throw MESSAGES.illegalArgumentNull("resources");
+        boolean result = true;
+        for (XResource res : resources) {
+            result &= removeResource(res);
+        }
+        return result;
+    }
+}
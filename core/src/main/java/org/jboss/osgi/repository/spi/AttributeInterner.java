@@ -0,0 +1,112 @@
+/*
+ * #%L
+ * JBossOSGi Repository
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.jboss.osgi.repository.spi;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.osgi.framework.Version;
+
+/**
+ * Shares equal attribute names, attribute values and directive maps between resources.
+ *
+ * Large repositories contain many equal namespace names, attribute keys, versions and
+ * directives. Resources that are built from interned maps refer to a single instance
+ * of each of them. The pool only holds weak references, so values that are no longer
+ * used by any resource can be garbage collected.
+ *
+ * @author agent@local
+ * @since 18-Oct-2026
+ */
+public final class AttributeInterner {
+
+    private final Map<Object, WeakReference<Object>> pool = new WeakHashMap<Object, WeakReference<Object>>();
+
+    /**
+     * Get the shared instance of the given string
+     */
+    public String intern(String value) {
+        return value != null ? (String) internObject(value) : null;
+    }
+
+    /**
+     * Get the shared instance of the given attribute value.
+     *
+     * Strings, versions and numbers are shared. The elements of a list are shared,
+     * the list itself is copied. Values of other types are returned as they are.
+     */
+    public Object internValue(Object value) {
+        if (value instanceof String || value instanceof Version || value instanceof Long || value instanceof Double) {
+            return internObject(value);
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            List<Object> result = new ArrayList<Object>(list.size());
+            for (Object element : list) {
+                result.add(internValue(element));
+            }
+            return result;
+        }
+        return value;
+    }
+
+    /**
+     * Get a copy of the given attributes with shared names and values
+     */
+    public Map<String, Object> internAttributes(Map<String, Object> attributes) {
+        if (attributes == null)
+            return null;
+
+        Map<String, Object> result = new HashMap<String, Object>();
+        for (Map.Entry<String, Object> entry : attributes.entrySet()) {
+            result.put(intern(entry.getKey()), internValue(entry.getValue()));
+        }
+        return result;
+    }
+
+    /**
+     * Get the shared, unmodifiable instance of the given directives
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String, String> internDirectives(Map<String, String> directives) {
+        if (directives == null)
+            return null;
+
+        Map<String, String> result = new HashMap<String, String>();
+        for (Map.Entry<String, String> entry : directives.entrySet()) {
+            result.put(intern(entry.getKey()), intern(entry.getValue()));
+        }
+        return (Map<String, String>) internObject(Collections.unmodifiableMap(result));
+    }
+
+    private synchronized Object internObject(Object value) {
+        WeakReference<Object> ref = pool.get(value);
+        Object result = ref != null ? ref.get() : null;
+        if (result == null) {
+            pool.put(value, new WeakReference<Object>(value));
+            result = value;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * #%L
+ * JBossOSGi Repository
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.jboss.osgi.repository.spi;
+
+import static org.jboss.osgi.repository.RepositoryLogger.LOGGER;
+import static org.jboss.osgi.repository.RepositoryMessages.MESSAGES;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.osgi.repository.RepositoryDeltaReader;
+import org.jboss.osgi.repository.RepositoryReader;
+import org.jboss.osgi.repository.RepositoryStorage;
+import org.jboss.osgi.repository.RepositoryStorageException;
+import org.jboss.osgi.repository.RepositoryStorageFactory;
+import org.jboss.osgi.repository.XRepository;
+import org.jboss.osgi.resolver.XIdentityCapability;
+import org.jboss.osgi.resolver.XResource;
+import org.osgi.resource.Capability;
+import org.osgi.resource.Requirement;
+import org.osgi.util.promise.Deferred;
+import org.osgi.util.promise.Promise;
+
+/**
+ * A {@link RepositoryStorage} that is created by another factory on a background thread.
+ *
+ * Queries wait for the storage up to the load timeout. If it is still loading after that,
+ * they behave as if the storage was empty, so that the repository goes to its delegates.
+ * Modifications and readers always wait until the storage is loaded.
+ *
+ * @author agent@local
+ * @since 18-Oct-2026
+ */
+public class BackgroundRepositoryStorage extends AbstractRepositoryStorage {
+
+    private final XRepository repository;
+    private final long loadTimeout;
+    private final long startTime;
+    private final CountDownLatch loadLatch = new CountDownLatch(1);
+    private final Deferred<RepositoryStorage> deferred = new Deferred<RepositoryStorage>();
+    private volatile RepositoryStorage storage;
+    private volatile Throwable failure;
+    private volatile long loadDuration = -1;
+    private final AtomicLong loadedResources = new AtomicLong();
+
+    /**
+     * Start loading the storage from the given factory
+     *
+     * @param loadTimeout The time in milliseconds that queries wait for the storage
+     */
+    public BackgroundRepositoryStorage(XRepository repository, final RepositoryStorageFactory factory, long loadTimeout) {
+        if (repository == null)
+            throw MESSAGES.illegalArgumentNull("repository");
+        if (factory == null)
+            throw MESSAGES.illegalArgumentNull("factory");
+        if (loadTimeout < 0)
+            throw MESSAGES.illegalArgumentNegative("loadTimeout");
+
+        this.repository = repository;
+        this.loadTimeout = loadTimeout;
+        this.startTime = System.currentTimeMillis();
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                load(factory);
+            }
+        }, "RepositoryStorageLoader");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void load(RepositoryStorageFactory factory) {
+        LOGGER.debugf("Loading repository storage: %s", repository.getName());
+        RepositoryStorage result;
+        LoadProgress.begin(loadedResources);
+        try {
+            result = factory.create(repository);
+        } catch (Throwable th) {
+            failure = th;
+            loadDuration = System.currentTimeMillis() - startTime;
+            LOGGER.errorCannotLoadRepositoryStorage(th, repository.getName());
+            loadLatch.countDown();
+            deferred.fail(th);
+            return;
+        } finally {
+            LoadProgress.end();
+        }
+        storage = result;
+        loadDuration = System.currentTimeMillis() - startTime;
+        LOGGER.infoRepositoryStorageLoaded(repository.getName(), loadDuration);
+        loadLatch.countDown();
+        deferred.resolve(result);
+    }
+
+    /**
+     * Get the promise that is resolved with the loaded storage, or failed if it cannot be loaded
+     */
+    public Promise<RepositoryStorage> getReadyPromise() {
+        return deferred.getPromise();
+    }
+
+    /**
+     * True if the storage is loaded
+     */
+    @Override
+    public boolean isReady() {
+        return storage != null;
+    }
+
+    /**
+     * Get the number of resources that were read while loading, so far.
+     *
+     * Storages that read their resources when they are created report them, like the
+     * file based storage. Storages that keep their resources on disk read none.
+     */
+    public long getLoadedResourceCount() {
+        return loadedResources.get();
+    }
+
+    /**
+     * Get the time in milliseconds that loading took, or has taken so far
+     */
+    public long getLoadDuration() {
+        long duration = loadDuration;
+        return duration >= 0 ? duration : System.currentTimeMillis() - startTime;
+    }
+
+    /**
+     * Wait until the storage is loaded
+     *
+     * @throws RepositoryStorageException if the storage cannot be loaded
+     */
+    public RepositoryStorage awaitStorage() throws RepositoryStorageException {
+        try {
+            loadLatch.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw MESSAGES.cannotLoadRepositoryStorage(ex, repository.getName());
+        }
+        return getLoadedStorage();
+    }
+
+    // Returns null if the storage is not loaded within the timeout
+    private RepositoryStorage awaitStorage(long timeout) throws RepositoryStorageException {
+        try {
+            if (!loadLatch.await(timeout, TimeUnit.MILLISECONDS))
+                return null;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        return getLoadedStorage();
+    }
+
+    private RepositoryStorage getLoadedStorage() {
+        if (failure != null)
+            throw MESSAGES.cannotLoadRepositoryStorage(failure, repository.getName());
+        return storage;
+    }
+
+    @Override
+    public XRepository getRepository() {
+        return repository;
+    }
+
+    @Override
+    public Collection<Capability> findProviders(Requirement requirement) {
+        RepositoryStorage loaded = awaitStorage(loadTimeout);
+        if (loaded == null) {
+            LOGGER.debugf("Repository storage not loaded after %d ms, no providers for: %s", getLoadDuration(), requirement);
+            return Collections.emptyList();
+        }
+        return loaded.findProviders(requirement);
+    }
+
+    @Override
+    public XResource getResource(XIdentityCapability icap) {
+        RepositoryStorage loaded = awaitStorage(loadTimeout);
+        return loaded != null ? loaded.getResource(icap) : null;
+    }
+
+    @Override
+    public RepositoryReader getRepositoryReader() {
+        return awaitStorage().getRepositoryReader();
+    }
+
+    @Override
+    public RepositoryDeltaReader getRepositoryDeltaReader(long increment) {
+        return awaitStorage().getRepositoryDeltaReader(increment);
+    }
+
+    @Override
+    public XResource addResource(XResource resource) throws RepositoryStorageException {
+        return awaitStorage().addResource(resource);
+    }
+
+    @Override
+    public List<XResource> addResources(Collection<XResource> resources) throws RepositoryStorageException {
+        return awaitStorage().addResources(resources);
+    }
+
+    @Override
+    public boolean removeResource(XResource resource) throws RepositoryStorageException {
+        return awaitStorage().removeResource(resource);
+    }
+
+    @Override
+    public boolean removeResources(Collection<XResource> resources) throws RepositoryStorageException {
+        return awaitStorage().removeResources(resources);
+    }
+
+    @Override
+    public String toString() {
+        return "BackgroundRepositoryStorage[" + repository.getName() + ",ready=" + isReady() + "]";
+    }
+}
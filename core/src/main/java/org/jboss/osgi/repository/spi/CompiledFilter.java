@@ -0,0 +1,605 @@
+/*
+ * #%L
+ * JBossOSGi Repository
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.jboss.osgi.repository.spi;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.osgi.framework.Version;
+
+/**
+ * A requirement filter compiled to a predicate over capability attributes.
+ *
+ * The predicate reads the attribute map directly. Like {@link org.osgi.framework.Filter#match(java.util.Dictionary)}
+ * attribute names are case insensitive. The operands are parsed once to {@link Version}, {@link Long} and
+ * {@link Double} so that typed attribute values can be compared without conversion. The elements of
+ * {@link Collection} and array values are matched individually.
+ *
+ * Compiled filters are immutable and cached by their filter string.
+ *
+ * @author agent@local
+ * @since 18-Oct-2026
+ */
+final class CompiledFilter {
+
+    private static final int MAX_CACHED_FILTERS = 1024;
+    private static final ConcurrentMap<String, CompiledFilter> compiledFilters = new ConcurrentHashMap<String, CompiledFilter>();
+
+    private final String filter;
+    private final Node root;
+    private final FilterAnalyzer analyzer;
+
+    private CompiledFilter(String filter, Node root) {
+        this.filter = filter;
+        this.root = root;
+        this.analyzer = FilterAnalyzer.analyze(filter);
+    }
+
+    /**
+     * Get the compiled form of the given filter
+     *
+     * @return The compiled filter or null if the filter has invalid syntax
+     */
+    static CompiledFilter compile(String filter) {
+        CompiledFilter result = compiledFilters.get(filter);
+        if (result == null) {
+            Node root;
+            try {
+                root = new Parser(filter).parse();
+            } catch (IllegalArgumentException ex) {
+                return null;
+            }
+            // Keep the cache bounded, compiling again is cheap
+            if (compiledFilters.size() >= MAX_CACHED_FILTERS) {
+                compiledFilters.clear();
+            }
+            result = new CompiledFilter(filter, root);
+            CompiledFilter other = compiledFilters.putIfAbsent(filter, result);
+            result = other != null ? other : result;
+        }
+        return result;
+    }
+
+    FilterAnalyzer getAnalyzer() {
+        return analyzer;
+    }
+
+    boolean matches(Map<String, ?> attributes) {
+        return root.matches(attributes);
+    }
+
+    @Override
+    public String toString() {
+        return filter;
+    }
+
+    private static Object getAttribute(Map<String, ?> attributes, String name) {
+        Object value = attributes.get(name);
+        if (value == null) {
+            for (Map.Entry<String, ?> entry : attributes.entrySet()) {
+                if (name.equalsIgnoreCase(entry.getKey())) {
+                    return entry.getValue();
+                }
+            }
+        }
+        return value;
+    }
+
+    private static String approxString(String value) {
+        StringBuilder builder = null;
+        for (int i = 0; i < value.length(); i++) {
+            char ch = value.charAt(i);
+            if (Character.isWhitespace(ch)) {
+                if (builder == null) {
+                    builder = new StringBuilder(value.substring(0, i));
+                }
+            } else if (builder != null) {
+                builder.append(ch);
+            }
+        }
+        return builder != null ? builder.toString() : value;
+    }
+
+    private abstract static class Node {
+        abstract boolean matches(Map<String, ?> attributes);
+    }
+
+    private static final class And extends Node {
+        private final Node[] operands;
+
+        And(Node[] operands) {
+            this.operands = operands;
+        }
+
+        @Override
+        boolean matches(Map<String, ?> attributes) {
+            for (Node operand : operands) {
+                if (!operand.matches(attributes))
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    private static final class Or extends Node {
+        private final Node[] operands;
+
+        Or(Node[] operands) {
+            this.operands = operands;
+        }
+
+        @Override
+        boolean matches(Map<String, ?> attributes) {
+            for (Node operand : operands) {
+                if (operand.matches(attributes))
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    private static final class Not extends Node {
+        private final Node operand;
+
+        Not(Node operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        boolean matches(Map<String, ?> attributes) {
+            return !operand.matches(attributes);
+        }
+    }
+
+    private static final class Present extends Node {
+        private final String attribute;
+
+        Present(String attribute) {
+            this.attribute = attribute;
+        }
+
+        @Override
+        boolean matches(Map<String, ?> attributes) {
+            return getAttribute(attributes, attribute) != null;
+        }
+    }
+
+    /**
+     * An item that compares the attribute value, or each of its elements, with an operand.
+     */
+    private abstract static class Item extends Node {
+        final String attribute;
+
+        Item(String attribute) {
+            this.attribute = attribute;
+        }
+
+        @Override
+        boolean matches(Map<String, ?> attributes) {
+            Object value = getAttribute(attributes, attribute);
+            if (value == null) {
+                return false;
+            } else if (value instanceof Collection) {
+                for (Object element : (Collection<?>) value) {
+                    if (element != null && matchesValue(element))
+                        return true;
+                }
+                return false;
+            } else if (value.getClass().isArray()) {
+                int length = Array.getLength(value);
+                for (int i = 0; i < length; i++) {
+                    Object element = Array.get(value, i);
+                    if (element != null && matchesValue(element))
+                        return true;
+                }
+                return false;
+            }
+            return matchesValue(value);
+        }
+
+        abstract boolean matchesValue(Object value);
+    }
+
+    private static final class Substring extends Item {
+        // The fixed parts of the pattern, null stands for a wildcard
+        private final String[] parts;
+
+        Substring(String attribute, String[] parts) {
+            super(attribute);
+            this.parts = parts;
+        }
+
+        @Override
+        boolean matchesValue(Object value) {
+            if (!(value instanceof String))
+                return false;
+
+            String string = (String) value;
+            int pos = 0;
+            for (int i = 0; i < parts.length; i++) {
+                String part = parts[i];
+                if (i + 1 < parts.length) {
+                    if (part == null) {
+                        String next = parts[i + 1];
+                        if (next == null)
+                            continue;
+                        int index = string.indexOf(next, pos);
+                        if (index < 0)
+                            return false;
+                        pos = index + next.length();
+                        if (i + 2 < parts.length)
+                            i++;
+                    } else {
+                        if (!string.regionMatches(pos, part, 0, part.length()))
+                            return false;
+                        pos += part.length();
+                    }
+                } else {
+                    return part == null || string.endsWith(part);
+                }
+            }
+            return true;
+        }
+    }
+
+    private enum Operator {
+        EQUAL, APPROX, GREATER_EQUAL, LESS_EQUAL
+    }
+
+    private static final class Compare extends Item {
+        private final Operator operator;
+        private final String operand;
+        private final String trimmed;
+        private final String approxOperand;
+        private final Version versionOperand;
+        private final Long longOperand;
+        private final Double doubleOperand;
+
+        Compare(String attribute, Operator operator, String operand) {
+            super(attribute);
+            this.operator = operator;
+            this.operand = operand;
+            this.trimmed = operand.trim();
+            this.approxOperand = approxString(operand);
+            this.versionOperand = parseVersion(trimmed);
+            this.longOperand = parseLong(trimmed);
+            this.doubleOperand = parseDouble(trimmed);
+        }
+
+        @Override
+        boolean matchesValue(Object value) {
+            if (value instanceof String) {
+                return compareString((String) value);
+            } else if (value instanceof Version) {
+                return versionOperand != null && compare(((Version) value).compareTo(versionOperand));
+            } else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                return compareLong(((Number) value).longValue(), value);
+            } else if (value instanceof Double) {
+                return doubleOperand != null && compare(Double.compare((Double) value, doubleOperand));
+            } else if (value instanceof Float) {
+                try {
+                    return compare(Float.compare((Float) value, Float.parseFloat(trimmed)));
+                } catch (NumberFormatException ex) {
+                    return false;
+                }
+            } else if (value instanceof Boolean) {
+                return value.equals(Boolean.valueOf(trimmed));
+            } else if (value instanceof Character) {
+                return compareCharacter((Character) value);
+            }
+            return compareObject(value);
+        }
+
+        private boolean compare(int comp) {
+            switch (operator) {
+                case EQUAL:
+                case APPROX:
+                    return comp == 0;
+                case GREATER_EQUAL:
+                    return comp >= 0;
+                case LESS_EQUAL:
+                    return comp <= 0;
+                default:
+                    return false;
+            }
+        }
+
+        private boolean compareString(String value) {
+            switch (operator) {
+                case EQUAL:
+                    return value.equals(operand);
+                case APPROX:
+                    return approxString(value).equalsIgnoreCase(approxOperand);
+                case GREATER_EQUAL:
+                    return value.compareTo(operand) >= 0;
+                case LESS_EQUAL:
+                    return value.compareTo(operand) <= 0;
+                default:
+                    return false;
+            }
+        }
+
+        private boolean compareLong(long value, Object type) {
+            if (longOperand == null)
+                return false;
+            // The operand must be in the range of the attribute type
+            long other = longOperand;
+            if (type instanceof Integer && (other < Integer.MIN_VALUE || other > Integer.MAX_VALUE))
+                return false;
+            if (type instanceof Short && (other < Short.MIN_VALUE || other > Short.MAX_VALUE))
+                return false;
+            if (type instanceof Byte && (other < Byte.MIN_VALUE || other > Byte.MAX_VALUE))
+                return false;
+            return compare(value < other ? -1 : (value == other ? 0 : 1));
+        }
+
+        private boolean compareCharacter(char value) {
+            if (trimmed.isEmpty())
+                return false;
+            char other = trimmed.charAt(0);
+            if (operator == Operator.APPROX) {
+                return value == other || Character.toUpperCase(value) == Character.toUpperCase(other)
+                        || Character.toLowerCase(value) == Character.toLowerCase(other);
+            }
+            return compare(value - other);
+        }
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        private boolean compareObject(Object value) {
+            Object other = valueOf(value.getClass(), trimmed);
+            if (other == null)
+                return false;
+            if (value instanceof Comparable) {
+                return compare(((Comparable) value).compareTo(other));
+            }
+            return value.equals(other);
+        }
+
+        private static Object valueOf(Class<?> type, String value) {
+            try {
+                Method method = type.getMethod("valueOf", String.class);
+                if (Modifier.isStatic(method.getModifiers()) && type.isAssignableFrom(method.getReturnType())) {
+                    return method.invoke(null, value);
+                }
+            } catch (Exception ex) {
+                // try the constructor
+            }
+            try {
+                Constructor<?> ctor = type.getConstructor(String.class);
+                return ctor.newInstance(value);
+            } catch (Exception ex) {
+                return null;
+            }
+        }
+
+        private static Version parseVersion(String value) {
+            if (!value.isEmpty() && !Character.isDigit(value.charAt(0)))
+                return null;
+            try {
+                return Version.parseVersion(value);
+            } catch (IllegalArgumentException ex) {
+                return null;
+            }
+        }
+
+        private static Long parseLong(String value) {
+            try {
+                return Long.valueOf(value);
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+        }
+
+        private static Double parseDouble(String value) {
+            try {
+                return Double.valueOf(value);
+            } catch (NumberFormatException ex) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * A parser for the RFC 1960 based filter syntax.
+     * Syntax errors are reported as {@link IllegalArgumentException}.
+     */
+    private static final class Parser {
+        private final String filter;
+        private int pos;
+
+        Parser(String filter) {
+            this.filter = filter;
+        }
+
+        Node parse() {
+            Node result = parseFilter();
+            skipWhitespace();
+            if (pos != filter.length())
+                throw syntaxError("Extraneous trailing characters");
+            return result;
+        }
+
+        private Node parseFilter() {
+            skipWhitespace();
+            expect('(');
+            Node result = parseFilterComp();
+            skipWhitespace();
+            expect(')');
+            return result;
+        }
+
+        private Node parseFilterComp() {
+            skipWhitespace();
+            char ch = peek();
+            switch (ch) {
+                case '&':
+                    pos++;
+                    return new And(parseFilterList());
+                case '|':
+                    pos++;
+                    return new Or(parseFilterList());
+                case '!':
+                    pos++;
+                    return new Not(parseFilter());
+                default:
+                    return parseItem();
+            }
+        }
+
+        private Node[] parseFilterList() {
+            List<Node> operands = new ArrayList<Node>();
+            skipWhitespace();
+            while (pos < filter.length() && filter.charAt(pos) == '(') {
+                operands.add(parseFilter());
+                skipWhitespace();
+            }
+            if (operands.isEmpty())
+                throw syntaxError("Missing filter operands");
+            return operands.toArray(new Node[operands.size()]);
+        }
+
+        private Node parseItem() {
+            String attribute = parseAttribute();
+            char ch = peek();
+            switch (ch) {
+                case '~':
+                    pos++;
+                    expect('=');
+                    return new Compare(attribute, Operator.APPROX, parseValue());
+                case '>':
+                    pos++;
+                    expect('=');
+                    return new Compare(attribute, Operator.GREATER_EQUAL, parseValue());
+                case '<':
+                    pos++;
+                    expect('=');
+                    return new Compare(attribute, Operator.LESS_EQUAL, parseValue());
+                case '=':
+                    pos++;
+                    return parseSubstring(attribute);
+                default:
+                    throw syntaxError("Invalid operator");
+            }
+        }
+
+        private String parseAttribute() {
+            skipWhitespace();
+            int start = pos;
+            int end = pos;
+            while (pos < filter.length()) {
+                char ch = filter.charAt(pos);
+                if (ch == '~' || ch == '<' || ch == '>' || ch == '=' || ch == '(' || ch == ')')
+                    break;
+                if (!Character.isWhitespace(ch))
+                    end = pos + 1;
+                pos++;
+            }
+            if (end == start)
+                throw syntaxError("Missing attribute name");
+            return filter.substring(start, end);
+        }
+
+        private String parseValue() {
+            StringBuilder builder = new StringBuilder();
+            while (true) {
+                char ch = peek();
+                if (ch == ')')
+                    break;
+                if (ch == '(')
+                    throw syntaxError("Invalid value");
+                pos++;
+                if (ch == '\\') {
+                    ch = peek();
+                    pos++;
+                }
+                builder.append(ch);
+            }
+            if (builder.length() == 0)
+                throw syntaxError("Missing value");
+            return builder.toString();
+        }
+
+        private Node parseSubstring(String attribute) {
+            List<String> parts = new ArrayList<String>();
+            StringBuilder builder = new StringBuilder();
+            while (true) {
+                char ch = peek();
+                if (ch == ')')
+                    break;
+                if (ch == '(')
+                    throw syntaxError("Invalid value");
+                pos++;
+                if (ch == '*') {
+                    if (builder.length() > 0) {
+                        parts.add(builder.toString());
+                        builder.setLength(0);
+                    }
+                    parts.add(null);
+                    continue;
+                }
+                if (ch == '\\') {
+                    ch = peek();
+                    pos++;
+                }
+                builder.append(ch);
+            }
+            if (builder.length() > 0) {
+                parts.add(builder.toString());
+            }
+            if (parts.isEmpty()) {
+                return new Compare(attribute, Operator.EQUAL, "");
+            } else if (parts.size() == 1) {
+                String part = parts.get(0);
+                return part != null ? new Compare(attribute, Operator.EQUAL, part) : new Present(attribute);
+            }
+            return new Substring(attribute, parts.toArray(new String[parts.size()]));
+        }
+
+        private char peek() {
+            if (pos >= filter.length())
+                throw syntaxError("Unexpected end of filter");
+            return filter.charAt(pos);
+        }
+
+        private void expect(char ch) {
+            if (peek() != ch)
+                throw syntaxError("Expected '" + ch + "'");
+            pos++;
+        }
+
+        private void skipWhitespace() {
+            while (pos < filter.length() && Character.isWhitespace(filter.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        private IllegalArgumentException syntaxError(String message) {
+            return new IllegalArgumentException(message + " at " + pos + ": " + filter);
+        }
+    }
+}
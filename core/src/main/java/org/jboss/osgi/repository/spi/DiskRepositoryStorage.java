@@ -0,0 +1,747 @@
+/*
+ * #%L
+ * JBossOSGi Repository
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.jboss.osgi.repository.spi;
+
+import static org.jboss.osgi.repository.RepositoryLogger.LOGGER;
+import static org.jboss.osgi.repository.RepositoryMessages.MESSAGES;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jboss.osgi.repository.RepositoryDeltaReader;
+import org.jboss.osgi.repository.RepositoryReader;
+import org.jboss.osgi.repository.RepositoryStorage;
+import org.jboss.osgi.repository.RepositoryStorageException;
+import org.jboss.osgi.repository.RepositoryStorageFactory;
+import org.jboss.osgi.repository.XRepository;
+import org.jboss.osgi.repository.spi.MavenIdentityRepository.ConfigurationPropertyProvider;
+import org.jboss.osgi.resolver.XCapability;
+import org.jboss.osgi.resolver.XIdentityCapability;
+import org.jboss.osgi.resolver.XResource;
+import org.osgi.framework.Version;
+import org.osgi.resource.Capability;
+import org.osgi.resource.Namespace;
+import org.osgi.resource.Requirement;
+
+/**
+ * A {@link RepositoryStorage} that keeps its resources on disk, so that repositories that are larger
+ * than the heap can be served.
+ *
+ * The resources are encoded as records in a record file. A {@link PagedBTree} maps the resource ids
+ * to their records and indexes the identity and the capabilities of every resource. Only a bounded
+ * number of tree pages and decoded resources are kept in memory. Queries read the index and decode
+ * the resources they need, resources that are in the resource cache are returned as the same instance.
+ *
+ * The storage is locked for queries and modifications. Every modification is forced to disk before it
+ * returns. A modification that fails is rolled back, one that did not complete because the process died
+ * is dropped when the store is opened the next time. If the rollback itself fails, the storage rejects
+ * all further calls. Records of removed resources are not reclaimed.
+ *
+ * The resources are also indexed by the increment they were added at, and a bounded number of
+ * removed resources is kept as tombstones, so that the changes after a recent increment can be read.
+ *
+ * Resource content is referenced by its URL, it is not copied into the storage.
+ *
+ * @author agent@local
+ * @since 18-Oct-2026
+ */
+public class DiskRepositoryStorage extends AbstractRepositoryStorage {
+
+    public static final String TREE_FILE_NAME = "repository.tree";
+    public static final String RECORDS_FILE_NAME = "repository.records";
+
+    // The default number of cached pages, which is 4MB
+    private static final int DEFAULT_PAGE_CACHE_SIZE = 1024;
+    private static final int DEFAULT_RESOURCE_CACHE_SIZE = 1024;
+    // The number of resources that a reader decodes at a time
+    private static final int READER_BATCH_SIZE = 64;
+    // Longer strings are shortened in the index keys, the indexed resources are verified when they are read
+    private static final int MAX_KEY_STRING_LENGTH = 64;
+
+    private static final byte KEY_RESOURCE = 'r';
+    private static final byte KEY_IDENTITY = 'i';
+    private static final byte KEY_CAPABILITY = 'c';
+    private static final byte KEY_ADDED = 'a';
+    private static final byte KEY_TOMBSTONE = 't';
+    private static final byte[] RESOURCE_PREFIX = new byte[] { KEY_RESOURCE };
+    private static final byte[] ADDED_PREFIX = new byte[] { KEY_ADDED };
+    private static final byte[] TOMBSTONE_PREFIX = new byte[] { KEY_TOMBSTONE };
+    private static final byte[] NO_VALUE = new byte[0];
+
+    private static final int META_INCREMENT = 0;
+    private static final int META_SEQUENCE = 1;
+    private static final int META_RECORDS_LENGTH = 2;
+    // The increment from which the changes are known and the number of tombstones
+    private static final int META_DELTA_INCREMENT = 3;
+    private static final int META_TOMBSTONE_COUNT = 4;
+    private static final int DEFAULT_TOMBSTONE_RETENTION = 64 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final XRepository repository;
+    private final PagedBTree tree;
+    private final File recordsFile;
+    private final FileChannel records;
+    private final ResourceCache resourceCache;
+    private final int tombstoneRetention;
+    // The failure of a rollback, after which the tree may not match the files
+    private IOException failure;
+
+    public static final class Factory implements RepositoryStorageFactory {
+
+        private final File storageDir;
+        private final ConfigurationPropertyProvider propProvider;
+
+        public Factory(File storageDir, ConfigurationPropertyProvider propProvider) {
+            this.storageDir = storageDir;
+            this.propProvider = propProvider;
+        }
+
+        @Override
+        public RepositoryStorage create(XRepository repository) {
+            return new DiskRepositoryStorage(repository, storageDir, propProvider);
+        }
+    }
+
+    public DiskRepositoryStorage(XRepository repository, File storageDir, ConfigurationPropertyProvider propProvider) {
+        if (repository == null)
+            throw MESSAGES.illegalArgumentNull("repository");
+        if (storageDir == null)
+            throw MESSAGES.illegalArgumentNull("storageDir");
+        if (propProvider == null)
+            throw MESSAGES.illegalArgumentNull("propProvider");
+
+        this.repository = repository;
+        int pageCacheSize = getCacheSize(propProvider, XRepository.PROPERTY_REPOSITORY_STORAGE_PAGE_CACHE_SIZE, DEFAULT_PAGE_CACHE_SIZE);
+        int resourceCacheSize = getCacheSize(propProvider, XRepository.PROPERTY_REPOSITORY_STORAGE_RESOURCE_CACHE_SIZE, DEFAULT_RESOURCE_CACHE_SIZE);
+        resourceCache = new ResourceCache(resourceCacheSize);
+        tombstoneRetention = FileBasedRepositoryStorage.getIntegerProperty(propProvider, XRepository.PROPERTY_REPOSITORY_STORAGE_TOMBSTONES, DEFAULT_TOMBSTONE_RETENTION);
+        if (tombstoneRetention < 0)
+            throw MESSAGES.invalidPropertyValue(XRepository.PROPERTY_REPOSITORY_STORAGE_TOMBSTONES, "" + tombstoneRetention);
+
+        File treeFile = new File(storageDir, TREE_FILE_NAME).getAbsoluteFile();
+        recordsFile = new File(storageDir, RECORDS_FILE_NAME).getAbsoluteFile();
+        PagedBTree btree = null;
+        try {
+            btree = new PagedBTree(treeFile, pageCacheSize);
+            if (btree.isRecovered()) {
+                LOGGER.warnRecoveredRepositoryStore(treeFile);
+            }
+            records = FileChannel.open(recordsFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            // Drop the records that were written after the last flush
+            records.truncate(btree.getMeta(META_RECORDS_LENGTH));
+        } catch (IOException ex) {
+            if (btree != null) {
+                btree.closeQuietly();
+            }
+            throw MESSAGES.cannotReadRepositoryStore(ex, treeFile);
+        }
+        tree = btree;
+    }
+
+    private static int getCacheSize(ConfigurationPropertyProvider propProvider, String key, int defaultValue) {
+        int result = FileBasedRepositoryStorage.getIntegerProperty(propProvider, key, defaultValue);
+        if (result <= 0)
+            throw MESSAGES.invalidPropertyValue(key, "" + result);
+        return result;
+    }
+
+    @Override
+    public XRepository getRepository() {
+        return repository;
+    }
+
+    @Override
+    public boolean isReady() {
+        return true;
+    }
+
+    /**
+     * Get a reader for the stored resources.
+     *
+     * The reader decodes the resources in batches, in the order in which they were added.
+     * It does not block modifications of this storage, resources that are added or removed
+     * while the reader is open may or may not be returned.
+     */
+    @Override
+    public RepositoryReader getRepositoryReader() {
+        final Map<String, String> attributes = new HashMap<String, String>();
+        attributes.put("name", getRepository().getName());
+        synchronized (this) {
+            attributes.put("increment", Long.toString(tree.getMeta(META_INCREMENT)));
+        }
+        return new RepositoryReader() {
+            private byte[] from = RESOURCE_PREFIX;
+            private Iterator<XResource> batch = Collections.<XResource> emptyList().iterator();
+
+            @Override
+            public Map<String, String> getRepositoryAttributes() {
+                return Collections.unmodifiableMap(attributes);
+            }
+
+            @Override
+            public synchronized XResource nextResource() {
+                if (!batch.hasNext() && from != null) {
+                    List<XResource> resources = new ArrayList<XResource>(READER_BATCH_SIZE);
+                    from = readResources(from, resources);
+                    batch = resources.iterator();
+                }
+                return batch.hasNext() ? batch.next() : null;
+            }
+
+            @Override
+            public synchronized void close() {
+                from = null;
+                batch = Collections.<XResource> emptyList().iterator();
+            }
+        };
+    }
+
+    /**
+     * Get a reader for the changes after the given increment.
+     *
+     * The removed resources are read when the reader is created. The added resources are read
+     * in batches, like the resources of a repository reader, up to the increment of the reader.
+     */
+    @Override
+    public RepositoryDeltaReader getRepositoryDeltaReader(final long since) {
+        final long increment;
+        final List<XResource> removed = new ArrayList<XResource>();
+        synchronized (this) {
+            assertUsable();
+            increment = tree.getMeta(META_INCREMENT);
+            if (since < tree.getMeta(META_DELTA_INCREMENT) || since > increment)
+                return null;
+            try {
+                for (byte[][] entry : tree.scan(incrementKey(KEY_TOMBSTONE, since + 1), TOMBSTONE_PREFIX, Integer.MAX_VALUE)) {
+                    // Resources that were added and removed after the increment are not part of the changes
+                    if (getLong(entry[1], 12) <= since) {
+                        removed.add(decodeResource(getLong(entry[0], 9), entry[1]));
+                    }
+                }
+            } catch (IOException ex) {
+                throw MESSAGES.cannotReadRepositoryStore(ex, tree.getFile());
+            }
+        }
+        final Map<String, String> attributes = new HashMap<String, String>();
+        attributes.put("name", getRepository().getName());
+        attributes.put("increment", Long.toString(increment));
+        attributes.put("since", Long.toString(since));
+        return new RepositoryDeltaReader() {
+            private byte[] from = incrementKey(KEY_ADDED, since + 1);
+            private Iterator<XResource> tombstones = removed.iterator();
+            private Iterator<XResource> batch = Collections.<XResource> emptyList().iterator();
+
+            @Override
+            public Map<String, String> getRepositoryAttributes() {
+                return Collections.unmodifiableMap(attributes);
+            }
+
+            @Override
+            public synchronized XResource nextRemovedResource() {
+                return tombstones.hasNext() ? tombstones.next() : null;
+            }
+
+            @Override
+            public synchronized XResource nextResource() {
+                if (!batch.hasNext() && from != null) {
+                    List<XResource> resources = new ArrayList<XResource>(READER_BATCH_SIZE);
+                    from = readAddedResources(from, increment, resources);
+                    batch = resources.iterator();
+                }
+                return batch.hasNext() ? batch.next() : null;
+            }
+
+            @Override
+            public synchronized void close() {
+                from = null;
+                tombstones = Collections.<XResource> emptyList().iterator();
+                batch = Collections.<XResource> emptyList().iterator();
+            }
+        };
+    }
+
+    @Override
+    public synchronized Collection<Capability> findProviders(Requirement req) {
+        if (req == null)
+            throw MESSAGES.illegalArgumentNull("req");
+
+        assertUsable();
+        String namespace = req.getNamespace();
+        String filter = req.getDirectives().get(Namespace.REQUIREMENT_FILTER_DIRECTIVE);
+        CompiledFilter compiled = filter != null ? CompiledFilter.compile(filter) : null;
+        FilterAnalyzer analyzer = compiled != null ? compiled.getAnalyzer() : (filter != null ? FilterAnalyzer.analyze(filter) : null);
+        String nsvalue = MemoryRepositoryStorage.getRequiredNamespaceValue(req, analyzer);
+        byte[] prefix = capabilityKey(namespace, nsvalue, null);
+        List<XCapability> caps = new ArrayList<XCapability>();
+        try {
+            Set<Long> ids = new LinkedHashSet<Long>();
+            for (byte[][] entry : tree.scan(prefix, prefix, Integer.MAX_VALUE)) {
+                ids.add(getLong(entry[0], entry[0].length - 8));
+            }
+            for (Long id : ids) {
+                XResource res = loadResource(id);
+                for (Capability cap : res.getCapabilities(namespace)) {
+                    if (MemoryRepositoryStorage.matches(req, cap, compiled)) {
+                        caps.add((XCapability) cap);
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            throw MESSAGES.cannotReadRepositoryStore(ex, tree.getFile());
+        }
+        sortByVersion(caps, namespace);
+        Set<Capability> result = new LinkedHashSet<Capability>(caps);
+        LOGGER.tracef("Find stored providers: %s => %s", req, result);
+        return result;
+    }
+
+    @Override
+    public synchronized XResource addResource(XResource res) throws RepositoryStorageException {
+        if (res == null)
+            throw MESSAGES.illegalArgumentNull("resource");
+
+        return addResourcesInternal(Collections.singletonList(res)).get(0);
+    }
+
+    @Override
+    public synchronized List<XResource> addResources(Collection<XResource> resources) throws RepositoryStorageException {
+        if (resources == null)
+            throw MESSAGES.illegalArgumentNull("resources");
+
+        return addResourcesInternal(resources);
+    }
+
+    // Must be called with the storage lock held
+    private List<XResource> addResourcesInternal(Collection<XResource> resources) {
+        assertUsable();
+        try {
+            // Nothing is modified unless all resources can be added
+            Set<IdentityKey> keys = new HashSet<IdentityKey>();
+            List<byte[]> encoded = new ArrayList<byte[]>(resources.size());
+            for (XResource res : resources) {
+                if (res == null)
+                    throw MESSAGES.illegalArgumentNull("resource");
+
+                XIdentityCapability icap = res.getIdentityCapability();
+                if (XResource.MAVEN_IDENTITY_NAMESPACE.equals(icap.getNamespace()))
+                    throw MESSAGES.cannotAddMavenResourceToStorage(null, res);
+
+                IdentityKey key = IdentityKey.create(icap);
+                if (findResourceId(key) != null || !keys.add(key))
+                    throw MESSAGES.resourceAlreadyExists(res);
+
+                encoded.add(RepositoryIndex.encodeResource(res));
+            }
+
+            long sequence = tree.getMeta(META_SEQUENCE);
+            long position = tree.getMeta(META_RECORDS_LENGTH);
+            long increment = tree.getMeta(META_INCREMENT) + 1;
+            List<XResource> result = new ArrayList<XResource>(resources.size());
+            List<Long> ids = new ArrayList<Long>(resources.size());
+            Iterator<byte[]> itrec = encoded.iterator();
+            boolean success = false;
+            try {
+                for (XResource res : resources) {
+                    long id = sequence++;
+                    byte[] record = itrec.next();
+                    writeFully(ByteBuffer.wrap(record), position);
+                    ByteBuffer pointer = ByteBuffer.allocate(20);
+                    pointer.putLong(position).putInt(record.length).putLong(increment);
+                    ids.add(id);
+                    tree.put(resourceKey(id), pointer.array());
+                    tree.put(incrementKey(KEY_ADDED, increment, id), NO_VALUE);
+                    position += record.length;
+                    tree.put(identityKey(IdentityKey.create(res.getIdentityCapability()), id), NO_VALUE);
+                    for (Capability cap : res.getCapabilities(null)) {
+                        tree.put(capabilityKey((XCapability) cap, id), NO_VALUE);
+                    }
+                    resourceCache.put(id, res);
+                    result.add(res);
+                    LOGGER.debugf("Resource added: %s", res);
+                }
+                if (!result.isEmpty()) {
+                    tree.setMeta(META_SEQUENCE, sequence);
+                    tree.setMeta(META_RECORDS_LENGTH, position);
+                    tree.setMeta(META_INCREMENT, increment);
+                    records.force(false);
+                    tree.flush();
+                }
+                success = true;
+            } finally {
+                if (success == false) {
+                    rollback(ids);
+                }
+            }
+            return result;
+        } catch (IOException ex) {
+            throw MESSAGES.cannotWriteRepositoryStore(ex, tree.getFile());
+        }
+    }
+
+    @Override
+    public synchronized XResource getResource(XIdentityCapability icap) {
+        if (icap == null)
+            throw MESSAGES.illegalArgumentNull("icap");
+
+        assertUsable();
+        try {
+            Long id = findResourceId(IdentityKey.create(icap));
+            return id != null ? loadResource(id) : null;
+        } catch (IOException ex) {
+            throw MESSAGES.cannotReadRepositoryStore(ex, tree.getFile());
+        }
+    }
+
+    @Override
+    public synchronized boolean removeResource(XResource res) throws RepositoryStorageException {
+        if (res == null)
+            throw MESSAGES.illegalArgumentNull("resource");
+
+        return removeResourcesInternal(Collections.singletonList(res));
+    }
+
+    @Override
+    public synchronized boolean removeResources(Collection<XResource> resources) throws RepositoryStorageException {
+        if (resources == null)
+            throw MESSAGES.illegalArgumentNull("resources");
+        for (XResource res : resources) {
+            if (res == null)
+                throw MESSAGES.illegalArgumentNull("resource");
+        }
+        return removeResourcesInternal(resources);
+    }
+
+    // Must be called with the storage lock held
+    private boolean removeResourcesInternal(Collection<XResource> resources) {
+        assertUsable();
+        boolean success = false;
+        try {
+            int count = 0;
+            long increment = tree.getMeta(META_INCREMENT) + 1;
+            for (XResource res : resources) {
+                IdentityKey key = IdentityKey.create(res.getIdentityCapability());
+                Long id = findResourceId(key);
+                if (id != null) {
+                    XResource stored = loadResource(id);
+                    for (Capability cap : stored.getCapabilities(null)) {
+                        tree.remove(capabilityKey((XCapability) cap, id));
+                    }
+                    tree.remove(identityKey(key, id));
+                    // The tombstone keeps the pointer to the record, which is not reclaimed
+                    byte[] pointer = tree.get(resourceKey(id));
+                    tree.remove(resourceKey(id));
+                    tree.remove(incrementKey(KEY_ADDED, getLong(pointer, 12), id));
+                    tree.put(incrementKey(KEY_TOMBSTONE, increment, id), pointer);
+                    resourceCache.remove(id);
+                    count++;
+                }
+                LOGGER.debugf("Resource removed: %s", res);
+            }
+            if (count > 0) {
+                tree.setMeta(META_INCREMENT, increment);
+                trimTombstones(tree.getMeta(META_TOMBSTONE_COUNT) + count);
+                tree.flush();
+            }
+            success = true;
+            return count == resources.size();
+        } catch (IOException ex) {
+            throw MESSAGES.cannotWriteRepositoryStore(ex, tree.getFile());
+        } finally {
+            if (success == false) {
+                rollback(Collections.<Long> emptyList());
+            }
+        }
+    }
+
+    /**
+     * Return the tree to the state of the last completed modification.
+     * Must be called with the storage lock held.
+     *
+     * @param addedIds The ids of the resources that the failed modification added
+     */
+    private void rollback(Collection<Long> addedIds) {
+        for (Long id : addedIds) {
+            resourceCache.remove(id);
+        }
+        try {
+            tree.rollback();
+        } catch (IOException ex) {
+            failure = ex;
+        }
+    }
+
+    // Must be called with the storage lock held
+    private void assertUsable() {
+        if (failure != null)
+            throw MESSAGES.cannotReadRepositoryStore(failure, tree.getFile());
+    }
+
+    // Must be called with the storage lock held
+    private void trimTombstones(long count) throws IOException {
+        if (count > tombstoneRetention) {
+            List<byte[][]> entries = tree.scan(TOMBSTONE_PREFIX, TOMBSTONE_PREFIX, (int) (count - tombstoneRetention));
+            for (byte[][] entry : entries) {
+                tree.remove(entry[0]);
+                // The changes are no longer known before the increment of the last removed tombstone
+                tree.setMeta(META_DELTA_INCREMENT, getLong(entry[0], 1));
+            }
+            count -= entries.size();
+        }
+        tree.setMeta(META_TOMBSTONE_COUNT, count);
+    }
+
+    /**
+     * Close the files of this storage
+     */
+    public synchronized void close() throws RepositoryStorageException {
+        try {
+            try {
+                if (failure != null) {
+                    tree.closeQuietly();
+                } else {
+                    tree.close();
+                }
+            } finally {
+                records.close();
+            }
+        } catch (IOException ex) {
+            throw MESSAGES.cannotWriteRepositoryStore(ex, tree.getFile());
+        }
+    }
+
+    // Read the next batch of resources, returns the key to continue from or null at the end
+    private synchronized byte[] readResources(byte[] from, List<XResource> result) {
+        assertUsable();
+        try {
+            List<byte[][]> entries = tree.scan(from, RESOURCE_PREFIX, READER_BATCH_SIZE);
+            for (byte[][] entry : entries) {
+                result.add(loadResource(getLong(entry[0], 1), entry[1]));
+            }
+            if (entries.size() < READER_BATCH_SIZE)
+                return null;
+            // The lowest key that is greater than the last key
+            byte[] last = entries.get(entries.size() - 1)[0];
+            return Arrays.copyOf(last, last.length + 1);
+        } catch (IOException ex) {
+            throw MESSAGES.cannotReadRepositoryStore(ex, tree.getFile());
+        }
+    }
+
+    // Read the next batch of resources that were added up to the given increment,
+    // returns the key to continue from or null at the end
+    private synchronized byte[] readAddedResources(byte[] from, long increment, List<XResource> result) {
+        assertUsable();
+        try {
+            List<byte[][]> entries = tree.scan(from, ADDED_PREFIX, READER_BATCH_SIZE);
+            for (byte[][] entry : entries) {
+                if (getLong(entry[0], 1) > increment)
+                    return null;
+                result.add(loadResource(getLong(entry[0], 9)));
+            }
+            if (entries.size() < READER_BATCH_SIZE)
+                return null;
+            byte[] last = entries.get(entries.size() - 1)[0];
+            return Arrays.copyOf(last, last.length + 1);
+        } catch (IOException ex) {
+            throw MESSAGES.cannotReadRepositoryStore(ex, tree.getFile());
+        }
+    }
+
+    private Long findResourceId(IdentityKey key) throws IOException {
+        byte[] prefix = identityKey(key, null);
+        for (byte[][] entry : tree.scan(prefix, prefix, Integer.MAX_VALUE)) {
+            long id = getLong(entry[0], entry[0].length - 8);
+            XResource res = loadResource(id);
+            if (key.equals(IdentityKey.create(res.getIdentityCapability())))
+                return id;
+        }
+        return null;
+    }
+
+    private XResource loadResource(long id) throws IOException {
+        XResource res = resourceCache.get(id);
+        if (res == null) {
+            byte[] pointer = tree.get(resourceKey(id));
+            if (pointer == null)
+                throw new IOException("Missing resource record: " + id);
+            res = loadResource(id, pointer);
+        }
+        return res;
+    }
+
+    private XResource loadResource(long id, byte[] pointer) throws IOException {
+        XResource res = resourceCache.get(id);
+        if (res == null) {
+            res = decodeResource(id, pointer);
+            resourceCache.put(id, res);
+        }
+        return res;
+    }
+
+    // Decode the record that the pointer refers to, without the resource cache
+    private XResource decodeResource(long id, byte[] pointer) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(pointer);
+        long position = buffer.getLong();
+        ByteBuffer record = ByteBuffer.allocate(buffer.getInt());
+        while (record.hasRemaining()) {
+            if (records.read(record, position + record.position()) < 0)
+                throw new IOException("Truncated resource record: " + id);
+        }
+        return RepositoryIndex.decodeResource(record.array(), null);
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            records.write(buffer, position + buffer.position());
+        }
+    }
+
+    // Highest version first, followed by the unversioned capabilities
+    private static void sortByVersion(List<XCapability> caps, String namespace) {
+        final String versionAttribute = VersionedCapabilities.getVersionAttribute(namespace);
+        Collections.sort(caps, new Comparator<XCapability>() {
+            @Override
+            public int compare(XCapability cap1, XCapability cap2) {
+                Object ver1 = cap1.getAttribute(versionAttribute);
+                Object ver2 = cap2.getAttribute(versionAttribute);
+                if (ver1 instanceof Version && ver2 instanceof Version) {
+                    return ((Version) ver2).compareTo((Version) ver1);
+                }
+                return ver1 instanceof Version ? -1 : (ver2 instanceof Version ? 1 : 0);
+            }
+        });
+    }
+
+    private static byte[] resourceKey(long id) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(9);
+        out.write(KEY_RESOURCE);
+        appendLong(out, id);
+        return out.toByteArray();
+    }
+
+    // The key of the resource with the given id at the given increment
+    private static byte[] incrementKey(byte type, long increment, long id) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(17);
+        out.write(type);
+        appendLong(out, increment);
+        appendLong(out, id);
+        return out.toByteArray();
+    }
+
+    // The lowest key at the given increment
+    private static byte[] incrementKey(byte type, long increment) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(9);
+        out.write(type);
+        appendLong(out, increment);
+        return out.toByteArray();
+    }
+
+    // The key prefix of the identity if the id is null
+    private static byte[] identityKey(IdentityKey key, Long id) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(KEY_IDENTITY);
+        appendString(out, key.getNamespace());
+        appendString(out, key.getName());
+        appendString(out, key.getVersion().toString());
+        appendString(out, key.getType());
+        if (id != null) {
+            appendLong(out, id);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] capabilityKey(XCapability cap, long id) {
+        Object nsvalue = cap.getAttribute(cap.getNamespace());
+        return capabilityKey(cap.getNamespace(), nsvalue instanceof String ? (String) nsvalue : "", id);
+    }
+
+    // The key prefix of the namespace value if the id is null, or of the namespace if the value is also null
+    private static byte[] capabilityKey(String namespace, String nsvalue, Long id) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(KEY_CAPABILITY);
+        appendString(out, namespace);
+        if (nsvalue != null) {
+            appendString(out, nsvalue);
+            if (id != null) {
+                appendLong(out, id);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    // Strings are terminated, so that a key prefix does not match longer strings
+    private static void appendString(ByteArrayOutputStream out, String value) {
+        if (value != null) {
+            if (value.length() > MAX_KEY_STRING_LENGTH) {
+                value = value.substring(0, MAX_KEY_STRING_LENGTH) + "#" + Integer.toHexString(value.hashCode());
+            }
+            byte[] bytes = value.getBytes(UTF8);
+            out.write(bytes, 0, bytes.length);
+        }
+        out.write(0);
+    }
+
+    // Ids are big endian, so that the keys are ordered by id
+    private static void appendLong(ByteArrayOutputStream out, long value) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out.write((int) (value >>> shift));
+        }
+    }
+
+    private static long getLong(byte[] bytes, int offset) {
+        return ByteBuffer.wrap(bytes, offset, 8).getLong();
+    }
+
+    // The most recently used resources, so that repeated queries return the same instances
+    private static final class ResourceCache extends LinkedHashMap<Long, XResource> {
+
+        private static final long serialVersionUID = 1L;
+        private final int maxSize;
+
+        ResourceCache(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, XResource> eldest) {
+            return size() > maxSize;
+        }
+    }
+}
@@ -19,8 +19,10 @@
  */
 package org.jboss.osgi.repository.spi;
 
+import static org.jboss.osgi.repository.RepositoryLogger.LOGGER;
 import static org.jboss.osgi.repository.RepositoryMessages.MESSAGES;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -30,12 +32,29 @@ import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jboss.osgi.repository.Namespace100.Attribute;
+import org.jboss.osgi.repository.ParallelRepositoryXMLReader;
 import org.jboss.osgi.repository.RepositoryContentHelper;
 import org.jboss.osgi.repository.RepositoryReader;
 import org.jboss.osgi.repository.RepositoryStorage;
@@ -43,9 +62,12 @@ import org.jboss.osgi.repository.RepositoryStorageException;
 import org.jboss.osgi.repository.RepositoryWriter;
 import org.jboss.osgi.repository.RepositoryXMLReader;
 import org.jboss.osgi.repository.RepositoryXMLWriter;
+import org.jboss.osgi.repository.ResourceSpliterator;
 import org.jboss.osgi.repository.URLResourceBuilderFactory;
 import org.jboss.osgi.repository.XRepository;
 import org.jboss.osgi.repository.spi.MavenIdentityRepository.ConfigurationPropertyProvider;
+import org.jboss.osgi.repository.spi.RepositoryJournal.Operation;
+import org.jboss.osgi.repository.spi.RepositoryJournal.Record;
 import org.jboss.osgi.resolver.XCapability;
 import org.jboss.osgi.resolver.XIdentityCapability;
 import org.jboss.osgi.resolver.XResource;
@@ -60,71 +82,368 @@ import org.osgi.service.repository.RepositoryContent;
  * A simple {@link RepositoryStorage} that uses
  * the local file system.
  *
+ * By default the repository file is written after every modification. With
+ * {@link XRepository#PROPERTY_REPOSITORY_STORAGE_JOURNAL} a modification is appended
+ * to a journal instead, which is replayed on startup. The repository file is then only
+ * written when the journal has grown to a number of records.
+ *
+ * With {@link XRepository#PROPERTY_REPOSITORY_STORAGE_SNAPSHOT_INTERVAL} a modification only
+ * marks the storage dirty. A background thread writes one consistent snapshot of the storage
+ * per interval, or after {@link XRepository#PROPERTY_REPOSITORY_STORAGE_SNAPSHOT_MUTATIONS}
+ * modifications. Snapshots are written without holding the storage lock. Use {@link #flush()}
+ * to write pending modifications and {@link #close()} to stop the background thread.
+ *
  * @author thomas.diesler@jboss.com
  * @since 16-Jan-2012
  */
 public class FileBasedRepositoryStorage extends MemoryRepositoryStorage {
 
+    /**
+     * The point at which modifications are forced to disk
+     */
+    public enum Durability {
+        /** Modifications are written, but never forced to disk */
+        NONE,
+        /** Modifications are forced to disk before the call returns, concurrent modifications share one sync */
+        BATCH,
+        /** Every modification is forced to disk on its own, while the storage is locked */
+        OPERATION
+    }
+
     public static final String REPOSITORY_XML_NAME = "repository.xml";
+    public static final String JOURNAL_SUFFIX = ".journal";
+    public static final String INDEX_SUFFIX = ".index";
+    private static final String TEMP_CONTENT_PREFIX = "temp-content";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    // The number of journal records after which the repository file is written and the journal discarded
+    private static final int JOURNAL_COMPACTION_THRESHOLD = 1000;
+    // The size from which the repository file is parsed on multiple threads
+    private static final long PARALLEL_LOAD_THRESHOLD = 4 * 1024 * 1024;
 
     private final File storageDir;
     private final File repoFile;
+    private final AttributeInterner interner;
+    private final RepositoryJournal journal;
+    private final File indexFile;
+    private final Durability durability;
+    // Serializes the writes of the repository file, it is not the storage lock
+    private final Object writeLock = new Object();
+    private volatile long snapshotIncrement;
+    private volatile long snapshotDuration;
+    private final ScheduledExecutorService snapshotExecutor;
+    private final int snapshotMutations;
+    private final AtomicInteger pendingMutations = new AtomicInteger();
+    private final AtomicBoolean snapshotScheduled = new AtomicBoolean();
+    private final ContentReferences contentReferences = new ContentReferences();
 
     public FileBasedRepositoryStorage(XRepository repository, File storageDir, ConfigurationPropertyProvider propProvider) {
-        super(repository);
+        super(repository, getProviderCacheSize(propProvider), getTombstoneRetention(propProvider));
         if (storageDir == null)
             throw MESSAGES.illegalArgumentNull("storageDir");
         if (propProvider == null)
             throw MESSAGES.illegalArgumentNull("propProvider");
 
         this.storageDir = storageDir;
+        deleteTemporaryContent();
 
         String filename = propProvider.getProperty(XRepository.PROPERTY_REPOSITORY_STORAGE_FILE, REPOSITORY_XML_NAME);
         repoFile = new File(storageDir.getAbsolutePath() + File.separator + filename).getAbsoluteFile();
 
-        // Initialize repository content
-        if (repoFile.exists()) {
-            RepositoryReader reader;
+        String compact = propProvider.getProperty(XRepository.PROPERTY_REPOSITORY_STORAGE_COMPACT, null);
+        interner = Boolean.parseBoolean(compact) ? new AttributeInterner() : null;
+
+        durability = getDurability(propProvider);
+
+        String indexMode = propProvider.getProperty(XRepository.PROPERTY_REPOSITORY_STORAGE_INDEX, null);
+        indexFile = Boolean.parseBoolean(indexMode) ? new File(repoFile.getPath() + INDEX_SUFFIX) : null;
+
+        // Initialize repository content, from the index if it is current
+        long increment = -1;
+        if (indexFile != null && repoFile.exists() && indexFile.exists()) {
+            increment = loadRepositoryIndex();
+        }
+        if (increment < 0) {
+            increment = loadRepositoryFile();
+        }
+
+        // Replay the modifications that are not yet contained in the repository file
+        RepositoryJournal replayJournal = new RepositoryJournal(new File(repoFile.getPath() + JOURNAL_SUFFIX), interner);
+        List<Record> records = replayJournal.readRecords();
+        for (Record record : records) {
+            if (record.getIncrement() > increment) {
+                replayRecord(record);
+                increment = record.getIncrement();
+            }
+        }
+
+        // The increment must not go backwards, it orders the resources in storage
+        if (increment > getResourceIndex().get()) {
+            getResourceIndex().set(increment);
+        }
+        // The changes that led to the loaded resources are not known
+        discardChanges();
+
+        String journalMode = propProvider.getProperty(XRepository.PROPERTY_REPOSITORY_STORAGE_JOURNAL, null);
+        if (Boolean.parseBoolean(journalMode)) {
+            journal = replayJournal;
+        } else {
+            journal = null;
+            if (!records.isEmpty()) {
+                writeRepositoryXML();
+                replayJournal.truncate();
+            }
+        }
+        snapshotIncrement = getResourceIndex().get();
+
+        // Write the repository file in the background, unless the journal is used
+        long snapshotInterval = getIntegerProperty(propProvider, XRepository.PROPERTY_REPOSITORY_STORAGE_SNAPSHOT_INTERVAL, 0);
+        snapshotMutations = getIntegerProperty(propProvider, XRepository.PROPERTY_REPOSITORY_STORAGE_SNAPSHOT_MUTATIONS, 0);
+        if (journal == null && snapshotInterval > 0) {
+            snapshotExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "RepositorySnapshotter");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            snapshotExecutor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    writeSnapshotInBackground();
+                }
+            }, snapshotInterval, snapshotInterval, TimeUnit.MILLISECONDS);
+        } else {
+            snapshotExecutor = null;
+        }
+    }
+
+    private long loadRepositoryFile() {
+        if (!repoFile.exists())
+            return 0;
+
+        long increment;
+        List<XResource> resources;
+        try {
+            InputStream input = new FileInputStream(repoFile);
             try {
-                reader = RepositoryXMLReader.create(new FileInputStream(repoFile));
-            } catch (IOException ex) {
-                throw MESSAGES.cannotInitializeRepositoryReader(ex);
+                RepositoryReader reader;
+                if (repoFile.length() >= PARALLEL_LOAD_THRESHOLD) {
+                    reader = interner != null ? ParallelRepositoryXMLReader.create(input, interner) : ParallelRepositoryXMLReader.create(input);
+                } else {
+                    reader = interner != null ? RepositoryXMLReader.create(input, interner) : RepositoryXMLReader.create(input);
+                }
+                increment = getIncrement(reader);
+                resources = readResources(reader);
+            } finally {
+                input.close();
             }
-            String incatt = reader.getRepositoryAttributes().get(Attribute.INCREMENT.getLocalName());
-            Long increment = new Long(incatt != null ? incatt : "0");
-            XResource res = reader.nextResource();
-            while(res != null) {
-                addResourceInternal(res, false);
-                res = reader.nextResource();
+        } catch (IOException ex) {
+            throw MESSAGES.cannotInitializeRepositoryReader(ex);
+        }
+        addResourcesInternal(resources, false);
+        return increment;
+    }
+
+    // Returns -1 if the index is not current or cannot be read
+    private long loadRepositoryIndex() {
+        // The index must have been written together with the current repository file
+        if (indexFile.lastModified() < repoFile.lastModified())
+            return -1;
+
+        long fileIncrement;
+        try {
+            // Only the repository element is read
+            InputStream input = new FileInputStream(repoFile);
+            try {
+                RepositoryReader reader = RepositoryXMLReader.create(input);
+                fileIncrement = getIncrement(reader);
+                reader.close();
+            } finally {
+                input.close();
             }
-            long delta = increment - getResourceIndex().get();
-            getResourceIndex().addAndGet(delta);
+        } catch (IOException ex) {
+            throw MESSAGES.cannotInitializeRepositoryReader(ex);
+        }
+
+        // The index is only a cache, any failure to read it falls back to the repository file
+        List<XResource> resources;
+        long increment;
+        RepositoryReader reader = null;
+        try {
+            reader = RepositoryIndex.createReader(indexFile, interner);
+            increment = getIncrement(reader);
+            if (increment != fileIncrement) {
+                reader.close();
+                return -1;
+            }
+            resources = readResources(reader);
+        } catch (RuntimeException ex) {
+            LOGGER.warnCannotReadRepositoryIndex(ex, indexFile);
+            if (reader != null) {
+                reader.close();
+            }
+            return -1;
+        }
+        addResourcesInternal(resources, false);
+        return increment;
+    }
+
+    private static long getIncrement(RepositoryReader reader) {
+        String incatt = reader.getRepositoryAttributes().get(Attribute.INCREMENT.getLocalName());
+        return new Long(incatt != null ? incatt : "0");
+    }
+
+    private static List<XResource> readResources(RepositoryReader reader) {
+        List<XResource> resources = new ArrayList<XResource>();
+        try {
+            for (XResource res : ResourceSpliterator.iterable(reader)) {
+                resources.add(res);
+                LoadProgress.resourceRead();
+            }
+        } finally {
             reader.close();
         }
+        return resources;
     }
 
-    @Override
-    public XResource addResource(XResource res) throws RepositoryStorageException {
-        return addResourceInternal(res, true);
+    private static Durability getDurability(ConfigurationPropertyProvider propProvider) {
+        String key = XRepository.PROPERTY_REPOSITORY_STORAGE_DURABILITY;
+        String value = propProvider.getProperty(key, null);
+        try {
+            return value != null ? Durability.valueOf(value.trim().toUpperCase(Locale.ENGLISH)) : Durability.NONE;
+        } catch (IllegalArgumentException ex) {
+            throw MESSAGES.invalidPropertyValue(key, value);
+        }
     }
 
-    private synchronized XResource addResourceInternal(XResource res, boolean writeXML) throws RepositoryStorageException {
+    private static int getProviderCacheSize(ConfigurationPropertyProvider propProvider) {
+        return propProvider != null ? getIntegerProperty(propProvider, XRepository.PROPERTY_REPOSITORY_PROVIDER_CACHE_SIZE, 0) : 0;
+    }
+
+    private static int getTombstoneRetention(ConfigurationPropertyProvider propProvider) {
+        return propProvider != null ? getIntegerProperty(propProvider, XRepository.PROPERTY_REPOSITORY_STORAGE_TOMBSTONES, DEFAULT_TOMBSTONE_RETENTION) : DEFAULT_TOMBSTONE_RETENTION;
+    }
+
+    static int getIntegerProperty(ConfigurationPropertyProvider propProvider, String key, int defaultValue) {
+        String value = propProvider.getProperty(key, null);
+        try {
+            return value != null ? Integer.parseInt(value.trim()) : defaultValue;
+        } catch (NumberFormatException ex) {
+            throw MESSAGES.invalidPropertyValue(key, value);
+        }
+    }
+
+    /**
+     * Write the modifications that are not yet contained in the repository file.
+     *
+     * This method returns when the repository file contains at least the state
+     * of this storage at the time of the call. With the journal, it returns when
+     * the journal records up to the time of the call are forced to disk.
+     */
+    public void flush() throws RepositoryStorageException {
+        if (journal != null) {
+            journal.syncAll();
+        } else {
+            writeSnapshot();
+        }
+    }
+
+    /**
+     * Write pending modifications and stop writing in the background
+     */
+    public void close() throws RepositoryStorageException {
+        if (snapshotExecutor != null) {
+            snapshotExecutor.shutdownNow();
+        }
+        flush();
+        if (journal != null) {
+            journal.close();
+        }
+    }
+
+    /**
+     * Get the durability of the modifications
+     */
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * Get the number of increments that the repository file is behind this storage
+     */
+    public long getSnapshotLag() {
+        return Math.max(0, getResourceIndex().get() - snapshotIncrement);
+    }
+
+    /**
+     * Get the duration of the last write of the repository file in milliseconds
+     */
+    public long getSnapshotDuration() {
+        return snapshotDuration;
+    }
+
+    @Override
+    public XResource addResource(XResource res) throws RepositoryStorageException {
         if (res == null)
             throw MESSAGES.illegalArgumentNull("resource");
 
-        XIdentityCapability icap = res.getIdentityCapability();
-        if (XResource.MAVEN_IDENTITY_NAMESPACE.equals(icap.getNamespace()))
-            throw MESSAGES.cannotAddMavenResourceToStorage(null, res);
+        return addResourcesInternal(Collections.singletonList(res), true).get(0);
+    }
 
-        String moduleId = (String) icap.getAttribute(XResource.MODULE_IDENTITY_NAMESPACE);
-        if (res.isAbstract() || moduleId != null) {
-            return addAbstractResource(res, writeXML);
-        } else {
-            return addContentResource(res, writeXML);
+    @Override
+    public List<XResource> addResources(Collection<XResource> resources) throws RepositoryStorageException {
+        if (resources == null)
+            throw MESSAGES.illegalArgumentNull("resources");
+
+        return addResourcesInternal(resources, true);
+    }
+
+    private List<XResource> addResourcesInternal(Collection<XResource> resources, boolean persist) throws RepositoryStorageException {
+        // Advisory pre-check without the storage lock, so that no content is copied for invalid resources.
+        // It is repeated under the storage lock below.
+        validateResources(resources);
+
+        // Copy the content outside the storage lock so that ingestions can run in parallel
+        List<File> acquired = new ArrayList<File>();
+        boolean success = false;
+        try {
+            List<XResource> prepared = new ArrayList<XResource>(resources.size());
+            for (XResource res : resources) {
+                XIdentityCapability icap = res.getIdentityCapability();
+                String moduleId = (String) icap.getAttribute(XResource.MODULE_IDENTITY_NAMESPACE);
+                if (res.isAbstract() || moduleId != null) {
+                    prepared.add(res);
+                } else {
+                    prepared.add(prepareContentResource(res, acquired));
+                }
+            }
+
+            List<XResource> result;
+            long position = -1;
+            synchronized (this) {
+                // Validate again, a concurrent add may have won the race for an identity
+                validateResources(prepared);
+                result = super.addResources(prepared);
+                if (persist == true) {
+                    position = persistModification(Operation.ADD, result);
+                }
+                success = true;
+            }
+            commitModification(position);
+            return result;
+        } finally {
+            // Give up the content references of resources that did not make it into storage
+            if (success == false) {
+                for (File contentFile : acquired) {
+                    contentReferences.release(contentFile);
+                }
+            }
         }
     }
 
-    private XResource addContentResource(XResource res, boolean writeXML) throws RepositoryStorageException {
+    private XResource prepareContentResource(XResource res, List<File> acquired) throws RepositoryStorageException {
         List<Capability> ccaps = res.getCapabilities(ContentNamespace.CONTENT_NAMESPACE);
         if (ccaps.isEmpty())
             throw MESSAGES.cannotObtainContentCapablility(res);
@@ -137,60 +456,172 @@ public class FileBasedRepositoryStorage extends MemoryRepositoryStorage {
         XResource result;
 
         // Copy the resource to this storage, if the content URL does not match
-        if (contentURL.startsWith(getBaseURL().toExternalForm()) == false) {
-            XResourceBuilder<XResource> builder = createResourceInternal(res);
+        String baseURL = getBaseURL().toExternalForm();
+        if (contentURL.startsWith(baseURL) == false) {
+            XResourceBuilder<XResource> builder = createResourceInternal(res, acquired);
             for (Capability cap : res.getCapabilities(null)) {
                 if (!ContentNamespace.CONTENT_NAMESPACE.equals(cap.getNamespace())) {
-                    builder.addCapability(cap.getNamespace(), cap.getAttributes(), cap.getDirectives());
+                    if (interner != null) {
+                        builder.addCapability(interner.intern(cap.getNamespace()), interner.internAttributes(cap.getAttributes()), interner.internDirectives(cap.getDirectives()));
+                    } else {
+                        builder.addCapability(cap.getNamespace(), cap.getAttributes(), cap.getDirectives());
+                    }
                 }
             }
             for (Requirement req : res.getRequirements(null)) {
                 String namespace = req.getNamespace();
-                builder.addRequirement(namespace, req.getAttributes(), req.getDirectives());
+                if (interner != null) {
+                    builder.addRequirement(interner.intern(namespace), interner.internAttributes(req.getAttributes()), interner.internDirectives(req.getDirectives()));
+                } else {
+                    builder.addRequirement(namespace, req.getAttributes(), req.getDirectives());
+                }
             }
             result = builder.getResource();
         } else {
+            // The content is already in this storage, count the references to it
+            for (Capability cap : ccaps) {
+                String fileURL = (String) cap.getAttributes().get(ContentNamespace.CAPABILITY_URL_ATTRIBUTE);
+                if (fileURL != null && fileURL.startsWith(baseURL)) {
+                    File contentFile = urlToContentFile(fileURL);
+                    if (contentReferences.acquire(contentFile, null)) {
+                        acquired.add(contentFile);
+                    }
+                }
+            }
             result = res;
         }
-        result = super.addResource(result);
-        if (writeXML == true) {
-            writeRepositoryXML();
+        return result;
+    }
+
+    @Override
+    public boolean removeResource(XResource res) throws RepositoryStorageException {
+        if (res == null)
+            throw MESSAGES.illegalArgumentNull("resource");
+
+        return removeResourcesInternal(Collections.singletonList(res), true);
+    }
+
+    @Override
+    public boolean removeResources(Collection<XResource> resources) throws RepositoryStorageException {
+        if (resources == null)
+            throw MESSAGES.illegalArgumentNull("resources");
+
+        return removeResourcesInternal(resources, true);
+    }
+
+    private boolean removeResourcesInternal(Collection<XResource> resources, boolean persist) {
+        List<XResource> storageResources = new ArrayList<XResource>();
+        boolean result;
+        long position = -1;
+        synchronized (this) {
+            // The resources that are replayed from the journal are equal copies, the stored instances are removed.
+            // Otherwise only the given instances are removed. The storage lock keeps them from being removed concurrently.
+            for (XResource res : resources) {
+                if (res == null)
+                    throw MESSAGES.illegalArgumentNull("resource");
+
+                XResource storageResource = getResource(res.getIdentityCapability());
+                if (storageResource != null && (persist == false || storageResource == res)) {
+                    storageResources.add(storageResource);
+                }
+            }
+            result = super.removeResources(storageResources) && storageResources.size() == resources.size();
+            if (persist == true && !storageResources.isEmpty()) {
+                position = persistModification(Operation.REMOVE, storageResources);
+            }
+        }
+        commitModification(position);
+
+        // Delete the content that is no longer referenced, after the removal was persisted
+        String baseURL = getBaseURL().toExternalForm();
+        for (XResource res : storageResources) {
+            for (Capability cap : res.getCapabilities(ContentNamespace.CONTENT_NAMESPACE)) {
+                String fileURL = (String) cap.getAttributes().get(ContentNamespace.CAPABILITY_URL_ATTRIBUTE);
+                if (fileURL != null && fileURL.startsWith(baseURL)) {
+                    contentReferences.release(urlToContentFile(fileURL));
+                }
+            }
         }
         return result;
     }
 
-    private XResource addAbstractResource(XResource res, boolean writeXML) throws RepositoryStorageException {
-        XResource result = super.addResource(res);
-        if (writeXML == true) {
+    // Must be called with the storage lock held
+    // Returns the position that the caller commits after it released the storage lock, or -1
+    private long persistModification(Operation operation, Collection<XResource> resources) {
+        long position = -1;
+        if (journal != null) {
+            long record = journal.append(operation, getResourceIndex().get(), resources);
+            if (durability == Durability.OPERATION) {
+                journal.sync(record);
+            } else if (durability == Durability.BATCH) {
+                position = record;
+            }
+            if (journal.getRecordCount() >= JOURNAL_COMPACTION_THRESHOLD) {
+                writeRepositoryXML();
+                journal.truncate();
+            }
+        } else if (snapshotExecutor != null && !snapshotExecutor.isShutdown()) {
+            // Only mark the storage dirty, the snapshotter writes the repository file
+            if (snapshotMutations > 0 && pendingMutations.incrementAndGet() >= snapshotMutations && snapshotScheduled.compareAndSet(false, true)) {
+                snapshotExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        snapshotScheduled.set(false);
+                        writeSnapshotInBackground();
+                    }
+                });
+            }
+        } else if (durability == Durability.OPERATION) {
             writeRepositoryXML();
+        } else {
+            position = getResourceIndex().get();
         }
-        return result;
+        return position;
     }
 
-    @Override
-    public boolean removeResource(XResource res) throws RepositoryStorageException {
-        return removeResourceInternal(res, true);
+    // Must be called without the storage lock, so that concurrent modifications share a write
+    private void commitModification(long position) {
+        if (position < 0)
+            return;
+
+        if (journal != null) {
+            journal.sync(position);
+        } else {
+            synchronized (writeLock) {
+                // A concurrent caller may already have written the repository file with this modification
+                if (snapshotIncrement < position) {
+                    writeRepositoryXML();
+                }
+            }
+        }
     }
 
-    private synchronized boolean removeResourceInternal(XResource res, boolean writeXML) {
-        boolean result = true;
-        List<Capability> ccaps = res.getCapabilities(ContentNamespace.CONTENT_NAMESPACE);
-        if (!ccaps.isEmpty()) {
-            XCapability ccap = (XCapability) ccaps.iterator().next();
-            String fileURL = (String) ccap.getAttribute(ContentNamespace.CAPABILITY_URL_ATTRIBUTE);
-            File contentFile = new File(fileURL.substring("file:".length()));
-            if (contentFile.exists()) {
-                result = deleteRecursive(contentFile.getParentFile());
+    private void writeSnapshotInBackground() {
+        try {
+            writeSnapshot();
+        } catch (RuntimeException ex) {
+            LOGGER.errorCannotWriteRepositorySnapshot(ex, repoFile);
+        }
+    }
+
+    private void writeSnapshot() {
+        synchronized (writeLock) {
+            if (snapshotIncrement < getResourceIndex().get()) {
+                pendingMutations.set(0);
+                writeRepositoryXML();
             }
         }
-        result &= super.removeResource(res);
-        if (writeXML == true) {
-            writeRepositoryXML();
+    }
+
+    private void replayRecord(Record record) {
+        if (record.getOperation() == Operation.ADD) {
+            addResourcesInternal(record.getResources(), false);
+        } else {
+            removeResourcesInternal(record.getResources(), false);
         }
-        return result;
     }
 
-    private XResourceBuilder<XResource> createResourceInternal(XResource resource) {
+    private XResourceBuilder<XResource> createResourceInternal(XResource resource, List<File> acquired) {
         XResourceBuilder<XResource> factory = null;
         for (Capability cap : resource.getCapabilities(ContentNamespace.CONTENT_NAMESPACE)) {
             XCapability ccap = (XCapability)cap;
@@ -199,9 +630,10 @@ public class FileBasedRepositoryStorage extends MemoryRepositoryStorage {
             if (mimeType != null) {
                 contentAtts.put(ContentNamespace.CAPABILITY_MIME_ATTRIBUTE, mimeType);
             }
-            InputStream input = getResourceContent(ccap);
             try {
-                URL contentURL = addResourceContent(input, contentAtts);
+                // The declared digest is not trusted, content is shared by the digest of its bytes
+                InputStream input = getResourceContent(ccap);
+                URL contentURL = addResourceContent(input, contentAtts, acquired);
                 if (factory == null) {
                     factory = URLResourceBuilderFactory.create(contentURL, contentAtts);
                 } else {
@@ -239,45 +671,77 @@ public class FileBasedRepositoryStorage extends MemoryRepositoryStorage {
         return input;
     }
 
-    private URL addResourceContent(InputStream input, Map<String, Object> atts) throws IOException {
-        synchronized (storageDir) {
-            // Copy the input stream to temporary storage
-            File tempFile = new File(storageDir.getAbsolutePath() + File.separator + "temp-content");
-            Long size = copyResourceContent(input, tempFile);
+    private URL addResourceContent(InputStream input, Map<String, Object> atts, List<File> acquired) throws IOException {
+        String algorithm = RepositoryContentHelper.DEFAULT_DIGEST_ALGORITHM;
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException ex) {
+            throw MESSAGES.noSuchAlgorithm(ex, algorithm);
+        }
+
+        // Copy the input stream to a temporary file that is unique to this ingestion
+        // and calculate the SHA-256 on the way
+        storageDir.mkdirs();
+        File tempFile = File.createTempFile(TEMP_CONTENT_PREFIX, null, storageDir);
+        try {
+            Long size = copyResourceContent(input, tempFile, md);
             atts.put(ContentNamespace.CAPABILITY_SIZE_ATTRIBUTE, size);
-            // Calculate the SHA-256
-            String sha256;
-            String algorithm = RepositoryContentHelper.DEFAULT_DIGEST_ALGORITHM;
-            try {
-                sha256 = RepositoryContentHelper.getDigest(new FileInputStream(tempFile), algorithm);
-                atts.put(ContentNamespace.CONTENT_NAMESPACE, sha256);
-            } catch (NoSuchAlgorithmException ex) {
-                throw MESSAGES.noSuchAlgorithm(ex, algorithm);
-            }
-            // Move the content to storage location
-            String contentPath = sha256.substring(0, 2) + File.separator + sha256.substring(2) + File.separator + "content";
-            File targetFile = new File(storageDir.getAbsolutePath() + File.separator + contentPath);
-            targetFile.getParentFile().mkdirs();
-            tempFile.renameTo(targetFile);
+            String sha256 = RepositoryContentHelper.toHexString(md.digest());
+            atts.put(ContentNamespace.CONTENT_NAMESPACE, sha256);
+
+            // Move the content to its content addressed storage location, unless it is already there
+            File targetFile = getContentFile(sha256);
+            if (!contentReferences.acquire(targetFile, tempFile))
+                throw MESSAGES.cannotMoveContent(tempFile, targetFile);
+            acquired.add(targetFile);
+
             URL url = targetFile.toURI().toURL();
             atts.put(ContentNamespace.CAPABILITY_URL_ATTRIBUTE, url.toExternalForm());
             return url;
+        } finally {
+            // The content was already stored if the temporary file was not moved
+            if (tempFile.exists()) {
+                tempFile.delete();
+            }
+        }
+    }
+
+    // Delete the content of ingestions that did not complete, before any ingestion of this storage starts
+    private void deleteTemporaryContent() {
+        File[] files = storageDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile() && file.getName().startsWith(TEMP_CONTENT_PREFIX)) {
+                    file.delete();
+                }
+            }
         }
     }
 
-    private long copyResourceContent(InputStream input, File targetFile) throws IOException {
-        int len = 0;
-        long total = 0;
-        byte[] buf = new byte[4096];
-        targetFile.getParentFile().mkdirs();
+    private long copyResourceContent(InputStream input, File targetFile, MessageDigest md) throws IOException {
         OutputStream out = new FileOutputStream(targetFile);
-        while ((len = input.read(buf)) >= 0) {
-            out.write(buf, 0, len);
-            total += len;
+        try {
+            return RepositoryContentHelper.copyWithDigest(input, out, md);
+        } finally {
+            input.close();
+            out.close();
+        }
+    }
+
+    private File getContentFile(String sha256) {
+        String contentPath = sha256.substring(0, 2) + File.separator + sha256.substring(2) + File.separator + "content";
+        return new File(storageDir.getAbsolutePath() + File.separator + contentPath);
+    }
+
+    private File urlToContentFile(String fileURL) {
+        try {
+            return URLResourceBuilderFactory.urlToFile(new URL(fileURL)).getAbsoluteFile();
+        } catch (MalformedURLException ex) {
+            return new File(fileURL.substring("file:".length())).getAbsoluteFile();
+        } catch (URISyntaxException ex) {
+            return new File(fileURL.substring("file:".length())).getAbsoluteFile();
         }
-        input.close();
-        out.close();
-        return total;
     }
 
     private URL getBaseURL() {
@@ -290,24 +754,145 @@ public class FileBasedRepositoryStorage extends MemoryRepositoryStorage {
     }
 
     private void writeRepositoryXML() {
-        RepositoryWriter writer;
+        synchronized (writeLock) {
+            long startTime = System.currentTimeMillis();
+            boolean sync = durability != Durability.NONE;
+
+            // Write temporary files that replace the repository file and the index when they are complete
+            File tempFile = new File(repoFile.getPath() + TEMP_SUFFIX);
+            FileOutputStream output;
+            RepositoryWriter writer;
+            try {
+                repoFile.getParentFile().mkdirs();
+                output = new FileOutputStream(tempFile);
+                writer = RepositoryXMLWriter.create(output);
+            } catch (IOException ex) {
+                throw MESSAGES.cannotInitializeRepositoryWriter(ex);
+            }
+            // Write the index in the same pass, any failure to write it does not affect the repository file
+            RepositoryWriter indexWriter = null;
+            if (indexFile != null) {
+                try {
+                    indexWriter = RepositoryIndex.createWriter(new File(indexFile.getPath() + TEMP_SUFFIX), sync);
+                } catch (RuntimeException ex) {
+                    indexWriter = discardRepositoryIndex(ex, null);
+                }
+            }
+            // Write the increment of the snapshot that is being written
+            RepositoryReader reader = getRepositoryReader();
+            String increment = reader.getRepositoryAttributes().get(Attribute.INCREMENT.getLocalName());
+            boolean success = false;
+            try {
+                Map<String, String> attributes = new HashMap<String, String>();
+                attributes.put(Attribute.NAME.getLocalName(), getRepository().getName());
+                attributes.put(Attribute.INCREMENT.getLocalName(), increment);
+                writer.writeRepositoryElement(attributes);
+                if (indexWriter != null) {
+                    try {
+                        indexWriter.writeRepositoryElement(attributes);
+                    } catch (RuntimeException ex) {
+                        indexWriter = discardRepositoryIndex(ex, indexWriter);
+                    }
+                }
+                XResource resource = reader.nextResource();
+                while(resource != null) {
+                    writer.writeResource(resource);
+                    if (indexWriter != null) {
+                        try {
+                            indexWriter.writeResource(resource);
+                        } catch (RuntimeException ex) {
+                            indexWriter = discardRepositoryIndex(ex, indexWriter);
+                        }
+                    }
+                    resource = reader.nextResource();
+                }
+                writer.close();
+                if (sync) {
+                    output.getFD().sync();
+                }
+                success = true;
+            } catch (IOException ex) {
+                throw MESSAGES.cannotWriteRepositoryFile(ex, repoFile);
+            } finally {
+                reader.close();
+                safeClose(output);
+                if (success == false) {
+                    tempFile.delete();
+                    if (indexWriter != null) {
+                        discardRepositoryIndex(null, indexWriter);
+                    }
+                }
+            }
+
+            // A crash leaves either the previous or the new repository file
+            try {
+                moveAtomically(tempFile, repoFile, sync);
+            } catch (IOException ex) {
+                throw MESSAGES.cannotWriteRepositoryFile(ex, repoFile);
+            }
+            if (indexWriter != null) {
+                // The index is closed after the repository file, so that it is not older
+                try {
+                    indexWriter.close();
+                    moveAtomically(new File(indexFile.getPath() + TEMP_SUFFIX), indexFile, sync);
+                } catch (RuntimeException ex) {
+                    discardRepositoryIndex(ex, null);
+                } catch (IOException ex) {
+                    discardRepositoryIndex(ex, null);
+                }
+            }
+            snapshotIncrement = Long.parseLong(increment);
+            snapshotDuration = System.currentTimeMillis() - startTime;
+        }
+    }
+
+    private RepositoryWriter discardRepositoryIndex(Throwable th, RepositoryWriter indexWriter) {
+        if (th != null) {
+            LOGGER.warnCannotWriteRepositoryIndex(th, indexFile);
+        }
+        if (indexWriter != null) {
+            try {
+                indexWriter.close();
+            } catch (RuntimeException ignore) {
+                // ignore
+            }
+        }
+        new File(indexFile.getPath() + TEMP_SUFFIX).delete();
+        indexFile.delete();
+        return null;
+    }
+
+    private static void moveAtomically(File source, File target, boolean sync) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        // The rename is only durable when the directory entry is synced
+        if (sync) {
+            syncDirectory(target.getParentFile());
+        }
+    }
+
+    private static void syncDirectory(File dir) {
         try {
-            repoFile.getParentFile().mkdirs();
-            writer = RepositoryXMLWriter.create(new FileOutputStream(repoFile));
+            FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+            try {
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
         } catch (IOException ex) {
-            throw MESSAGES.cannotInitializeRepositoryWriter(ex);
+            // ignore, directories cannot be opened on every platform
         }
-        Map<String, String> attributes = new HashMap<String, String>();
-        attributes.put(Attribute.NAME.getLocalName(), getRepository().getName());
-        attributes.put(Attribute.INCREMENT.getLocalName(), new Long(getResourceIndex().get()).toString());
-        writer.writeRepositoryElement(attributes);
-        RepositoryReader reader = getRepositoryReader();
-        XResource resource = reader.nextResource();
-        while(resource != null) {
-            writer.writeResource(resource);
-            resource = reader.nextResource();
+    }
+
+    private static void safeClose(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ex) {
+            // ignore
         }
-        writer.close();
     }
 
     private boolean deleteRecursive(File file) {
@@ -319,4 +904,58 @@ public class FileBasedRepositoryStorage extends MemoryRepositoryStorage {
         result &= file.delete();
         return result;
     }
+
+    /**
+     * Counts the references from resources in storage to content files.
+     *
+     * The counts are derived from the resources that are loaded or added, so they cannot diverge from the index.
+     * Content is deleted when the last reference goes away.
+     */
+    private final class ContentReferences {
+
+        // The content files are keyed by digest, which is independent of the form of the path
+        private final Map<String, Integer> counts = new HashMap<String, Integer>();
+
+        /**
+         * Add a reference to the target content file.
+         *
+         * If the target does not yet exist and a source file is given, the source is moved to the target.
+         *
+         * @return true if the target exists and the reference was added
+         */
+        synchronized boolean acquire(File targetFile, File sourceFile) {
+            if (!targetFile.exists() && sourceFile != null) {
+                targetFile.getParentFile().mkdirs();
+                sourceFile.renameTo(targetFile);
+            }
+            if (!targetFile.exists())
+                return false;
+
+            String key = getContentKey(targetFile);
+            Integer count = counts.get(key);
+            counts.put(key, count != null ? count + 1 : 1);
+            return true;
+        }
+
+        /**
+         * Remove a reference to the content file and delete the content if it was the last one
+         */
+        synchronized void release(File contentFile) {
+            String key = getContentKey(contentFile);
+            Integer count = counts.get(key);
+            if (count != null && count > 1) {
+                counts.put(key, count - 1);
+            } else if (count != null) {
+                counts.remove(key);
+                if (contentFile.exists()) {
+                    deleteRecursive(contentFile.getParentFile());
+                }
+            }
+        }
+
+        private String getContentKey(File contentFile) {
+            File digestDir = contentFile.getParentFile();
+            return digestDir.getParentFile().getName() + digestDir.getName();
+        }
+    }
 }
@@ -0,0 +1,315 @@
+/*
+ * #%L
+ * JBossOSGi Repository
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.jboss.osgi.repository.spi;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.osgi.framework.Version;
+
+/**
+ * Analyzes a requirement filter for simple terms that every matching capability must satisfy.
+ *
+ * Only the filter itself or the operands of a top-level conjunction are considered.
+ * The terms can be used to narrow the set of candidate capabilities, the filter
+ * must still be matched against each of the candidates.
+ *
+ * @author agent@local
+ * @since 18-Oct-2026
+ */
+final class FilterAnalyzer {
+
+    enum Operator {
+        EQUAL, APPROX, GREATER_EQUAL, LESS_EQUAL, SUBSTRING
+    }
+
+    static final class Term {
+        private final String attribute;
+        private final Operator operator;
+        private final String value;
+        private final boolean negated;
+
+        Term(String attribute, Operator operator, String value, boolean negated) {
+            this.attribute = attribute;
+            this.operator = operator;
+            this.value = value;
+            this.negated = negated;
+        }
+
+        String getAttribute() {
+            return attribute;
+        }
+
+        Operator getOperator() {
+            return operator;
+        }
+
+        String getValue() {
+            return value;
+        }
+
+        boolean isNegated() {
+            return negated;
+        }
+
+        @Override
+        public String toString() {
+            String termstr = "(" + attribute + " " + operator + " " + value + ")";
+            return negated ? "(!" + termstr + ")" : termstr;
+        }
+    }
+
+    /**
+     * The version bounds implied by the terms of a filter.
+     * A null floor or ceiling means that the range is unbounded on that side.
+     */
+    static final class VersionBounds {
+        private Version floor;
+        private boolean floorInclusive;
+        private Version ceiling;
+        private boolean ceilingInclusive;
+
+        Version getFloor() {
+            return floor;
+        }
+
+        boolean isFloorInclusive() {
+            return floorInclusive;
+        }
+
+        Version getCeiling() {
+            return ceiling;
+        }
+
+        boolean isCeilingInclusive() {
+            return ceilingInclusive;
+        }
+
+        boolean isUnbounded() {
+            return floor == null && ceiling == null;
+        }
+
+        boolean isEmpty() {
+            if (floor == null || ceiling == null)
+                return false;
+            int comp = floor.compareTo(ceiling);
+            return comp > 0 || (comp == 0 && !(floorInclusive && ceilingInclusive));
+        }
+
+        private void restrictFloor(Version version, boolean inclusive) {
+            int comp = floor != null ? version.compareTo(floor) : 1;
+            if (comp > 0 || (comp == 0 && !inclusive)) {
+                floor = version;
+                floorInclusive = inclusive;
+            }
+        }
+
+        private void restrictCeiling(Version version, boolean inclusive) {
+            int comp = ceiling != null ? version.compareTo(ceiling) : -1;
+            if (comp < 0 || (comp == 0 && !inclusive)) {
+                ceiling = version;
+                ceilingInclusive = inclusive;
+            }
+        }
+
+        @Override
+        public String toString() {
+            String low = floor != null ? (floorInclusive ? "[" : "(") + floor : "(-inf";
+            String high = ceiling != null ? ceiling + (ceilingInclusive ? "]" : ")") : "+inf)";
+            return low + "," + high;
+        }
+    }
+
+    private final List<Term> terms;
+
+    private FilterAnalyzer(List<Term> terms) {
+        this.terms = Collections.unmodifiableList(terms);
+    }
+
+    static FilterAnalyzer analyze(String filter) {
+        List<Term> terms = new ArrayList<Term>();
+        String filterstr = filter.trim();
+        if (filterstr.startsWith("(&") && filterstr.endsWith(")")) {
+            for (String operand : splitOperands(filterstr.substring(2, filterstr.length() - 1))) {
+                Term term = parseTerm(operand);
+                if (term != null) {
+                    terms.add(term);
+                }
+            }
+        } else {
+            Term term = parseTerm(filterstr);
+            if (term != null) {
+                terms.add(term);
+            }
+        }
+        return new FilterAnalyzer(terms);
+    }
+
+    List<Term> getTerms() {
+        return terms;
+    }
+
+    /**
+     * Get the value of an equality term for the given attribute
+     *
+     * @return The unescaped value or null if there is no such term
+     */
+    String getEqualityValue(String attribute) {
+        for (Term term : terms) {
+            if (!term.isNegated() && term.getOperator() == Operator.EQUAL && term.getAttribute().equalsIgnoreCase(attribute)) {
+                return term.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the version bounds for the given attribute.
+     *
+     * Supported are equality and range terms like {@code (version>=1.2)} and {@code (!(version>=2.0))}.
+     * Terms with values that cannot be parsed as {@link Version} are ignored.
+     */
+    VersionBounds getVersionBounds(String attribute) {
+        VersionBounds bounds = new VersionBounds();
+        for (Term term : terms) {
+            if (!term.getAttribute().equalsIgnoreCase(attribute))
+                continue;
+
+            Version version;
+            try {
+                version = Version.parseVersion(term.getValue().trim());
+            } catch (IllegalArgumentException ex) {
+                continue;
+            }
+            switch (term.getOperator()) {
+                case EQUAL:
+                    if (!term.isNegated()) {
+                        bounds.restrictFloor(version, true);
+                        bounds.restrictCeiling(version, true);
+                    }
+                    break;
+                case GREATER_EQUAL:
+                    if (term.isNegated()) {
+                        bounds.restrictCeiling(version, false);
+                    } else {
+                        bounds.restrictFloor(version, true);
+                    }
+                    break;
+                case LESS_EQUAL:
+                    if (term.isNegated()) {
+                        bounds.restrictFloor(version, false);
+                    } else {
+                        bounds.restrictCeiling(version, true);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        return bounds;
+    }
+
+    private static List<String> splitOperands(String operands) {
+        List<String> result = new ArrayList<String>();
+        int depth = 0;
+        int start = -1;
+        for (int i = 0; i < operands.length(); i++) {
+            char ch = operands.charAt(i);
+            if (ch == '\\') {
+                i++;
+            } else if (ch == '(') {
+                if (depth++ == 0) {
+                    start = i;
+                }
+            } else if (ch == ')') {
+                if (--depth == 0) {
+                    result.add(operands.substring(start, i + 1));
+                } else if (depth < 0) {
+                    return Collections.emptyList();
+                }
+            }
+        }
+        return depth == 0 ? result : Collections.<String> emptyList();
+    }
+
+    private static Term parseTerm(String operand) {
+        String termstr = operand.trim();
+        if (termstr.length() < 2 || termstr.charAt(0) != '(' || termstr.charAt(termstr.length() - 1) != ')')
+            return null;
+
+        String inner = termstr.substring(1, termstr.length() - 1);
+        if (inner.startsWith("!")) {
+            Term term = parseTerm(inner.substring(1));
+            return term != null && !term.isNegated() ? new Term(term.getAttribute(), term.getOperator(), term.getValue(), true) : null;
+        }
+        if (inner.isEmpty() || "&|(".indexOf(inner.charAt(0)) >= 0)
+            return null;
+
+        int eqidx = -1;
+        for (int i = 0; i < inner.length() && eqidx < 0; i++) {
+            char ch = inner.charAt(i);
+            if (ch == '\\' || ch == '(' || ch == ')') {
+                return null;
+            } else if (ch == '=') {
+                eqidx = i;
+            }
+        }
+        if (eqidx < 1)
+            return null;
+
+        Operator operator;
+        int attend = eqidx;
+        switch (inner.charAt(eqidx - 1)) {
+            case '~':
+                operator = Operator.APPROX;
+                attend--;
+                break;
+            case '<':
+                operator = Operator.LESS_EQUAL;
+                attend--;
+                break;
+            case '>':
+                operator = Operator.GREATER_EQUAL;
+                attend--;
+                break;
+            default:
+                operator = Operator.EQUAL;
+        }
+        String attribute = inner.substring(0, attend).trim();
+        if (attribute.isEmpty())
+            return null;
+
+        StringBuilder value = new StringBuilder();
+        String valstr = inner.substring(eqidx + 1);
+        for (int i = 0; i < valstr.length(); i++) {
+            char ch = valstr.charAt(i);
+            if (ch == '\\' && i + 1 < valstr.length()) {
+                value.append(valstr.charAt(++i));
+            } else if (ch == '*' && operator == Operator.EQUAL) {
+                operator = Operator.SUBSTRING;
+                value.append(ch);
+            } else {
+                value.append(ch);
+            }
+        }
+        return new Term(attribute, operator, value.toString(), false);
+    }
+}
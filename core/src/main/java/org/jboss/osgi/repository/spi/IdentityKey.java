@@ -0,0 +1,98 @@
+/*
+ * #%L
+ * JBossOSGi Repository
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.jboss.osgi.repository.spi;
+
+import org.jboss.osgi.resolver.XIdentityCapability;
+import org.osgi.framework.Version;
+
+/**
+ * The canonical key of a resource identity.
+ *
+ * Two identity capabilities denote the same resource if they agree
+ * in namespace, name, version and type.
+ *
+ * @author agent@local
+ * @since 18-Oct-2026
+ */
+final class IdentityKey {
+
+    private final String namespace;
+    private final String name;
+    private final Version version;
+    private final String type;
+    private final int hashCode;
+
+    private IdentityKey(String namespace, String name, Version version, String type) {
+        this.namespace = namespace;
+        this.name = name;
+        this.version = version != null ? version : Version.emptyVersion;
+        this.type = type;
+        int result = namespace.hashCode();
+        result = 31 * result + (name != null ? name.hashCode() : 0);
+        result = 31 * result + this.version.hashCode();
+        result = 31 * result + (type != null ? type.hashCode() : 0);
+        this.hashCode = result;
+    }
+
+    static IdentityKey create(XIdentityCapability icap) {
+        return new IdentityKey(icap.getNamespace(), icap.getName(), icap.getVersion(), icap.getType());
+    }
+
+    String getNamespace() {
+        return namespace;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    Version getVersion() {
+        return version;
+    }
+
+    String getType() {
+        return type;
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (!(obj instanceof IdentityKey))
+            return false;
+        IdentityKey other = (IdentityKey) obj;
+        return hashCode == other.hashCode && namespace.equals(other.namespace) && equals(name, other.name)
+                && version.equals(other.version) && equals(type, other.type);
+    }
+
+    private static boolean equals(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    @Override
+    public String toString() {
+        return "IdentityKey[" + namespace + ":" + name + ":" + version + ":" + type + "]";
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * #%L
+ * JBossOSGi Repository
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.jboss.osgi.repository.spi;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the resources that a storage reads while it is created on the current thread.
+ *
+ * A {@link BackgroundRepositoryStorage} starts counting on its loader thread, the storages
+ * report the resources they read. Outside of a background load nothing is counted.
+ *
+ * @author agent@local
+ * @since 18-Oct-2026
+ */
+final class LoadProgress {
+
+    private static final ThreadLocal<AtomicLong> counter = new ThreadLocal<AtomicLong>();
+
+    // Hide ctor
+    private LoadProgress() {
+    }
+
+    static void begin(AtomicLong count) {
+        counter.set(count);
+    }
+
+    static void end() {
+        counter.remove();
+    }
+
+    static void resourceRead() {
+        AtomicLong count = counter.get();
+        if (count != null) {
+            count.incrementAndGet();
+        }
+    }
+}
@@ -21,19 +21,30 @@ package org.jboss.osgi.repository.spi;
 
 import static org.jboss.osgi.repository.RepositoryLogger.LOGGER;
 import static org.jboss.osgi.repository.RepositoryMessages.MESSAGES;
-import static org.osgi.framework.namespace.IdentityNamespace.IDENTITY_NAMESPACE;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.atomic.AtomicLong;
 
+import org.jboss.osgi.repository.RepositoryDeltaReader;
 import org.jboss.osgi.repository.RepositoryReader;
 import org.jboss.osgi.repository.RepositoryStorage;
 import org.jboss.osgi.repository.RepositoryStorageException;
@@ -46,20 +57,53 @@ import org.jboss.osgi.resolver.XResource;
 import org.jboss.osgi.resolver.spi.AbstractRequirement;
 import org.osgi.framework.Filter;
 import org.osgi.resource.Capability;
+import org.osgi.resource.Namespace;
 import org.osgi.resource.Requirement;
-import org.osgi.resource.Resource;
 
 /**
  * A {@link RepositoryStorage} that maintains its state in local memory
  *
+ * Modifications are serialized on the storage instance. Queries do not lock,
+ * they operate on immutable capability sets that are replaced on every modification.
+ *
+ * Every modification bumps the increment, a batch of resources is added or removed
+ * at a single increment. The stored resources are kept in a log that is ordered by the
+ * sequence in which they were added. A {@link RepositoryReader} iterates the log as it
+ * was at the increment it was created for. Removed resources are kept in the log until
+ * no open reader can see them anymore.
+ *
+ * A bounded number of removed resources is remembered as tombstones, so that a
+ * {@link RepositoryDeltaReader} can read the changes after a recent increment.
+ *
  * @author thomas.diesler@jboss.com
  * @since 16-Jan-2012
  */
-public class MemoryRepositoryStorage implements RepositoryStorage {
+public class MemoryRepositoryStorage extends AbstractRepositoryStorage {
+
+    // Capabilities that do not have a namespace value are cached under this key
+    private static final String NO_NAMESPACE_VALUE = "";
+    // The default number of removed resources that are remembered
+    static final int DEFAULT_TOMBSTONE_RETENTION = 1024;
 
     private final XRepository repository;
     private final AtomicLong increment = new AtomicLong();
-    private final Map<String, Map<String, Set<XCapability>>> capabilityCache = new HashMap<String, Map<String, Set<XCapability>>>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final ConcurrentMap<String, ConcurrentMap<String, VersionedCapabilities>> capabilityCache = new ConcurrentHashMap<String, ConcurrentMap<String, VersionedCapabilities>>();
+    private final ConcurrentNavigableMap<Long, ResourceEntry> resourceLog = new ConcurrentSkipListMap<Long, ResourceEntry>();
+    private final Map<XResource, ResourceEntry> resourceEntries = new IdentityHashMap<XResource, ResourceEntry>();
+    private final ConcurrentMap<IdentityKey, XResource> identityIndex = new ConcurrentHashMap<IdentityKey, XResource>();
+    // The increment at which a capability namespace was last modified
+    private final ConcurrentMap<String, Long> namespaceIncrements = new ConcurrentHashMap<String, Long>();
+    private final ProviderCache providerCache;
+    // Guards the open snapshots and the removed entries that may still be visible to them
+    private final Object snapshotLock = new Object();
+    private final NavigableMap<Long, Integer> openSnapshots = new TreeMap<Long, Integer>();
+    private final List<ResourceEntry> removedEntries = new ArrayList<ResourceEntry>();
+    // The remembered removals in the order of their increments and the increment from which
+    // the changes are known, both guarded by the snapshot lock
+    private final int tombstoneRetention;
+    private final Deque<ResourceEntry> tombstones = new ArrayDeque<ResourceEntry>();
+    private long deltaIncrement;
 
     public static final class Factory implements RepositoryStorageFactory {
         @Override
@@ -69,98 +113,289 @@ public class MemoryRepositoryStorage implements RepositoryStorage {
     }
 
     public MemoryRepositoryStorage(XRepository repository) {
+        this(repository, 0);
+    }
+
+    /**
+     * Create a storage that caches the providers for up to the given number of requirements.
+     *
+     * Cached providers are invalidated when their capability namespace is modified.
+     * A cache size of zero disables the cache.
+     */
+    public MemoryRepositoryStorage(XRepository repository, int providerCacheSize) {
+        this(repository, providerCacheSize, DEFAULT_TOMBSTONE_RETENTION);
+    }
+
+    /**
+     * Create a storage that caches the providers for up to the given number of requirements
+     * and remembers up to the given number of removed resources.
+     *
+     * The changes after an increment can be read as long as the resources that were removed
+     * after it are remembered.
+     */
+    public MemoryRepositoryStorage(XRepository repository, int providerCacheSize, int tombstoneRetention) {
         if (repository == null)
             throw MESSAGES.illegalArgumentNull("repository");
+        if (providerCacheSize < 0)
+            throw MESSAGES.illegalArgumentNegative("providerCacheSize");
+        if (tombstoneRetention < 0)
+            throw MESSAGES.illegalArgumentNegative("tombstoneRetention");
         this.repository = repository;
+        this.providerCache = providerCacheSize > 0 ? new ProviderCache(providerCacheSize) : null;
+        this.tombstoneRetention = tombstoneRetention;
     }
 
     protected AtomicLong getResourceIndex() {
         return increment;
     }
 
+    /**
+     * Forget the changes up to the current increment.
+     *
+     * A subclass calls this when it moved the increment past the increments that
+     * its resources were added at, the changes before it can then no longer be read.
+     */
+    protected void discardChanges() {
+        synchronized (snapshotLock) {
+            tombstones.clear();
+            deltaIncrement = increment.get();
+        }
+    }
+
     @Override
     public XRepository getRepository() {
         return repository;
     }
 
+    @Override
+    public boolean isReady() {
+        return true;
+    }
+
+    /**
+     * Get a reader for the resources as they are at the current increment.
+     *
+     * The reader neither copies the resources nor blocks modifications of this storage.
+     * It should be closed when it is not read to the end.
+     */
     @Override
     public RepositoryReader getRepositoryReader() {
-        synchronized (capabilityCache) {
-            return new RepositoryReader() {
-                private final Iterator<XResource> iterator;
-                {
-                    synchronized (capabilityCache) {
-                        final Set<XCapability> icaps = getCachedCapabilities(IDENTITY_NAMESPACE, null);
-                        final Iterator<XCapability> capit = icaps.iterator();
-                        iterator = new Iterator<XResource>() {
-                            @Override
-                            public boolean hasNext() {
-                                return capit.hasNext();
-                            }
-
-                            @Override
-                            public XResource next() {
-                                return capit.next().getResource();
-                            }
-
-                            @Override
-                            public void remove() {
-                                throw new UnsupportedOperationException();
-                            }
-                        };
+        final long snapshot = openSnapshot();
+        // Every entry that was added up to the snapshot increment has a lower sequence
+        final Iterator<ResourceEntry> entries = resourceLog.headMap(sequence.get()).values().iterator();
+        return new RepositoryReader() {
+            private boolean closed;
+
+            @Override
+            public Map<String, String> getRepositoryAttributes() {
+                HashMap<String, String> attributes = new HashMap<String, String>();
+                attributes.put("name", getRepository().getName());
+                attributes.put("increment", new Long(snapshot).toString());
+                return Collections.unmodifiableMap(attributes);
+            }
+
+            @Override
+            public synchronized XResource nextResource() {
+                while (!closed && entries.hasNext()) {
+                    ResourceEntry entry = entries.next();
+                    if (entry.isVisible(snapshot)) {
+                        return entry.resource;
                     }
                 }
+                close();
+                return null;
+            }
 
-                @Override
-                public Map<String, String> getRepositoryAttributes() {
-                    HashMap<String, String> attributes = new HashMap<String, String>();
-                    attributes.put("name", getRepository().getName());
-                    attributes.put("increment", new Long(increment.get()).toString());
-                    return Collections.unmodifiableMap(attributes);
+            @Override
+            public synchronized void close() {
+                if (!closed) {
+                    closed = true;
+                    closeSnapshot(snapshot);
                 }
+            }
+        };
+    }
 
-                @Override
-                public XResource nextResource() {
-                    return iterator.hasNext() ? iterator.next() : null;
+    /**
+     * Get a reader for the changes after the given increment, up to the current increment.
+     *
+     * The removed resources are read from the tombstones, the added resources from the log,
+     * starting at the first entry that was added after the given increment.
+     */
+    @Override
+    public RepositoryDeltaReader getRepositoryDeltaReader(final long since) {
+        final long snapshot;
+        final List<XResource> removed = new ArrayList<XResource>();
+        synchronized (snapshotLock) {
+            if (since < deltaIncrement || since > increment.get())
+                return null;
+            snapshot = openSnapshot();
+            Iterator<ResourceEntry> iterator = tombstones.descendingIterator();
+            while (iterator.hasNext()) {
+                ResourceEntry entry = iterator.next();
+                if (entry.removed <= since)
+                    break;
+                // Resources that were added and removed after the increment are not part of the changes
+                if (entry.added <= since) {
+                    removed.add(entry.resource);
                 }
+            }
+        }
+        Collections.reverse(removed);
 
-                @Override
-                public void close() {
-                    // do nothing
-                }
-            };
+        // The entries are logged in the order of their increments
+        long end = sequence.get();
+        long from = end;
+        for (ResourceEntry entry : resourceLog.headMap(end).descendingMap().values()) {
+            if (entry.added <= since)
+                break;
+            from = entry.sequence;
         }
+        final Iterator<ResourceEntry> entries = resourceLog.subMap(from, end).values().iterator();
+        final Iterator<XResource> tombstoneIterator = removed.iterator();
+        return new RepositoryDeltaReader() {
+            private boolean closed;
+
+            @Override
+            public Map<String, String> getRepositoryAttributes() {
+                HashMap<String, String> attributes = new HashMap<String, String>();
+                attributes.put("name", getRepository().getName());
+                attributes.put("increment", new Long(snapshot).toString());
+                attributes.put("since", new Long(since).toString());
+                return Collections.unmodifiableMap(attributes);
+            }
+
+            @Override
+            public synchronized XResource nextRemovedResource() {
+                return !closed && tombstoneIterator.hasNext() ? tombstoneIterator.next() : null;
+            }
+
+            @Override
+            public synchronized XResource nextResource() {
+                while (!closed && entries.hasNext()) {
+                    ResourceEntry entry = entries.next();
+                    if (entry.isVisible(snapshot)) {
+                        return entry.resource;
+                    }
+                }
+                close();
+                return null;
+            }
+
+            @Override
+            public synchronized void close() {
+                if (!closed) {
+                    closed = true;
+                    closeSnapshot(snapshot);
+                }
+            }
+        };
     }
 
     @Override
-    public synchronized Collection<Capability> findProviders(Requirement req) {
-        Set<Capability> result = findCachedProviders(req);
+    public Collection<Capability> findProviders(Requirement req) {
+        Set<Capability> result;
+        if (providerCache != null) {
+            // Read the namespace increment before the providers are found
+            long nsincrement = getNamespaceIncrement(req.getNamespace());
+            result = providerCache.get(req, nsincrement);
+            if (result == null) {
+                result = findCachedProviders(req);
+                providerCache.put(req, nsincrement, result);
+            }
+        } else {
+            result = findCachedProviders(req);
+        }
         LOGGER.tracef("Find cached providers: %s => %s", req, result);
         return result;
     }
 
+    /**
+     * Get the number of requirements for which the providers were served from the provider cache.
+     */
+    public long getProviderCacheHitCount() {
+        return providerCache != null ? providerCache.getHitCount() : 0;
+    }
+
+    /**
+     * Get the number of requirements for which the providers were not in the provider cache.
+     */
+    public long getProviderCacheMissCount() {
+        return providerCache != null ? providerCache.getMissCount() : 0;
+    }
+
     @Override
     public synchronized XResource addResource(XResource res) throws RepositoryStorageException {
         if (res == null)
             throw MESSAGES.illegalArgumentNull("resource");
 
-        XIdentityCapability icap = res.getIdentityCapability();
-        if (XResource.MAVEN_IDENTITY_NAMESPACE.equals(icap.getNamespace()))
-            throw MESSAGES.cannotAddMavenResourceToStorage(null, res);
+        return addResourcesInternal(Collections.singletonList(res)).get(0);
+    }
 
-        synchronized (capabilityCache) {
-            Set<XCapability> icaps = getCachedCapabilities(icap.getNamespace(), icap.getName());
-            for (XCapability aux : icaps) {
-                XIdentityCapability iaux = aux.adapt(XIdentityCapability.class);
-                if (icap.getAttributes().equals(iaux.getAttributes())) {
-                    throw MESSAGES.resourceAlreadyExists(res);
-                }
-            }
-            for (Capability cap : res.getCapabilities(null)) {
-                addCachedCapability((XCapability) cap);
+    @Override
+    public synchronized List<XResource> addResources(Collection<XResource> resources) throws RepositoryStorageException {
+        if (resources == null)
+            throw MESSAGES.illegalArgumentNull("resources");
+
+        return addResourcesInternal(resources);
+    }
+
+    /**
+     * Verify that the given resources can be added to this storage.
+     *
+     * The result is only conclusive while the storage lock is held. Without the lock this is
+     * an advisory pre-check, which a concurrent modification may invalidate. It must then be
+     * repeated with the lock held, before the storage is modified.
+     *
+     * @throws RepositoryStorageException If one of the resources cannot be added
+     * @throws IllegalStateException If one of the resources is already contained
+     */
+    protected void validateResources(Collection<XResource> resources) throws RepositoryStorageException {
+        Set<IdentityKey> keys = new HashSet<IdentityKey>();
+        for (XResource res : resources) {
+            if (res == null)
+                throw MESSAGES.illegalArgumentNull("resource");
+
+            XIdentityCapability icap = res.getIdentityCapability();
+            if (XResource.MAVEN_IDENTITY_NAMESPACE.equals(icap.getNamespace()))
+                throw MESSAGES.cannotAddMavenResourceToStorage(null, res);
+
+            IdentityKey key = IdentityKey.create(icap);
+            if (identityIndex.containsKey(key) || !keys.add(key))
+                throw MESSAGES.resourceAlreadyExists(res);
+        }
+    }
+
+    // Must be called with the storage lock held
+    private List<XResource> addResourcesInternal(Collection<XResource> resources) {
+        // Nothing is modified unless all resources can be added
+        validateResources(resources);
+
+        // Log the resources before the increment is published
+        long next = increment.get() + 1;
+        List<XResource> result = new ArrayList<XResource>(resources.size());
+        Set<String> namespaces = new HashSet<String>();
+        for (XResource res : resources) {
+            List<Capability> caps = res.getCapabilities(null);
+            CapabilitySlot[] slots = new CapabilitySlot[caps.size()];
+            for (int i = 0; i < slots.length; i++) {
+                slots[i] = addCachedCapability((XCapability) caps.get(i));
             }
-            increment.incrementAndGet();
-            if (LOGGER.isDebugEnabled()) {
+            IdentityKey key = IdentityKey.create(res.getIdentityCapability());
+            identityIndex.put(key, res);
+            ResourceEntry entry = new ResourceEntry(res, key, slots, sequence.getAndIncrement(), next);
+            addNamespaces(slots, namespaces);
+            resourceEntries.put(res, entry);
+            resourceLog.put(entry.sequence, entry);
+            result.add(res);
+        }
+        // The namespaces are touched once the whole batch is visible, so that no partial result is cached
+        touchNamespaces(namespaces, next);
+        if (!result.isEmpty()) {
+            increment.set(next);
+        }
+        if (LOGGER.isDebugEnabled()) {
+            for (XResource res : result) {
                 LOGGER.debugf("Resource added: %s", res);
                 for (Capability cap : res.getCapabilities(null)) {
                     LOGGER.debugf(" %s", cap);
@@ -170,25 +405,15 @@ public class MemoryRepositoryStorage implements RepositoryStorage {
                 }
             }
         }
-        return res;
+        return result;
     }
 
     @Override
-    public synchronized XResource getResource(XIdentityCapability icap) {
+    public XResource getResource(XIdentityCapability icap) {
         if (icap == null)
             throw MESSAGES.illegalArgumentNull("icap");
 
-        Collection<XIdentityCapability> result = new ArrayList<XIdentityCapability>();
-        synchronized (capabilityCache) {
-            Set<XCapability> icaps = getCachedCapabilities(icap.getNamespace(), icap.getName());
-            for (XCapability aux : icaps) {
-                XIdentityCapability iaux = aux.adapt(XIdentityCapability.class);
-                if (icap.getAttributes().equals(iaux.getAttributes())) {
-                    result.add(iaux);
-                }
-            }
-        }
-        return result.size() == 1 ? result.iterator().next().getResource() : null;
+        return identityIndex.get(IdentityKey.create(icap));
     }
 
     @Override
@@ -196,93 +421,267 @@ public class MemoryRepositoryStorage implements RepositoryStorage {
         if (res == null)
             throw MESSAGES.illegalArgumentNull("resource");
 
-        boolean found = false;
-        synchronized (capabilityCache) {
-            for (Capability cap : res.getCapabilities(null)) {
-                XCapability xcap = (XCapability) cap;
-                String namespace = cap.getNamespace();
-                String nsvalue = (String) xcap.getAttribute(namespace);
-                Iterator<XCapability> capit = getCachedCapabilities(namespace, nsvalue).iterator();
-                while (capit.hasNext()) {
-                    Resource auxres = capit.next().getResource();
-                    if (res == auxres) {
-                        capit.remove();
-                        found = true;
-                    }
+        return removeResourcesInternal(Collections.singletonList(res));
+    }
+
+    @Override
+    public synchronized boolean removeResources(Collection<XResource> resources) throws RepositoryStorageException {
+        if (resources == null)
+            throw MESSAGES.illegalArgumentNull("resources");
+        for (XResource res : resources) {
+            if (res == null)
+                throw MESSAGES.illegalArgumentNull("resource");
+        }
+        return removeResourcesInternal(resources);
+    }
+
+    // Must be called with the storage lock held
+    private boolean removeResourcesInternal(Collection<XResource> resources) {
+        // Mark the entries removed before the increment is published
+        long next = increment.get() + 1;
+        List<ResourceEntry> entries = new ArrayList<ResourceEntry>(resources.size());
+        Set<String> namespaces = new HashSet<String>();
+        for (XResource res : resources) {
+            ResourceEntry entry = resourceEntries.remove(res);
+            if (entry != null) {
+                for (CapabilitySlot slot : entry.slots) {
+                    removeCachedCapability(slot);
                 }
+                identityIndex.remove(entry.identityKey, res);
+                entry.removed = next;
+                addNamespaces(entry.slots, namespaces);
+                entries.add(entry);
             }
             LOGGER.debugf("Resource removed: %s", res);
         }
-        return found;
+        touchNamespaces(namespaces, next);
+        if (!entries.isEmpty()) {
+            // The tombstones are added before the increment is published
+            synchronized (snapshotLock) {
+                tombstones.addAll(entries);
+                while (tombstones.size() > tombstoneRetention) {
+                    deltaIncrement = tombstones.removeFirst().removed;
+                }
+                increment.set(next);
+                removedEntries.addAll(entries);
+                purgeRemovedEntries();
+            }
+        }
+        return entries.size() == resources.size();
     }
 
-    private Set<Capability> findCachedProviders(Requirement req) {
-        synchronized (capabilityCache) {
-            Set<Capability> result = new HashSet<Capability>();
-            Set<XCapability> caps = getCachedCapabilities(req.getNamespace(), null);
-            for (XCapability cap : caps) {
-                if (matches(req, cap))
-                    result.add(cap);
+    private long openSnapshot() {
+        synchronized (snapshotLock) {
+            long snapshot = increment.get();
+            Integer count = openSnapshots.get(snapshot);
+            openSnapshots.put(snapshot, count != null ? count + 1 : 1);
+            return snapshot;
+        }
+    }
+
+    private void closeSnapshot(long snapshot) {
+        synchronized (snapshotLock) {
+            Integer count = openSnapshots.get(snapshot);
+            if (count == null || count == 1) {
+                openSnapshots.remove(snapshot);
+            } else {
+                openSnapshots.put(snapshot, count - 1);
             }
-            return result;
+            purgeRemovedEntries();
         }
     }
 
-    private void addCachedCapability(XCapability cap) {
-        synchronized (capabilityCache) {
-            String namespace = cap.getNamespace();
-            Map<String, Set<XCapability>> capmap = capabilityCache.get(namespace);
-            if (capmap == null) {
-                capmap = new HashMap<String, Set<XCapability>>();
-                capabilityCache.put(namespace, capmap);
+    // Must be called with the snapshot lock held
+    private void purgeRemovedEntries() {
+        long oldest = openSnapshots.isEmpty() ? Long.MAX_VALUE : openSnapshots.firstKey();
+        Iterator<ResourceEntry> iterator = removedEntries.iterator();
+        while (iterator.hasNext()) {
+            ResourceEntry entry = iterator.next();
+            if (entry.removed <= oldest) {
+                resourceLog.remove(entry.sequence);
+                iterator.remove();
             }
-            String nsvalue = (String) cap.getAttribute(namespace);
-            Set<XCapability> capset = capmap.get(nsvalue);
-            if (capset == null) {
-                capset = new HashSet<XCapability>();
-                capmap.put(nsvalue, capset);
+        }
+    }
+
+    private Set<Capability> findCachedProviders(Requirement req) {
+        String namespace = req.getNamespace();
+        String filter = req.getDirectives().get(Namespace.REQUIREMENT_FILTER_DIRECTIVE);
+        CompiledFilter compiled = filter != null ? CompiledFilter.compile(filter) : null;
+        FilterAnalyzer analyzer = compiled != null ? compiled.getAnalyzer() : (filter != null ? FilterAnalyzer.analyze(filter) : null);
+        String nsvalue = getRequiredNamespaceValue(req, analyzer);
+        List<XCapability> caps;
+        if (nsvalue != null) {
+            VersionedCapabilities vcaps = getVersionedCapabilities(namespace, nsvalue);
+            if (vcaps == null) {
+                caps = Collections.emptyList();
+            } else if (analyzer != null) {
+                caps = vcaps.getCapabilities(analyzer.getVersionBounds(vcaps.getVersionAttribute()));
+            } else {
+                caps = vcaps.getCapabilities();
             }
-            capset.add(cap);
+        } else {
+            caps = getCachedCapabilities(namespace, null);
+        }
+        // Preserve the candidate order, which is highest version first
+        Set<Capability> result = new LinkedHashSet<Capability>();
+        for (XCapability cap : caps) {
+            if (matches(req, cap, compiled))
+                result.add(cap);
+        }
+        return result;
+    }
+
+    // Must be called with the storage lock held
+    private CapabilitySlot addCachedCapability(XCapability cap) {
+        String namespace = cap.getNamespace();
+        ConcurrentMap<String, VersionedCapabilities> capmap = capabilityCache.get(namespace);
+        if (capmap == null) {
+            capmap = new ConcurrentHashMap<String, VersionedCapabilities>();
+            capabilityCache.put(namespace, capmap);
         }
+        String key = getNamespaceValueKey(cap);
+        VersionedCapabilities vcaps = capmap.get(key);
+        if (vcaps == null) {
+            vcaps = new VersionedCapabilities(namespace);
+        }
+        capmap.put(key, vcaps.add(cap));
+        return new CapabilitySlot(namespace, key, cap);
     }
 
-    private Set<XCapability> getCachedCapabilities(String namespace, String nsvalue) {
-        synchronized (capabilityCache) {
-            Map<String, Set<XCapability>> caps = capabilityCache.get(namespace);
-            if (caps == null) {
-                caps = new HashMap<String, Set<XCapability>>();
-                capabilityCache.put(namespace, caps);
+    // Must be called with the storage lock held
+    private void removeCachedCapability(CapabilitySlot slot) {
+        ConcurrentMap<String, VersionedCapabilities> capmap = capabilityCache.get(slot.namespace);
+        VersionedCapabilities vcaps = capmap.get(slot.key);
+        VersionedCapabilities result = vcaps.remove(slot.capability);
+        if (!result.isEmpty()) {
+            capmap.put(slot.key, result);
+        } else {
+            // Prune empty slots so that add/remove churn does not grow the cache
+            capmap.remove(slot.key);
+            if (capmap.isEmpty()) {
+                capabilityCache.remove(slot.namespace);
             }
-            Set<XCapability> result;
-            if (nsvalue != null) {
-                result = caps.get(nsvalue);
-                if (result == null) {
-                    result = new HashSet<XCapability>();
-                }
-            } else {
-                Set<XCapability> allcaps = new HashSet<XCapability>();
-                for (Set<XCapability> set : caps.values()) {
-                    allcaps.addAll(set);
-                }
-                result = allcaps;
+        }
+    }
+
+    // Must be called with the storage lock held
+    private static void addNamespaces(CapabilitySlot[] slots, Set<String> namespaces) {
+        for (CapabilitySlot slot : slots) {
+            namespaces.add(slot.namespace);
+        }
+    }
+
+    private void touchNamespaces(Set<String> namespaces, long next) {
+        for (String namespace : namespaces) {
+            namespaceIncrements.put(namespace, next);
+        }
+    }
+
+    private long getNamespaceIncrement(String namespace) {
+        Long result = namespaceIncrements.get(namespace);
+        return result != null ? result : 0;
+    }
+
+    private static String getNamespaceValueKey(XCapability cap) {
+        String nsvalue = (String) cap.getAttribute(cap.getNamespace());
+        return nsvalue != null ? nsvalue : NO_NAMESPACE_VALUE;
+    }
+
+    /**
+     * Get the namespace value that every capability matching the given requirement must have.
+     *
+     * @return The namespace value or null if the requirement cannot be narrowed down
+     */
+    static String getRequiredNamespaceValue(Requirement req, FilterAnalyzer analyzer) {
+        String namespace = req.getNamespace();
+        if (req instanceof XRequirement) {
+            Object value = req.getAttributes().get(namespace);
+            if (value instanceof String && ((String) value).indexOf('*') < 0) {
+                return (String) value;
             }
-            return result;
         }
+        return analyzer != null ? analyzer.getEqualityValue(namespace) : null;
+    }
+
+    private VersionedCapabilities getVersionedCapabilities(String namespace, String nsvalue) {
+        Map<String, VersionedCapabilities> capmap = capabilityCache.get(namespace);
+        return capmap != null ? capmap.get(nsvalue) : null;
     }
 
-    private boolean matches(Requirement req, Capability cap) {
+    private List<XCapability> getCachedCapabilities(String namespace, String nsvalue) {
+        Map<String, VersionedCapabilities> capmap = capabilityCache.get(namespace);
+        if (capmap == null) {
+            return Collections.emptyList();
+        }
+        List<XCapability> result;
+        if (nsvalue != null) {
+            VersionedCapabilities vcaps = capmap.get(nsvalue);
+            result = vcaps != null ? vcaps.getCapabilities() : Collections.<XCapability> emptyList();
+        } else {
+            result = new ArrayList<XCapability>();
+            for (VersionedCapabilities vcaps : capmap.values()) {
+                result.addAll(vcaps.getCapabilities());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * True if the given capability matches the requirement
+     *
+     * @param compiled The compiled filter directive of the requirement, may be null
+     */
+    static boolean matches(Requirement req, Capability cap, CompiledFilter compiled) {
+        // A capability that does not match the filter directive cannot match the requirement
+        if (compiled != null && !compiled.matches(cap.getAttributes()))
+            return false;
+
         boolean result;
         if (req instanceof XRequirement) {
             XRequirement xreq = (XRequirement) req;
             result = xreq.matches(cap);
         } else {
-            result = req.getNamespace().equals(cap.getNamespace()) && matchFilter(req, cap);
+            result = req.getNamespace().equals(cap.getNamespace()) && (compiled != null || matchFilter(req, cap));
         }
         return result;
     }
 
-    private boolean matchFilter(Requirement req, Capability cap) {
+    private static boolean matchFilter(Requirement req, Capability cap) {
         Filter filter = AbstractRequirement.getFilterFromDirective(req);
         return filter != null ? filter.match(new Hashtable<String, Object>(cap.getAttributes())) : true;
     }
-}
\ No newline at end of file
+
+    private static final class ResourceEntry {
+        private final XResource resource;
+        private final IdentityKey identityKey;
+        private final CapabilitySlot[] slots;
+        private final long sequence;
+        private final long added;
+        private volatile long removed;
+
+        ResourceEntry(XResource resource, IdentityKey identityKey, CapabilitySlot[] slots, long sequence, long added) {
+            this.resource = resource;
+            this.identityKey = identityKey;
+            this.slots = slots;
+            this.sequence = sequence;
+            this.added = added;
+        }
+
+        boolean isVisible(long snapshot) {
+            return added <= snapshot && (removed == 0 || removed > snapshot);
+        }
+    }
+
+    private static final class CapabilitySlot {
+        private final String namespace;
+        private final String key;
+        private final XCapability capability;
+
+        CapabilitySlot(String namespace, String key, XCapability capability) {
+            this.namespace = namespace;
+            this.key = key;
+            this.capability = capability;
+        }
+    }
+}
@@ -0,0 +1,667 @@
+/*
+ * #%L
+ * JBossOSGi Repository
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.jboss.osgi.repository.spi;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A B+tree of byte array keys and values in a file of fixed size pages.
+ *
+ * Keys are ordered as unsigned bytes. The leaves are linked, so that a range of keys is scanned
+ * without going back to the branches. Pages are read into a bounded cache of decoded nodes, the
+ * least recently used node is written to the log when it is evicted. The memory that the tree uses is
+ * therefore bounded by the cache size, not by the number of keys.
+ *
+ * Keys are removed from their leaf without merging underfull nodes. Pages are never freed, the file
+ * grows with the number of keys that were ever stored. The header page carries a few slots for
+ * the metadata of the owner. The tree is not thread safe.
+ *
+ * Pages are never overwritten in place while the tree is modified. Modified pages are appended to a
+ * redo log, together with a commit record for the header when the modification is flushed. Only then
+ * are the pages copied into the tree file and the log is truncated. A log with a commit record is
+ * replayed when the tree is opened, a log without one is discarded. The tree file therefore always
+ * has the state of the last flush, also after a crash or a modification that was rolled back.
+ *
+ * @author agent@local
+ * @since 18-Oct-2026
+ */
+final class PagedBTree {
+
+    static final int PAGE_SIZE = 4096;
+    // The maximum size of a key and value, so that every split leaves nodes that fit into a page
+    static final int MAX_ENTRY_SIZE = 1000;
+    static final int META_SLOTS = 8;
+
+    static final String LOG_SUFFIX = ".log";
+
+    private static final int MAGIC = 0x4A425254;
+    private static final int FORMAT_VERSION = 2;
+    private static final int MIN_CACHE_SIZE = 16;
+
+    // A log entry is the page number, the page and a checksum of both
+    private static final int LOG_ENTRY_SIZE = 8 + PAGE_SIZE + 4;
+    // The page number of a commit record, which carries the header page
+    private static final long COMMIT_PAGE = -1;
+
+    private static final byte TYPE_LEAF = 1;
+    private static final byte TYPE_BRANCH = 2;
+    // Type, entry count and the link to the next leaf
+    private static final int NODE_HEADER_SIZE = 1 + 2 + 8;
+
+    private final File file;
+    private final File logFile;
+    private final FileChannel channel;
+    private final FileChannel log;
+    private final NodeCache cache;
+    // The log positions of the pages that were modified since the last flush
+    private final Map<Long, Long> loggedPages = new HashMap<Long, Long>();
+    private final long[] meta = new long[META_SLOTS];
+    private final boolean recovered;
+    private long logLength;
+    private long pageCount;
+    private long rootPage;
+
+    /**
+     * Open the tree in the given file, it is created if it does not exist.
+     *
+     * @param cacheSize The maximum number of nodes that are kept in memory
+     */
+    PagedBTree(File file, int cacheSize) throws IOException {
+        this.file = file;
+        this.logFile = new File(file.getPath() + LOG_SUFFIX);
+        this.cache = new NodeCache(Math.max(cacheSize, MIN_CACHE_SIZE));
+        file.getParentFile().mkdirs();
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            log = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+        try {
+            recovered = log.size() > 0;
+            if (recovered) {
+                replayLog();
+            }
+            if (channel.size() == 0) {
+                pageCount = 2;
+                rootPage = 1;
+                Node root = new Node(rootPage, true);
+                root.dirty = true;
+                cache.put(rootPage, root);
+                flush();
+            } else {
+                readHeader();
+            }
+        } catch (IOException ex) {
+            channel.close();
+            log.close();
+            throw ex;
+        }
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * True if the tree was not closed cleanly and the log of its last modification was replayed or discarded
+     */
+    boolean isRecovered() {
+        return recovered;
+    }
+
+    long getMeta(int slot) {
+        return meta[slot];
+    }
+
+    void setMeta(int slot, long value) {
+        meta[slot] = value;
+    }
+
+    /**
+     * Commit the modified pages and the header to the log, then copy them into the tree file
+     */
+    void flush() throws IOException {
+        for (Node node : cache.values()) {
+            if (node.dirty) {
+                appendPage(node.page, encodeNode(node));
+                node.dirty = false;
+            }
+        }
+        if (loggedPages.isEmpty() && !headerModified())
+            return;
+
+        // The modification is durable once the commit record is on disk
+        long commitPosition = appendPage(COMMIT_PAGE, encodeHeader());
+        log.force(false);
+        checkpoint(loggedPages, commitPosition);
+        loggedPages.clear();
+    }
+
+    /**
+     * Discard the modifications since the last flush, the tree returns to the state of the last flush.
+     * Like on open, a flush that failed after its commit record was written is completed.
+     */
+    void rollback() throws IOException {
+        cache.clear();
+        loggedPages.clear();
+        replayLog();
+        readHeader();
+    }
+
+    void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            try {
+                channel.close();
+            } finally {
+                log.close();
+            }
+        }
+    }
+
+    /**
+     * Close the files without writing the cached pages, the modifications since the last flush are dropped
+     */
+    void closeQuietly() {
+        try {
+            channel.close();
+            log.close();
+        } catch (IOException ex) {
+            // ignore
+        }
+    }
+
+    byte[] get(byte[] key) throws IOException {
+        Node leaf = findLeaf(key, null);
+        int index = leaf.indexOf(key);
+        return index >= 0 ? leaf.values.get(index) : null;
+    }
+
+    /**
+     * Store the value for the given key, an existing value is replaced
+     */
+    void put(byte[] key, byte[] value) throws IOException {
+        if (key.length + value.length > MAX_ENTRY_SIZE)
+            throw new IOException("Entry too large: " + (key.length + value.length));
+
+        List<Node> path = new ArrayList<Node>();
+        Node leaf = findLeaf(key, path);
+        int index = leaf.indexOf(key);
+        if (index >= 0) {
+            leaf.values.set(index, value);
+        } else {
+            leaf.keys.add(-index - 1, key);
+            leaf.values.add(-index - 1, value);
+        }
+        markDirty(leaf);
+
+        // Split the nodes bottom up while they do not fit into their page
+        Node node = leaf;
+        int level = path.size();
+        while (node.getSize() > PAGE_SIZE) {
+            Node right = new Node(pageCount++, node.leaf);
+            byte[] separator = node.split(right);
+            markDirty(node);
+            markDirty(right);
+            if (level == 0) {
+                Node root = new Node(pageCount++, false);
+                root.children.add(node.page);
+                root.keys.add(separator);
+                root.children.add(right.page);
+                rootPage = root.page;
+                markDirty(root);
+                break;
+            }
+            Node parent = path.get(--level);
+            int pos = parent.indexOf(separator);
+            pos = pos >= 0 ? pos + 1 : -pos - 1;
+            parent.keys.add(pos, separator);
+            parent.children.add(pos + 1, right.page);
+            markDirty(parent);
+            node = parent;
+        }
+    }
+
+    /**
+     * Remove the given key
+     *
+     * @return True if the key was contained
+     */
+    boolean remove(byte[] key) throws IOException {
+        Node leaf = findLeaf(key, null);
+        int index = leaf.indexOf(key);
+        if (index < 0)
+            return false;
+        leaf.keys.remove(index);
+        leaf.values.remove(index);
+        markDirty(leaf);
+        return true;
+    }
+
+    /**
+     * Get the entries that start with the given prefix, in key order
+     *
+     * @param from The first key of the scan, inclusive
+     * @param limit The maximum number of entries
+     * @return Pairs of key and value
+     */
+    List<byte[][]> scan(byte[] from, byte[] prefix, int limit) throws IOException {
+        List<byte[][]> result = new ArrayList<byte[][]>();
+        Node leaf = findLeaf(from, null);
+        int index = leaf.indexOf(from);
+        index = index >= 0 ? index : -index - 1;
+        while (result.size() < limit) {
+            if (index < leaf.keys.size()) {
+                byte[] key = leaf.keys.get(index);
+                if (!startsWith(key, prefix))
+                    break;
+                result.add(new byte[][] { key, leaf.values.get(index++) });
+            } else if (leaf.next != 0) {
+                leaf = getNode(leaf.next);
+                index = 0;
+            } else {
+                break;
+            }
+        }
+        return result;
+    }
+
+    static int compare(byte[] a, byte[] b) {
+        int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i++) {
+            int diff = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (diff != 0)
+                return diff;
+        }
+        return a.length - b.length;
+    }
+
+    static boolean startsWith(byte[] key, byte[] prefix) {
+        if (key.length < prefix.length)
+            return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (key[i] != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
+    private Node findLeaf(byte[] key, List<Node> path) throws IOException {
+        Node node = getNode(rootPage);
+        while (!node.leaf) {
+            if (path != null) {
+                path.add(node);
+            }
+            int index = node.indexOf(key);
+            // Keys equal to a separator are in the right child
+            index = index >= 0 ? index + 1 : -index - 1;
+            node = getNode(node.children.get(index));
+        }
+        return node;
+    }
+
+    // A node that was evicted while it is modified is put back into the cache
+    private void markDirty(Node node) {
+        node.dirty = true;
+        if (cache.get(node.page) != node) {
+            cache.put(node.page, node);
+        }
+    }
+
+    private Node getNode(long page) throws IOException {
+        Node node = cache.get(page);
+        if (node == null) {
+            node = readNode(page);
+            cache.put(page, node);
+        }
+        return node;
+    }
+
+    // A page that was modified since the last flush is read from the log
+    private Node readNode(long page) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(PAGE_SIZE);
+        Long logPosition = loggedPages.get(page);
+        if (logPosition != null) {
+            readFully(log, buffer, logPosition + 8);
+        } else {
+            readFully(channel, buffer, page * PAGE_SIZE);
+        }
+        buffer.flip();
+        byte type = buffer.get();
+        if (type != TYPE_LEAF && type != TYPE_BRANCH)
+            throw new IOException("Invalid page type " + type + " in page " + page);
+        Node node = new Node(page, type == TYPE_LEAF);
+        int count = buffer.getShort() & 0xFFFF;
+        node.next = buffer.getLong();
+        if (node.leaf) {
+            for (int i = 0; i < count; i++) {
+                node.keys.add(readBytes(buffer));
+                node.values.add(readBytes(buffer));
+            }
+        } else {
+            node.children.add(buffer.getLong());
+            for (int i = 0; i < count; i++) {
+                node.keys.add(readBytes(buffer));
+                node.children.add(buffer.getLong());
+            }
+        }
+        return node;
+    }
+
+    private ByteBuffer encodeNode(Node node) {
+        ByteBuffer buffer = ByteBuffer.allocate(PAGE_SIZE);
+        buffer.put(node.leaf ? TYPE_LEAF : TYPE_BRANCH);
+        buffer.putShort((short) node.keys.size());
+        buffer.putLong(node.next);
+        if (node.leaf) {
+            for (int i = 0; i < node.keys.size(); i++) {
+                writeBytes(buffer, node.keys.get(i));
+                writeBytes(buffer, node.values.get(i));
+            }
+        } else {
+            buffer.putLong(node.children.get(0));
+            for (int i = 0; i < node.keys.size(); i++) {
+                writeBytes(buffer, node.keys.get(i));
+                buffer.putLong(node.children.get(i + 1));
+            }
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    private void readHeader() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(PAGE_SIZE);
+        readFully(channel, buffer, 0);
+        buffer.flip();
+        if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION)
+            throw new IOException("Invalid tree header");
+        pageCount = buffer.getLong();
+        rootPage = buffer.getLong();
+        for (int i = 0; i < META_SLOTS; i++) {
+            meta[i] = buffer.getLong();
+        }
+    }
+
+    private ByteBuffer encodeHeader() {
+        ByteBuffer buffer = ByteBuffer.allocate(PAGE_SIZE);
+        buffer.putInt(MAGIC);
+        buffer.putInt(FORMAT_VERSION);
+        buffer.putLong(pageCount);
+        buffer.putLong(rootPage);
+        for (int i = 0; i < META_SLOTS; i++) {
+            buffer.putLong(meta[i]);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    // The metadata may be modified without a modified page
+    private boolean headerModified() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(PAGE_SIZE);
+        if (channel.size() < PAGE_SIZE)
+            return true;
+        readFully(channel, buffer, 0);
+        buffer.flip();
+        return !buffer.equals(encodeHeader());
+    }
+
+    /**
+     * Append a page to the log
+     *
+     * @return The log position of the entry
+     */
+    private long appendPage(long page, ByteBuffer data) throws IOException {
+        ByteBuffer entry = ByteBuffer.allocate(LOG_ENTRY_SIZE);
+        entry.putLong(page);
+        entry.put(data);
+        entry.putInt((int) checksum(entry.array(), LOG_ENTRY_SIZE - 4));
+        entry.flip();
+        long position = logLength;
+        writeFully(log, entry, position);
+        logLength += LOG_ENTRY_SIZE;
+        if (page != COMMIT_PAGE) {
+            loggedPages.put(page, position);
+        }
+        return position;
+    }
+
+    /**
+     * Copy the committed pages and the header from the log into the tree file and truncate the log
+     */
+    private void checkpoint(Map<Long, Long> pages, long commitPosition) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(PAGE_SIZE);
+        for (Map.Entry<Long, Long> entry : pages.entrySet()) {
+            buffer.clear();
+            readFully(log, buffer, entry.getValue() + 8);
+            buffer.flip();
+            writeFully(channel, buffer, entry.getKey() * PAGE_SIZE);
+        }
+        buffer.clear();
+        readFully(log, buffer, commitPosition + 8);
+        buffer.flip();
+        writeFully(channel, buffer, 0);
+        channel.force(false);
+        truncateLog();
+    }
+
+    // The truncation is forced, so that appended entries cannot be mistaken for the previous ones
+    private void truncateLog() throws IOException {
+        log.truncate(0);
+        log.force(true);
+        logLength = 0;
+    }
+
+    /**
+     * Replay the log up to its last valid commit record. Entries after it were written by a
+     * modification that did not complete, a torn or corrupt entry ends the log.
+     */
+    private void replayLog() throws IOException {
+        Map<Long, Long> pending = new HashMap<Long, Long>();
+        Map<Long, Long> committed = null;
+        long commitPosition = -1;
+        ByteBuffer entry = ByteBuffer.allocate(LOG_ENTRY_SIZE);
+        long size = log.size();
+        for (long position = 0; position + LOG_ENTRY_SIZE <= size; position += LOG_ENTRY_SIZE) {
+            entry.clear();
+            readFully(log, entry, position);
+            if (entry.getInt(LOG_ENTRY_SIZE - 4) != (int) checksum(entry.array(), LOG_ENTRY_SIZE - 4))
+                break;
+            long page = entry.getLong(0);
+            if (page == COMMIT_PAGE) {
+                committed = new HashMap<Long, Long>(pending);
+                commitPosition = position;
+            } else {
+                pending.put(page, position);
+            }
+        }
+        if (committed != null) {
+            checkpoint(committed, commitPosition);
+        } else {
+            truncateLog();
+        }
+    }
+
+    private static long checksum(byte[] bytes, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, length);
+        return crc.getValue();
+    }
+
+    private static void readFully(FileChannel source, ByteBuffer buffer, long position) throws IOException {
+        long start = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            int count = source.read(buffer, start + buffer.position());
+            if (count < 0)
+                throw new IOException("Unexpected end of file at " + position);
+        }
+    }
+
+    private static void writeFully(FileChannel target, ByteBuffer buffer, long position) throws IOException {
+        long start = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            target.write(buffer, start + buffer.position());
+        }
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static void writeBytes(ByteBuffer buffer, byte[] bytes) {
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static final class Node {
+        private final long page;
+        private final boolean leaf;
+        private final List<byte[]> keys = new ArrayList<byte[]>();
+        // The values of a leaf
+        private final List<byte[]> values;
+        // The child pages of a branch, one more than there are keys
+        private final List<Long> children;
+        // The page of the next leaf, zero for the last leaf
+        private long next;
+        private boolean dirty;
+
+        Node(long page, boolean leaf) {
+            this.page = page;
+            this.leaf = leaf;
+            this.values = leaf ? new ArrayList<byte[]>() : null;
+            this.children = leaf ? null : new ArrayList<Long>();
+        }
+
+        /**
+         * Binary search for the given key
+         *
+         * @return The index of the key, or (-(insertion point) - 1)
+         */
+        int indexOf(byte[] key) {
+            int low = 0;
+            int high = keys.size() - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int comp = compare(keys.get(mid), key);
+                if (comp < 0) {
+                    low = mid + 1;
+                } else if (comp > 0) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -(low + 1);
+        }
+
+        int getSize() {
+            int size = NODE_HEADER_SIZE;
+            for (int i = 0; i < keys.size(); i++) {
+                size += 2 + keys.get(i).length;
+                size += leaf ? 2 + values.get(i).length : 8;
+            }
+            return leaf ? size : size + 8;
+        }
+
+        /**
+         * Move the upper half of this node to the given right node
+         *
+         * @return The separator key, which is the lowest key of the right node
+         */
+        byte[] split(Node right) {
+            // Split at half of the encoded size, so that both nodes fit into a page
+            int half = getSize() / 2;
+            int size = NODE_HEADER_SIZE;
+            int index = 0;
+            while (index < keys.size() - 1) {
+                size += 2 + keys.get(index).length + (leaf ? 2 + values.get(index).length : 8);
+                if (size > half)
+                    break;
+                index++;
+            }
+            index = Math.max(index, 1);
+            if (leaf) {
+                List<byte[]> movedKeys = keys.subList(index, keys.size());
+                List<byte[]> movedValues = values.subList(index, values.size());
+                right.keys.addAll(movedKeys);
+                right.values.addAll(movedValues);
+                movedKeys.clear();
+                movedValues.clear();
+                right.next = next;
+                next = right.page;
+                return right.keys.get(0);
+            } else {
+                // The separator moves up, its right child becomes the first child of the right node
+                byte[] separator = keys.get(index);
+                List<byte[]> movedKeys = keys.subList(index + 1, keys.size());
+                List<Long> movedChildren = children.subList(index + 1, children.size());
+                right.keys.addAll(movedKeys);
+                right.children.addAll(movedChildren);
+                movedKeys.clear();
+                movedChildren.clear();
+                keys.remove(index);
+                return separator;
+            }
+        }
+    }
+
+    // The least recently used nodes are written to the log when the cache is full
+    private final class NodeCache extends LinkedHashMap<Long, Node> {
+
+        private static final long serialVersionUID = 1L;
+        private final int maxSize;
+
+        NodeCache(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Node> eldest) {
+            if (size() <= maxSize)
+                return false;
+            Node node = eldest.getValue();
+            if (node.dirty) {
+                try {
+                    appendPage(node.page, encodeNode(node));
+                    node.dirty = false;
+                } catch (IOException ex) {
+                    // Keep the node, the next flush reports the failure
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
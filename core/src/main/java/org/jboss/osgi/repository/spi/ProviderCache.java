@@ -0,0 +1,160 @@
+/*
+ * #%L
+ * JBossOSGi Repository
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.jboss.osgi.repository.spi;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.osgi.resolver.XRequirement;
+import org.osgi.resource.Capability;
+import org.osgi.resource.Requirement;
+
+/**
+ * A bounded cache of the providers found for a requirement.
+ *
+ * Requirements are keyed by their namespace, attributes and directives.
+ * Every result is stored with the increment at which its namespace was last modified,
+ * a result that was computed for an older increment is a miss.
+ *
+ * When the cache is full an arbitrary entry is evicted.
+ *
+ * @author agent@local
+ * @since 18-Oct-2026
+ */
+final class ProviderCache {
+
+    private final int maxSize;
+    private final ConcurrentMap<RequirementKey, CacheEntry> entries = new ConcurrentHashMap<RequirementKey, CacheEntry>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    ProviderCache(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Get the cached providers for the given requirement
+     *
+     * @param increment The increment at which the requirement namespace was last modified
+     * @return A copy of the cached providers or null
+     */
+    Set<Capability> get(Requirement req, long increment) {
+        CacheEntry entry = entries.get(new RequirementKey(req));
+        if (entry == null || entry.increment != increment) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return new LinkedHashSet<Capability>(entry.providers);
+    }
+
+    /**
+     * Cache the providers for the given requirement
+     *
+     * @param increment The namespace increment that was read before the providers were found
+     */
+    void put(Requirement req, long increment, Set<Capability> providers) {
+        RequirementKey key = new RequirementKey(req);
+        if (!entries.containsKey(key)) {
+            Iterator<RequirementKey> iterator = entries.keySet().iterator();
+            while (entries.size() >= maxSize && iterator.hasNext()) {
+                iterator.next();
+                iterator.remove();
+            }
+        }
+        Set<Capability> copy = Collections.unmodifiableSet(new LinkedHashSet<Capability>(providers));
+        entries.put(key, new CacheEntry(copy, increment));
+    }
+
+    void clear() {
+        entries.clear();
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    long getHitCount() {
+        return hits.get();
+    }
+
+    long getMissCount() {
+        return misses.get();
+    }
+
+    private static final class CacheEntry {
+        private final Set<Capability> providers;
+        private final long increment;
+
+        CacheEntry(Set<Capability> providers, long increment) {
+            this.providers = providers;
+            this.increment = increment;
+        }
+    }
+
+    /**
+     * The canonical form of a requirement.
+     *
+     * Extended requirements are matched by {@link XRequirement#matches(Capability)},
+     * which is why they are kept apart from plain requirements with the same content.
+     */
+    private static final class RequirementKey {
+        private final String namespace;
+        private final Map<String, Object> attributes;
+        private final Map<String, String> directives;
+        private final boolean extended;
+        private final int hashCode;
+
+        RequirementKey(Requirement req) {
+            this.namespace = req.getNamespace();
+            this.attributes = new HashMap<String, Object>(req.getAttributes());
+            this.directives = new HashMap<String, String>(req.getDirectives());
+            this.extended = req instanceof XRequirement;
+            int result = namespace.hashCode();
+            result = 31 * result + attributes.hashCode();
+            result = 31 * result + directives.hashCode();
+            result = 31 * result + (extended ? 1 : 0);
+            this.hashCode = result;
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof RequirementKey))
+                return false;
+            RequirementKey other = (RequirementKey) obj;
+            return hashCode == other.hashCode && extended == other.extended && namespace.equals(other.namespace)
+                    && attributes.equals(other.attributes) && directives.equals(other.directives);
+        }
+    }
+}
@@ -0,0 +1,512 @@
+/*
+ * #%L
+ * JBossOSGi Repository
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.jboss.osgi.repository.spi;
+
+import static org.jboss.osgi.repository.RepositoryMessages.MESSAGES;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.jboss.osgi.repository.RepositoryReader;
+import org.jboss.osgi.repository.RepositoryStorageException;
+import org.jboss.osgi.repository.RepositoryWriter;
+import org.jboss.osgi.repository.URLResourceBuilderFactory;
+import org.jboss.osgi.resolver.XResource;
+import org.jboss.osgi.resolver.XResourceBuilder;
+import org.jboss.osgi.resolver.XResourceBuilderFactory;
+import org.osgi.framework.Version;
+import org.osgi.resource.Capability;
+import org.osgi.resource.Requirement;
+import org.osgi.service.repository.ContentNamespace;
+
+/**
+ * A compact binary form of the repository content that loads faster than repository XML.
+ *
+ * Strings are written once and referred to by their index in a string table that is built while
+ * writing and reading. Attribute values keep their type, lengths and counts are varints. The index
+ * is read sequentially and builds every resource exactly once. Repository XML remains the
+ * interchange format, the index is only a cache of it.
+ *
+ * Single resources can also be encoded as self contained records, which is how the
+ * {@link DiskRepositoryStorage} keeps them on disk.
+ *
+ * @author agent@local
+ * @since 18-Oct-2026
+ */
+final class RepositoryIndex {
+
+    private static final int MAGIC = 0x4A425249;
+    private static final int FORMAT_VERSION = 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int TAG_STRING = 0;
+    private static final int TAG_VERSION = 1;
+    private static final int TAG_LONG = 2;
+    private static final int TAG_DOUBLE = 3;
+    private static final int TAG_LIST = 4;
+
+    private static final int MARK_END = 0;
+    private static final int MARK_RESOURCE = 1;
+
+    // Hide ctor
+    private RepositoryIndex() {
+    }
+
+    /**
+     * Create a writer for the given index file
+     *
+     * @param sync True if the file is forced to disk when the writer is closed
+     */
+    static RepositoryWriter createWriter(File indexFile, boolean sync) throws RepositoryStorageException {
+        return new IndexWriter(indexFile, sync);
+    }
+
+    /**
+     * Create a reader for the given index file
+     *
+     * @param interner The interner that shares equal attributes and directives, may be null
+     */
+    static RepositoryReader createReader(File indexFile, AttributeInterner interner) throws RepositoryStorageException {
+        return new IndexReader(indexFile, interner);
+    }
+
+    /**
+     * Encode a single resource as a self contained record, that has its own string table
+     */
+    static byte[] encodeResource(XResource resource) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        IndexWriter writer = new IndexWriter(new DataOutputStream(bytes));
+        writer.writeResourceContent(resource);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decode a resource from a record that was created by {@link #encodeResource(XResource)}
+     *
+     * @param interner The interner that shares equal attributes and directives, may be null
+     */
+    static XResource decodeResource(byte[] record, AttributeInterner interner) {
+        IndexReader reader = new IndexReader(new DataInputStream(new ByteArrayInputStream(record)), interner);
+        try {
+            return reader.readResource();
+        } catch (IOException ex) {
+            throw MESSAGES.cannotReadRepositoryIndex(ex, null);
+        }
+    }
+
+    static final class IndexWriter implements RepositoryWriter {
+
+        private final File indexFile;
+        private final boolean sync;
+        private final FileOutputStream fileOutput;
+        private final DataOutputStream output;
+        private final Map<String, Integer> strings = new HashMap<String, Integer>();
+
+        private IndexWriter(File indexFile, boolean sync) {
+            this.indexFile = indexFile;
+            this.sync = sync;
+            try {
+                indexFile.getParentFile().mkdirs();
+                fileOutput = new FileOutputStream(indexFile);
+                output = new DataOutputStream(new BufferedOutputStream(fileOutput, BUFFER_SIZE));
+            } catch (IOException ex) {
+                throw MESSAGES.cannotWriteRepositoryIndex(ex, indexFile);
+            }
+        }
+
+        private IndexWriter(DataOutputStream output) {
+            this.indexFile = null;
+            this.sync = false;
+            this.fileOutput = null;
+            this.output = output;
+        }
+
+        @Override
+        public void writeRepositoryElement(Map<String, String> attributes) {
+            try {
+                output.writeInt(MAGIC);
+                output.writeByte(FORMAT_VERSION);
+                writeStrings(attributes);
+            } catch (IOException ex) {
+                throw MESSAGES.cannotWriteRepositoryIndex(ex, indexFile);
+            }
+        }
+
+        @Override
+        public void writeResource(XResource resource) {
+            try {
+                output.writeByte(MARK_RESOURCE);
+            } catch (IOException ex) {
+                throw MESSAGES.cannotWriteRepositoryIndex(ex, indexFile);
+            }
+            writeResourceContent(resource);
+        }
+
+        private void writeResourceContent(XResource resource) {
+            try {
+                Map<String, Object> resatts = resource.getAttributes();
+                writeVarint(resatts.size());
+                for (Entry<String, Object> entry : resatts.entrySet()) {
+                    writeString(entry.getKey());
+                    writeString("" + entry.getValue());
+                }
+                List<Capability> caps = resource.getCapabilities(null);
+                writeVarint(caps.size());
+                for (Capability cap : caps) {
+                    writeString(cap.getNamespace());
+                    writeAttributes(cap.getAttributes());
+                    writeStrings(cap.getDirectives());
+                }
+                List<Requirement> reqs = resource.getRequirements(null);
+                writeVarint(reqs.size());
+                for (Requirement req : reqs) {
+                    writeString(req.getNamespace());
+                    writeAttributes(req.getAttributes());
+                    writeStrings(req.getDirectives());
+                }
+            } catch (IOException ex) {
+                throw MESSAGES.cannotWriteRepositoryIndex(ex, indexFile);
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                try {
+                    output.writeByte(MARK_END);
+                    output.flush();
+                    if (sync) {
+                        fileOutput.getFD().sync();
+                    }
+                } finally {
+                    output.close();
+                }
+            } catch (IOException ex) {
+                throw MESSAGES.cannotWriteRepositoryIndex(ex, indexFile);
+            }
+        }
+
+        private void writeAttributes(Map<String, Object> attributes) throws IOException {
+            writeVarint(attributes.size());
+            for (Entry<String, Object> entry : attributes.entrySet()) {
+                writeString(entry.getKey());
+                writeValue(entry.getValue());
+            }
+        }
+
+        private void writeStrings(Map<String, String> map) throws IOException {
+            writeVarint(map.size());
+            for (Entry<String, String> entry : map.entrySet()) {
+                writeString(entry.getKey());
+                writeString(entry.getValue());
+            }
+        }
+
+        private void writeValue(Object value) throws IOException {
+            if (value instanceof String) {
+                output.writeByte(TAG_STRING);
+                writeString((String) value);
+            } else if (value instanceof Version) {
+                output.writeByte(TAG_VERSION);
+                writeString(value.toString());
+            } else if (value instanceof Long) {
+                output.writeByte(TAG_LONG);
+                long val = (Long) value;
+                writeVarlong((val << 1) ^ (val >> 63));
+            } else if (value instanceof Double) {
+                output.writeByte(TAG_DOUBLE);
+                output.writeLong(Double.doubleToLongBits((Double) value));
+            } else if (value instanceof List) {
+                List<?> list = (List<?>) value;
+                output.writeByte(TAG_LIST);
+                writeVarint(list.size());
+                for (Object element : list) {
+                    writeValue(element);
+                }
+            } else {
+                throw MESSAGES.unsupportedAttributeValueType(value != null ? value.getClass() : null);
+            }
+        }
+
+        private void writeString(String value) throws IOException {
+            Integer index = strings.get(value);
+            if (index != null) {
+                writeVarint(index + 1);
+            } else {
+                // A new string is defined where it is first used
+                byte[] bytes = value.getBytes(UTF8);
+                writeVarint(0);
+                writeVarint(bytes.length);
+                output.write(bytes);
+                strings.put(value, strings.size());
+            }
+        }
+
+        private void writeVarint(int value) throws IOException {
+            writeVarlong(value & 0xFFFFFFFFL);
+        }
+
+        private void writeVarlong(long value) throws IOException {
+            while ((value & ~0x7FL) != 0) {
+                output.writeByte((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            output.writeByte((int) value);
+        }
+    }
+
+    static final class IndexReader implements RepositoryReader {
+
+        private final File indexFile;
+        private final AttributeInterner interner;
+        private final DataInputStream input;
+        private final Map<String, String> attributes;
+        private final List<String> strings = new ArrayList<String>();
+        private final Map<String, Version> versions = new HashMap<String, Version>();
+        private boolean endOfResources;
+
+        private IndexReader(File indexFile, AttributeInterner interner) {
+            this.indexFile = indexFile;
+            this.interner = interner;
+            DataInputStream dis = null;
+            try {
+                dis = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile), BUFFER_SIZE));
+                if (dis.readInt() != MAGIC || dis.readByte() != FORMAT_VERSION)
+                    throw new IOException("Invalid index header");
+                input = dis;
+                attributes = readStrings();
+            } catch (IOException ex) {
+                closeQuietly(dis);
+                throw MESSAGES.cannotReadRepositoryIndex(ex, indexFile);
+            }
+        }
+
+        private IndexReader(DataInputStream input, AttributeInterner interner) {
+            this.indexFile = null;
+            this.interner = interner;
+            this.input = input;
+            this.attributes = null;
+        }
+
+        @Override
+        public Map<String, String> getRepositoryAttributes() {
+            return attributes;
+        }
+
+        @Override
+        public XResource nextResource() {
+            if (endOfResources)
+                return null;
+            try {
+                int mark = input.readByte();
+                if (mark == MARK_END) {
+                    endOfResources = true;
+                    return null;
+                }
+                if (mark != MARK_RESOURCE)
+                    throw new IOException("Invalid resource mark: " + mark);
+                return readResource();
+            } catch (IOException ex) {
+                throw MESSAGES.cannotReadRepositoryIndex(ex, indexFile);
+            }
+        }
+
+        @Override
+        public void close() {
+            closeQuietly(input);
+        }
+
+        private XResource readResource() throws IOException {
+            Map<String, String> resatts = new HashMap<String, String>();
+            int attcount = readVarint();
+            for (int i = 0; i < attcount; i++) {
+                resatts.put(readString(), readString());
+            }
+
+            // Read the capabilities first, the builder depends on the content capability
+            int capcount = readVarint();
+            List<String> capns = new ArrayList<String>(capcount);
+            List<Map<String, Object>> capatts = new ArrayList<Map<String, Object>>(capcount);
+            List<Map<String, String>> capdirs = new ArrayList<Map<String, String>>(capcount);
+            int contentIndex = -1;
+            for (int i = 0; i < capcount; i++) {
+                String namespace = readString();
+                capns.add(namespace);
+                capatts.add(readAttributes());
+                capdirs.add(internDirectives(readStrings()));
+                if (contentIndex < 0 && ContentNamespace.CONTENT_NAMESPACE.equals(namespace)) {
+                    contentIndex = i;
+                }
+            }
+
+            // Build an URLResource directly, if there is a content URL
+            XResourceBuilder<XResource> builder = null;
+            if (contentIndex >= 0) {
+                String urlspec = (String) capatts.get(contentIndex).get(ContentNamespace.CAPABILITY_URL_ATTRIBUTE);
+                if (urlspec != null) {
+                    URL contentURL;
+                    try {
+                        contentURL = new URL(urlspec);
+                    } catch (MalformedURLException ex) {
+                        throw MESSAGES.invalidContentURL(urlspec);
+                    }
+                    builder = URLResourceBuilderFactory.create(contentURL, capatts.get(contentIndex));
+                } else {
+                    contentIndex = -1;
+                }
+            }
+            if (builder == null) {
+                builder = XResourceBuilderFactory.create();
+            }
+            for (Entry<String, String> entry : resatts.entrySet()) {
+                builder.addAttribute(entry.getKey(), entry.getValue());
+            }
+            for (int i = 0; i < capcount; i++) {
+                if (i != contentIndex) {
+                    builder.addCapability(capns.get(i), capatts.get(i), capdirs.get(i));
+                }
+            }
+            int reqcount = readVarint();
+            for (int i = 0; i < reqcount; i++) {
+                String namespace = readString();
+                Map<String, Object> atts = readAttributes();
+                Map<String, String> dirs = internDirectives(readStrings());
+                builder.addRequirement(namespace, atts, dirs);
+            }
+            return builder.getResource();
+        }
+
+        private Map<String, Object> readAttributes() throws IOException {
+            int count = readVarint();
+            Map<String, Object> result = new HashMap<String, Object>();
+            for (int i = 0; i < count; i++) {
+                String key = readString();
+                Object value = readValue();
+                result.put(key, interner != null ? interner.internValue(value) : value);
+            }
+            return result;
+        }
+
+        private Map<String, String> readStrings() throws IOException {
+            int count = readVarint();
+            Map<String, String> result = new HashMap<String, String>();
+            for (int i = 0; i < count; i++) {
+                result.put(readString(), readString());
+            }
+            return result;
+        }
+
+        private Object readValue() throws IOException {
+            int tag = input.readByte();
+            switch (tag) {
+                case TAG_STRING:
+                    return readString();
+                case TAG_VERSION:
+                    String verstr = readString();
+                    Version version = versions.get(verstr);
+                    if (version == null) {
+                        version = Version.parseVersion(verstr);
+                        versions.put(verstr, version);
+                    }
+                    return version;
+                case TAG_LONG:
+                    long val = readVarlong();
+                    return (val >>> 1) ^ -(val & 1);
+                case TAG_DOUBLE:
+                    return Double.longBitsToDouble(input.readLong());
+                case TAG_LIST:
+                    int size = readVarint();
+                    List<Object> list = new ArrayList<Object>(size);
+                    for (int i = 0; i < size; i++) {
+                        list.add(readValue());
+                    }
+                    return list;
+                default:
+                    throw new IOException("Invalid value tag: " + tag);
+            }
+        }
+
+        private String readString() throws IOException {
+            int index = readVarint();
+            if (index > 0) {
+                if (index > strings.size())
+                    throw new IOException("Invalid string index: " + index);
+                return strings.get(index - 1);
+            }
+            byte[] bytes = new byte[readVarint()];
+            input.readFully(bytes);
+            String value = new String(bytes, UTF8);
+            if (interner != null) {
+                value = interner.intern(value);
+            }
+            strings.add(value);
+            return value;
+        }
+
+        private Map<String, String> internDirectives(Map<String, String> dirs) {
+            return interner != null ? interner.internDirectives(dirs) : dirs;
+        }
+
+        private int readVarint() throws IOException {
+            long value = readVarlong();
+            if (value < 0 || value > Integer.MAX_VALUE)
+                throw new IOException("Invalid varint: " + value);
+            return (int) value;
+        }
+
+        private long readVarlong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = input.readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                    return value;
+            }
+            throw new IOException("Invalid varint");
+        }
+    }
+
+    private static void closeQuietly(DataInputStream input) {
+        if (input != null) {
+            try {
+                input.close();
+            } catch (IOException ex) {
+                // ignore
+            }
+        }
+    }
+}
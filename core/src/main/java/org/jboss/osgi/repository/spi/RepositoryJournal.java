@@ -0,0 +1,325 @@
+/*
+ * #%L
+ * JBossOSGi Repository
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.jboss.osgi.repository.spi;
+
+import static org.jboss.osgi.repository.RepositoryLogger.LOGGER;
+import static org.jboss.osgi.repository.RepositoryMessages.MESSAGES;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.jboss.osgi.repository.Namespace100.Attribute;
+import org.jboss.osgi.repository.RepositoryReader;
+import org.jboss.osgi.repository.RepositoryStorageException;
+import org.jboss.osgi.repository.RepositoryWriter;
+import org.jboss.osgi.repository.RepositoryXMLReader;
+import org.jboss.osgi.repository.RepositoryXMLWriter;
+import org.jboss.osgi.resolver.XResource;
+
+/**
+ * An append-only log of the resources that were added to or removed from a storage.
+ *
+ * Every record carries the increment of the storage after the modification,
+ * the affected resources in repository XML and a checksum of both. A record that
+ * was not completely written, or that does not match its checksum or cannot be
+ * parsed, is ignored together with everything that follows it. This covers the
+ * torn, zero filled or garbage tail that a crash may leave.
+ *
+ * Records are appended to a channel that stays open until the journal is closed
+ * or truncated.
+ *
+ * @author agent@local
+ * @since 18-Oct-2026
+ */
+final class RepositoryJournal {
+
+    enum Operation {
+        ADD, REMOVE
+    }
+
+    static final class Record {
+        private final Operation operation;
+        private final long increment;
+        private final List<XResource> resources;
+
+        Record(Operation operation, long increment, List<XResource> resources) {
+            this.operation = operation;
+            this.increment = increment;
+            this.resources = resources;
+        }
+
+        Operation getOperation() {
+            return operation;
+        }
+
+        long getIncrement() {
+            return increment;
+        }
+
+        List<XResource> getResources() {
+            return resources;
+        }
+    }
+
+    // The operation, the increment, the length of the resources and the checksum
+    private static final int HEADER_SIZE = 1 + 8 + 4 + 4;
+
+    private final File journalFile;
+    private final AttributeInterner interner;
+    // The channel that records are appended to, it is opened and closed with the sync lock held
+    private FileChannel channel;
+    private int recordCount;
+    // The number of records ever appended, it is only modified with the storage lock held
+    private volatile long appendCount;
+    // The number of records that are known to be on disk
+    private long syncCount;
+    private final Object syncLock = new Object();
+
+    RepositoryJournal(File journalFile, AttributeInterner interner) {
+        this.journalFile = journalFile;
+        this.interner = interner;
+    }
+
+    File getJournalFile() {
+        return journalFile;
+    }
+
+    /**
+     * Get the number of records in the journal
+     */
+    int getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Read the valid records of the journal, an invalid record and everything after it is truncated.
+     */
+    List<Record> readRecords() throws RepositoryStorageException {
+        if (!journalFile.exists())
+            return Collections.emptyList();
+
+        List<Record> result = new ArrayList<Record>();
+        long fileLength = journalFile.length();
+        long validLength = 0;
+        try {
+            DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+            try {
+                while (true) {
+                    Record record;
+                    int length;
+                    try {
+                        int ordinal = input.readByte();
+                        long increment = input.readLong();
+                        length = input.readInt();
+                        int checksum = input.readInt();
+                        // A length beyond the end of the file is not allocated
+                        if (ordinal < 0 || ordinal >= Operation.values().length || length < 0 || length > fileLength - validLength - HEADER_SIZE)
+                            break;
+                        byte[] bytes = new byte[length];
+                        input.readFully(bytes);
+                        if (checksum != checksum((byte) ordinal, increment, bytes))
+                            break;
+                        record = new Record(Operation.values()[ordinal], increment, readResources(bytes));
+                    } catch (EOFException ex) {
+                        break;
+                    } catch (RuntimeException ex) {
+                        // The resources cannot be parsed
+                        break;
+                    }
+                    result.add(record);
+                    validLength += HEADER_SIZE + length;
+                }
+            } finally {
+                input.close();
+            }
+            if (validLength < journalFile.length()) {
+                LOGGER.warnIncompleteJournalRecord(journalFile);
+                RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+                try {
+                    raf.setLength(validLength);
+                } finally {
+                    raf.close();
+                }
+            }
+        } catch (IOException ex) {
+            throw MESSAGES.cannotReadRepositoryJournal(ex, journalFile);
+        }
+        recordCount = result.size();
+        return result;
+    }
+
+    /**
+     * Append a record for the given modification
+     *
+     * @param increment The increment of the storage after the modification
+     * @return The position of the record that can be passed to {@link #sync(long)}
+     */
+    long append(Operation operation, long increment, Collection<XResource> resources) throws RepositoryStorageException {
+        byte[] bytes = writeResources(increment, resources);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + bytes.length);
+        record.put((byte) operation.ordinal());
+        record.putLong(increment);
+        record.putInt(bytes.length);
+        record.putInt(checksum((byte) operation.ordinal(), increment, bytes));
+        record.put(bytes);
+        record.flip();
+        try {
+            FileChannel output = getChannel();
+            long start = output.size();
+            try {
+                while (record.hasRemaining()) {
+                    output.write(record);
+                }
+            } catch (IOException ex) {
+                // Remove the partial record, so that the records appended after it can be read
+                output.truncate(start);
+                throw ex;
+            }
+        } catch (IOException ex) {
+            throw MESSAGES.cannotWriteRepositoryJournal(ex, journalFile);
+        }
+        recordCount++;
+        return ++appendCount;
+    }
+
+    /**
+     * Force the records up to the given position to disk.
+     *
+     * Concurrent callers share a sync. A caller whose record was appended while
+     * another sync was in progress waits for it and then syncs all records that
+     * were appended in the meantime, so that the callers behind it return without
+     * syncing again.
+     */
+    void sync(long position) throws RepositoryStorageException {
+        synchronized (syncLock) {
+            if (syncCount >= position)
+                return;
+
+            long target = appendCount;
+            // Without a channel the journal was truncated after its records were written to the repository file
+            if (channel != null) {
+                try {
+                    channel.force(false);
+                } catch (IOException ex) {
+                    throw MESSAGES.cannotWriteRepositoryJournal(ex, journalFile);
+                }
+            }
+            syncCount = target;
+        }
+    }
+
+    /**
+     * Force all records that were appended so far to disk
+     */
+    void syncAll() throws RepositoryStorageException {
+        sync(appendCount);
+    }
+
+    /**
+     * Discard all records, after their modifications were written elsewhere
+     */
+    void truncate() throws RepositoryStorageException {
+        synchronized (syncLock) {
+            closeChannel();
+            if (journalFile.exists() && !journalFile.delete())
+                throw MESSAGES.cannotWriteRepositoryJournal(null, journalFile);
+            recordCount = 0;
+            syncCount = appendCount;
+        }
+    }
+
+    /**
+     * Close the append channel, it is opened again by the next append
+     */
+    void close() {
+        synchronized (syncLock) {
+            closeChannel();
+        }
+    }
+
+    private FileChannel getChannel() throws IOException {
+        synchronized (syncLock) {
+            if (channel == null) {
+                journalFile.getParentFile().mkdirs();
+                channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+            return channel;
+        }
+    }
+
+    private void closeChannel() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                // ignore
+            }
+            channel = null;
+        }
+    }
+
+    private static int checksum(byte ordinal, long increment, byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(9).put(ordinal).putLong(increment).array());
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+
+    private static byte[] writeResources(long increment, Collection<XResource> resources) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        RepositoryWriter writer = RepositoryXMLWriter.create(output);
+        Map<String, String> attributes = Collections.singletonMap(Attribute.INCREMENT.getLocalName(), Long.toString(increment));
+        writer.writeRepositoryElement(attributes);
+        for (XResource res : resources) {
+            writer.writeResource(res);
+        }
+        writer.close();
+        return output.toByteArray();
+    }
+
+    private List<XResource> readResources(byte[] bytes) {
+        List<XResource> result = new ArrayList<XResource>();
+        ByteArrayInputStream input = new ByteArrayInputStream(bytes);
+        RepositoryReader reader = interner != null ? RepositoryXMLReader.create(input, interner) : RepositoryXMLReader.create(input);
+        XResource res = reader.nextResource();
+        while (res != null) {
+            result.add(res);
+            res = reader.nextResource();
+        }
+        reader.close();
+        return result;
+    }
+}
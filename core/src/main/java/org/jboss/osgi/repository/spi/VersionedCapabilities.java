@@ -0,0 +1,197 @@
+/*
+ * #%L
+ * JBossOSGi Repository
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.jboss.osgi.repository.spi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.jboss.osgi.repository.spi.FilterAnalyzer.VersionBounds;
+import org.jboss.osgi.resolver.XCapability;
+import org.osgi.framework.Version;
+import org.osgi.framework.namespace.BundleNamespace;
+import org.osgi.framework.namespace.HostNamespace;
+import org.osgi.framework.namespace.IdentityNamespace;
+import org.osgi.framework.namespace.PackageNamespace;
+
+/**
+ * An immutable set of capabilities of a namespace that share the same namespace value, ordered by version.
+ *
+ * Capabilities that do not have a {@link Version} typed version attribute
+ * cannot be ordered. They are returned after the versioned capabilities for every range.
+ *
+ * The capabilities are kept in a single array, which is compact for the common case of
+ * few capabilities per namespace value. Version ranges are located by binary search.
+ * Modifications return a new instance, so that readers can use an instance without locking.
+ *
+ * @author agent@local
+ * @since 18-Oct-2026
+ */
+final class VersionedCapabilities {
+
+    private static final XCapability[] NO_CAPABILITIES = new XCapability[0];
+
+    private final String versionAttribute;
+    // Highest version first, followed by the unversioned capabilities
+    private final XCapability[] capabilities;
+    private final int versionedCount;
+
+    VersionedCapabilities(String namespace) {
+        this(getVersionAttribute(namespace), NO_CAPABILITIES, 0);
+    }
+
+    private VersionedCapabilities(String versionAttribute, XCapability[] capabilities, int versionedCount) {
+        this.versionAttribute = versionAttribute;
+        this.capabilities = capabilities;
+        this.versionedCount = versionedCount;
+    }
+
+    /**
+     * Get the name of the attribute that carries the version for the given namespace
+     */
+    static String getVersionAttribute(String namespace) {
+        if (BundleNamespace.BUNDLE_NAMESPACE.equals(namespace)) {
+            return BundleNamespace.CAPABILITY_BUNDLE_VERSION_ATTRIBUTE;
+        } else if (HostNamespace.HOST_NAMESPACE.equals(namespace)) {
+            return HostNamespace.CAPABILITY_BUNDLE_VERSION_ATTRIBUTE;
+        } else if (IdentityNamespace.IDENTITY_NAMESPACE.equals(namespace)) {
+            return IdentityNamespace.CAPABILITY_VERSION_ATTRIBUTE;
+        } else {
+            return PackageNamespace.CAPABILITY_VERSION_ATTRIBUTE;
+        }
+    }
+
+    String getVersionAttribute() {
+        return versionAttribute;
+    }
+
+    /**
+     * Get a copy of this set that also contains the given capability
+     */
+    VersionedCapabilities add(XCapability cap) {
+        Version version = getVersion(cap);
+        if (version != null) {
+            // Capabilities of the same version keep the order in which they were added
+            int index = firstIndexBelow(version, true);
+            return new VersionedCapabilities(versionAttribute, insert(capabilities, index, cap), versionedCount + 1);
+        } else {
+            return new VersionedCapabilities(versionAttribute, insert(capabilities, capabilities.length, cap), versionedCount);
+        }
+    }
+
+    /**
+     * Get a copy of this set that does not contain the given capability
+     *
+     * @return This instance if the capability is not contained
+     */
+    VersionedCapabilities remove(XCapability cap) {
+        Version version = getVersion(cap);
+        int from = version != null ? firstIndexBelow(version, false) : versionedCount;
+        int to = version != null ? firstIndexBelow(version, true) : capabilities.length;
+        for (int i = from; i < to; i++) {
+            if (capabilities[i] == cap) {
+                XCapability[] result = new XCapability[capabilities.length - 1];
+                System.arraycopy(capabilities, 0, result, 0, i);
+                System.arraycopy(capabilities, i + 1, result, i, capabilities.length - i - 1);
+                return new VersionedCapabilities(versionAttribute, result, version != null ? versionedCount - 1 : versionedCount);
+            }
+        }
+        return this;
+    }
+
+    boolean isEmpty() {
+        return capabilities.length == 0;
+    }
+
+    /**
+     * Get all capabilities, highest version first
+     */
+    List<XCapability> getCapabilities() {
+        return Collections.unmodifiableList(Arrays.asList(capabilities));
+    }
+
+    /**
+     * Get the capabilities that may lie within the given bounds, highest version first
+     */
+    List<XCapability> getCapabilities(VersionBounds bounds) {
+        if (bounds == null || bounds.isUnbounded())
+            return getCapabilities();
+
+        // No versioned capability lies within empty bounds, only the unversioned ones may match
+        int start = versionedCount;
+        int end = versionedCount;
+        if (!bounds.isEmpty()) {
+            start = 0;
+            if (bounds.getCeiling() != null) {
+                start = firstIndexBelow(bounds.getCeiling(), !bounds.isCeilingInclusive());
+            }
+            if (bounds.getFloor() != null) {
+                end = firstIndexBelow(bounds.getFloor(), bounds.isFloorInclusive());
+            }
+        }
+        List<XCapability> result = new ArrayList<XCapability>();
+        for (int i = start; i < end; i++) {
+            result.add(capabilities[i]);
+        }
+        for (int i = versionedCount; i < capabilities.length; i++) {
+            result.add(capabilities[i]);
+        }
+        return result;
+    }
+
+    private Version getVersion(XCapability cap) {
+        Object version = cap.getAttribute(versionAttribute);
+        return version instanceof Version ? (Version) version : null;
+    }
+
+    /**
+     * Get the index of the first versioned capability that is below the given version.
+     *
+     * @param skipEqual If true, capabilities of the given version are not considered below
+     */
+    private int firstIndexBelow(Version version, boolean skipEqual) {
+        int low = 0;
+        int high = versionedCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int comp = getVersion(capabilities[mid]).compareTo(version);
+            if (comp < 0 || (comp == 0 && !skipEqual)) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+
+    private static XCapability[] insert(XCapability[] caps, int index, XCapability cap) {
+        XCapability[] result = new XCapability[caps.length + 1];
+        System.arraycopy(caps, 0, result, 0, index);
+        result[index] = cap;
+        System.arraycopy(caps, index, result, index + 1, caps.length - index);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "VersionedCapabilities" + getCapabilities();
+    }
+}
@@ -0,0 +1,79 @@
+package org.jboss.test.osgi.repository;
+/*
+ * #%L
+ * JBossOSGi Repository
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+
+import org.jboss.osgi.repository.RepositoryXMLReader;
+import org.jboss.osgi.repository.spi.AttributeInterner;
+import org.jboss.osgi.resolver.XCapability;
+import org.jboss.osgi.resolver.XResource;
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.namespace.PackageNamespace;
+
+/**
+ * Test that resources read with an {@link AttributeInterner} share their equal values.
+ *
+ * @author agent@local
+ * @since 18-Oct-2026
+ */
+public class AttributeInternerTestCase extends AbstractRepositoryTest {
+
+    @Test
+    public void testSharedValues() throws Exception {
+        byte[] xml = createRepositoryXML(2, 10);
+        List<XResource> resources = getResources(RepositoryXMLReader.create(new ByteArrayInputStream(xml), new AttributeInterner()));
+
+        XCapability capA = (XCapability) resources.get(0).getCapabilities(PackageNamespace.PACKAGE_NAMESPACE).get(0);
+        XCapability capB = (XCapability) resources.get(1).getCapabilities(PackageNamespace.PACKAGE_NAMESPACE).get(0);
+        Assert.assertSame(capA.getAttribute(PackageNamespace.PACKAGE_NAMESPACE), capB.getAttribute(PackageNamespace.PACKAGE_NAMESPACE));
+        Assert.assertSame(capA.getAttribute(PackageNamespace.CAPABILITY_VERSION_ATTRIBUTE), capB.getAttribute(PackageNamespace.CAPABILITY_VERSION_ATTRIBUTE));
+        Assert.assertSame(capA.getDirective(PackageNamespace.CAPABILITY_USES_DIRECTIVE), capB.getDirective(PackageNamespace.CAPABILITY_USES_DIRECTIVE));
+    }
+
+    // Every resource exports the same packages, like many versions of the same bundle would
+    static byte[] createRepositoryXML(int resourceCount, int packageCount) throws Exception {
+        StringBuilder builder = new StringBuilder();
+        builder.append("<repository name='Footprint' increment='1' xmlns='http://www.osgi.org/xmlns/repository/v1.0.0'>\n");
+        for (int i = 0; i < resourceCount; i++) {
+            builder.append("<resource>\n");
+            builder.append("<capability namespace='osgi.identity'>\n");
+            builder.append("<attribute name='osgi.identity' value='org.acme.bundle" + i + "'/>\n");
+            builder.append("<attribute name='version' type='Version' value='1.0.0'/>\n");
+            builder.append("<attribute name='type' value='osgi.bundle'/>\n");
+            builder.append("</capability>\n");
+            for (int j = 0; j < packageCount; j++) {
+                builder.append("<capability namespace='osgi.wiring.package'>\n");
+                builder.append("<attribute name='osgi.wiring.package' value='org.acme.pkg" + j + "'/>\n");
+                builder.append("<attribute name='version' type='Version' value='1.0.0'/>\n");
+                builder.append("<directive name='uses' value='org.acme.api,org.acme.spi'/>\n");
+                builder.append("</capability>\n");
+            }
+            builder.append("<requirement namespace='osgi.wiring.package'>\n");
+            builder.append("<directive name='filter' value='(osgi.wiring.package=org.acme.api)'/>\n");
+            builder.append("</requirement>\n");
+            builder.append("</resource>\n");
+        }
+        builder.append("</repository>\n");
+        return builder.toString().getBytes("UTF-8");
+    }
+}
@@ -0,0 +1,197 @@
+package org.jboss.test.osgi.repository;
+/*
+ * #%L
+ * JBossOSGi Repository
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+
+import static org.osgi.service.repository.ContentNamespace.CAPABILITY_MIME_ATTRIBUTE;
+import static org.osgi.service.repository.ContentNamespace.CAPABILITY_URL_ATTRIBUTE;
+import static org.osgi.service.repository.ContentNamespace.CONTENT_NAMESPACE;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.osgi.repository.RepositoryContentHelper;
+import org.jboss.osgi.repository.RepositoryReader;
+import org.jboss.osgi.repository.RepositoryStorage;
+import org.jboss.osgi.repository.RepositoryStorageException;
+import org.jboss.osgi.repository.RepositoryStorageFactory;
+import org.jboss.osgi.repository.XRepository;
+import org.jboss.osgi.repository.spi.BackgroundRepositoryStorage;
+import org.jboss.osgi.repository.spi.FileBasedRepositoryStorage;
+import org.jboss.osgi.repository.spi.MavenIdentityRepository.ConfigurationPropertyProvider;
+import org.jboss.osgi.repository.spi.MemoryRepositoryStorage;
+import org.jboss.osgi.resolver.XRequirement;
+import org.jboss.osgi.resolver.XRequirementBuilder;
+import org.jboss.osgi.resolver.XResource;
+import org.jboss.osgi.resolver.XResourceBuilder;
+import org.jboss.osgi.resolver.XResourceBuilderFactory;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.osgi.framework.Version;
+import org.osgi.framework.namespace.BundleNamespace;
+import org.osgi.resource.Capability;
+
+/**
+ * Test the {@link BackgroundRepositoryStorage}
+ *
+ * @author agent@local
+ * @since 18-Oct-2026
+ */
+public class BackgroundRepositoryStorageTestCase extends AbstractRepositoryTest {
+
+    @Test
+    public void testQueriesWhileLoading() throws Exception {
+
+        XRepository repository = Mockito.mock(XRepository.class);
+        Mockito.when(repository.getName()).thenReturn("MockedRepo");
+        final CountDownLatch release = new CountDownLatch(1);
+        RepositoryStorageFactory factory = new RepositoryStorageFactory() {
+            @Override
+            public RepositoryStorage create(XRepository repository) {
+                try {
+                    release.await();
+                    RepositoryStorage result = new MemoryRepositoryStorage(repository);
+                    RepositoryReader reader = getRepositoryReader("xml/sample-repository.xml");
+                    result.addResource(reader.nextResource());
+                    return result;
+                } catch (Exception ex) {
+                    throw new IllegalStateException(ex);
+                }
+            }
+        };
+        BackgroundRepositoryStorage storage = new BackgroundRepositoryStorage(repository, factory, 0);
+        Assert.assertFalse("Not ready", storage.isReady());
+        Assert.assertFalse("Not resolved", storage.getReadyPromise().isDone());
+
+        // Queries do not wait for the storage
+        XRequirement req = XRequirementBuilder.create(BundleNamespace.BUNDLE_NAMESPACE, "org.acme.pool").getRequirement();
+        Assert.assertTrue("No providers while loading", storage.findProviders(req).isEmpty());
+
+        release.countDown();
+        RepositoryStorage loaded = storage.getReadyPromise().getValue();
+        Assert.assertSame(loaded, storage.awaitStorage());
+        Assert.assertTrue("Ready", storage.isReady());
+
+        Collection<Capability> providers = storage.findProviders(req);
+        Assert.assertEquals("One provider", 1, providers.size());
+    }
+
+    @Test
+    public void testBoundedWait() throws Exception {
+
+        XRepository repository = Mockito.mock(XRepository.class);
+        Mockito.when(repository.getName()).thenReturn("MockedRepo");
+        final CountDownLatch started = new CountDownLatch(1);
+        RepositoryStorageFactory factory = new RepositoryStorageFactory() {
+            @Override
+            public RepositoryStorage create(XRepository repository) {
+                started.countDown();
+                try {
+                    Thread.sleep(200);
+                    RepositoryStorage result = new MemoryRepositoryStorage(repository);
+                    RepositoryReader reader = getRepositoryReader("xml/sample-repository.xml");
+                    result.addResource(reader.nextResource());
+                    return result;
+                } catch (Exception ex) {
+                    throw new IllegalStateException(ex);
+                }
+            }
+        };
+        BackgroundRepositoryStorage storage = new BackgroundRepositoryStorage(repository, factory, 10000);
+        Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        // The query waits until the storage is loaded
+        XRequirement req = XRequirementBuilder.create(BundleNamespace.BUNDLE_NAMESPACE, "org.acme.pool").getRequirement();
+        Assert.assertEquals("One provider", 1, storage.findProviders(req).size());
+        Assert.assertTrue("Ready", storage.isReady());
+    }
+
+    @Test
+    public void testLoadFailure() throws Exception {
+
+        XRepository repository = Mockito.mock(XRepository.class);
+        Mockito.when(repository.getName()).thenReturn("MockedRepo");
+        RepositoryStorageFactory factory = new RepositoryStorageFactory() {
+            @Override
+            public RepositoryStorage create(XRepository repository) {
+                throw new IllegalStateException("Broken storage");
+            }
+        };
+        BackgroundRepositoryStorage storage = new BackgroundRepositoryStorage(repository, factory, 0);
+        Assert.assertNotNull(storage.getReadyPromise().getFailure());
+        try {
+            storage.awaitStorage();
+            Assert.fail("RepositoryStorageException expected");
+        } catch (RepositoryStorageException ex) {
+            // expected
+        }
+        Assert.assertFalse("Not ready", storage.isReady());
+    }
+
+    @Test
+    public void testLoadedResourceCount() throws Exception {
+
+        XRepository repository = Mockito.mock(XRepository.class);
+        Mockito.when(repository.getName()).thenReturn("MockedRepo");
+        final File storageDir = new File("./target/background/" + System.currentTimeMillis()).getCanonicalFile();
+        storageDir.mkdirs();
+        try {
+            File contentFile = new File(storageDir, "content.txt");
+            FileWriter writer = new FileWriter(contentFile);
+            writer.write("background");
+            writer.close();
+            String digest = RepositoryContentHelper.getDigest(new FileInputStream(contentFile));
+            final ConfigurationPropertyProvider config = Mockito.mock(ConfigurationPropertyProvider.class);
+            RepositoryStorage fileStorage = new FileBasedRepositoryStorage(repository, storageDir, config);
+            for (int i = 0; i < 3; i++) {
+                fileStorage.addResource(createContentResource("org.acme.bundle" + i, digest, contentFile));
+            }
+
+            RepositoryStorageFactory factory = new RepositoryStorageFactory() {
+                @Override
+                public RepositoryStorage create(XRepository repository) {
+                    return new FileBasedRepositoryStorage(repository, storageDir, config);
+                }
+            };
+            BackgroundRepositoryStorage storage = new BackgroundRepositoryStorage(repository, factory, 0);
+            storage.awaitStorage();
+            Assert.assertTrue("Ready", storage.isReady());
+            Assert.assertEquals("Resources loaded", 3, storage.getLoadedResourceCount());
+        } finally {
+            deleteRecursive(storageDir);
+        }
+    }
+
+    private XResource createContentResource(String name, String digest, File contentFile) {
+        XResourceBuilder<XResource> builder = XResourceBuilderFactory.create();
+        builder.addIdentityCapability(name, Version.emptyVersion);
+        Map<String, Object> atts = new HashMap<String, Object>();
+        atts.put(CONTENT_NAMESPACE, digest);
+        atts.put(CAPABILITY_MIME_ATTRIBUTE, "text/plain");
+        atts.put(CAPABILITY_URL_ATTRIBUTE, contentFile.toURI().toString());
+        builder.addCapability(CONTENT_NAMESPACE, atts, null);
+        return builder.getResource();
+    }
+}
@@ -0,0 +1,98 @@
+package org.jboss.test.osgi.repository;
+/*
+ * #%L
+ * JBossOSGi Repository
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jboss.logging.Logger;
+import org.jboss.osgi.repository.RepositoryReader;
+import org.jboss.osgi.repository.RepositoryStorage;
+import org.jboss.osgi.repository.RepositoryXMLReader;
+import org.jboss.osgi.repository.XRepository;
+import org.jboss.osgi.repository.spi.AttributeInterner;
+import org.jboss.osgi.repository.spi.MemoryRepositoryStorage;
+import org.jboss.osgi.resolver.XResource;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+/**
+ * Measure the heap footprint of resources in a {@link MemoryRepositoryStorage}
+ * that were read with and without an {@link AttributeInterner}.
+ *
+ * The bytes per resource are logged for both modes.
+ *
+ * Run with: mvn test -Pbenchmark
+ *
+ * @author agent@local
+ * @since 18-Oct-2026
+ */
+public class CompactStorageFootprintBenchmark extends AbstractRepositoryTest {
+
+    private static final Logger log = Logger.getLogger(CompactStorageFootprintBenchmark.class);
+
+    private static final int RESOURCE_COUNT = 5000;
+    private static final int PACKAGE_COUNT = 10;
+
+    @Test
+    public void testHeapFootprint() throws Exception {
+        byte[] xml = AttributeInternerTestCase.createRepositoryXML(RESOURCE_COUNT, PACKAGE_COUNT);
+
+        long plain = measureFootprint(xml, null);
+        long compact = measureFootprint(xml, new AttributeInterner());
+        log.infof("Bytes per resource: plain=%d, compact=%d", plain / RESOURCE_COUNT, compact / RESOURCE_COUNT);
+    }
+
+    private long measureFootprint(byte[] xml, AttributeInterner interner) throws Exception {
+        long before = usedHeap();
+        RepositoryStorage storage = new MemoryRepositoryStorage(Mockito.mock(XRepository.class));
+        for (XResource res : readResources(xml, interner)) {
+            storage.addResource(res);
+        }
+        long after = usedHeap();
+        Assert.assertNotNull(storage.getRepositoryReader().nextResource());
+        return after - before;
+    }
+
+    private List<XResource> readResources(byte[] xml, AttributeInterner interner) {
+        InputStream input = new ByteArrayInputStream(xml);
+        RepositoryReader reader = interner != null ? RepositoryXMLReader.create(input, interner) : RepositoryXMLReader.create(input);
+        List<XResource> result = new ArrayList<XResource>();
+        XResource res = reader.nextResource();
+        while (res != null) {
+            result.add(res);
+            res = reader.nextResource();
+        }
+        reader.close();
+        return result;
+    }
+
+    private long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
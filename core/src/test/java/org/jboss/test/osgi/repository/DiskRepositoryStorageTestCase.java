@@ -0,0 +1,359 @@
+package org.jboss.test.osgi.repository;
+/*
+ * #%L
+ * JBossOSGi Repository
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import static org.osgi.framework.namespace.IdentityNamespace.IDENTITY_NAMESPACE;
+import static org.osgi.framework.namespace.PackageNamespace.CAPABILITY_VERSION_ATTRIBUTE;
+import static org.osgi.framework.namespace.PackageNamespace.PACKAGE_NAMESPACE;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.jboss.osgi.repository.RepositoryReader;
+import org.jboss.osgi.repository.XRepository;
+import org.jboss.osgi.repository.spi.DiskRepositoryStorage;
+import org.jboss.osgi.repository.spi.MavenIdentityRepository.ConfigurationPropertyProvider;
+import org.jboss.osgi.resolver.XCapability;
+import org.jboss.osgi.resolver.XIdentityCapability;
+import org.jboss.osgi.resolver.XRequirement;
+import org.jboss.osgi.resolver.XRequirementBuilder;
+import org.jboss.osgi.resolver.XResource;
+import org.jboss.osgi.resolver.XResourceBuilder;
+import org.jboss.osgi.resolver.XResourceBuilderFactory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.osgi.framework.Version;
+import org.osgi.resource.Capability;
+
+/**
+ * Test the {@link DiskRepositoryStorage}
+ *
+ * @author agent@local
+ * @since 18-Oct-2026
+ */
+public class DiskRepositoryStorageTestCase extends AbstractRepositoryTest {
+
+    private File storageDir;
+    private XRepository repository;
+    private ConfigurationPropertyProvider config;
+    private DiskRepositoryStorage storage;
+
+    @Before
+    public void setUp() throws Exception {
+        storageDir = new File("./target/repository/" + System.currentTimeMillis()).getCanonicalFile();
+        repository = Mockito.mock(XRepository.class);
+        Mockito.when(repository.getName()).thenReturn("MockedRepo");
+        // Small caches, so that most pages and resources are read from disk
+        config = Mockito.mock(ConfigurationPropertyProvider.class);
+        Mockito.when(config.getProperty(XRepository.PROPERTY_REPOSITORY_STORAGE_PAGE_CACHE_SIZE, null)).thenReturn("16");
+        Mockito.when(config.getProperty(XRepository.PROPERTY_REPOSITORY_STORAGE_RESOURCE_CACHE_SIZE, null)).thenReturn("16");
+        storage = new DiskRepositoryStorage(repository, storageDir, config);
+    }
+
+    @After
+    public void tearDown() {
+        storage.close();
+        deleteRecursive(storageDir);
+    }
+
+    @Test
+    public void testFindProviders() throws Exception {
+        storage.addResource(createPackageResource("org.acme.foo", "1.0"));
+        storage.addResource(createPackageResource("org.acme.foo", "2.0"));
+        storage.addResource(createPackageResource("org.acme.bar", "1.0"));
+
+        XRequirement req = XRequirementBuilder.create(PACKAGE_NAMESPACE, "org.acme.foo").getRequirement();
+        List<Capability> providers = new ArrayList<Capability>(storage.findProviders(req));
+        Assert.assertEquals(2, providers.size());
+        Assert.assertEquals(Version.parseVersion("2.0"), providers.get(0).getAttributes().get(CAPABILITY_VERSION_ATTRIBUTE));
+        Assert.assertEquals(Version.parseVersion("1.0"), providers.get(1).getAttributes().get(CAPABILITY_VERSION_ATTRIBUTE));
+
+        req = XRequirementBuilder.create(IDENTITY_NAMESPACE, "org.acme.bar").getRequirement();
+        Assert.assertEquals(1, storage.findProviders(req).size());
+
+        req = XRequirementBuilder.create(PACKAGE_NAMESPACE, "org.acme.baz").getRequirement();
+        Assert.assertTrue(storage.findProviders(req).isEmpty());
+    }
+
+    @Test
+    public void testAddRemove() throws Exception {
+        XResource res = storage.addResource(createPackageResource("org.acme.foo", "1.0"));
+        XIdentityCapability icap = res.getIdentityCapability();
+        Assert.assertSame(res, storage.getResource(icap));
+
+        try {
+            storage.addResource(createPackageResource("org.acme.foo", "1.0"));
+            Assert.fail("IllegalStateException expected");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+
+        Assert.assertTrue(storage.removeResource(res));
+        Assert.assertNull(storage.getResource(icap));
+        Assert.assertFalse(storage.removeResource(res));
+
+        XRequirement req = XRequirementBuilder.create(PACKAGE_NAMESPACE, "org.acme.foo").getRequirement();
+        Assert.assertTrue(storage.findProviders(req).isEmpty());
+    }
+
+    @Test
+    public void testRestart() throws Exception {
+        List<XResource> resources = new ArrayList<XResource>();
+        for (int i = 0; i < 10; i++) {
+            resources.add(createPackageResource("org.acme.pkg" + i, "1.0"));
+        }
+        storage.addResources(resources);
+        storage.removeResource(resources.get(3));
+        String increment = storage.getRepositoryReader().getRepositoryAttributes().get("increment");
+        storage.close();
+
+        storage = new DiskRepositoryStorage(repository, storageDir, config);
+        RepositoryReader reader = storage.getRepositoryReader();
+        Assert.assertEquals(increment, reader.getRepositoryAttributes().get("increment"));
+        Iterator<XResource> itres = resources.iterator();
+        XResource res = reader.nextResource();
+        while (res != null) {
+            XResource expected = itres.next();
+            if (expected == resources.get(3)) {
+                expected = itres.next();
+            }
+            Assert.assertEquals(expected.getIdentityCapability().getName(), res.getIdentityCapability().getName());
+            res = reader.nextResource();
+        }
+        Assert.assertFalse(itres.hasNext());
+        reader.close();
+
+        XRequirement req = XRequirementBuilder.create(PACKAGE_NAMESPACE, "org.acme.pkg5").getRequirement();
+        Collection<Capability> providers = storage.findProviders(req);
+        Assert.assertEquals(1, providers.size());
+        XCapability cap = (XCapability) providers.iterator().next();
+        Assert.assertEquals("org.acme.pkg5", cap.getResource().getIdentityCapability().getName());
+    }
+
+    @Test
+    public void testMoreResourcesThanCached() throws Exception {
+        // Many more resources than fit into the page and resource caches
+        int count = 2000;
+        List<XResource> resources = new ArrayList<XResource>();
+        for (int i = 0; i < count; i++) {
+            resources.add(createPackageResource("org.acme.pkg" + i, "1." + i));
+            if (resources.size() == 100) {
+                storage.addResources(resources);
+                resources.clear();
+            }
+        }
+        for (int i = 0; i < count; i += 37) {
+            XRequirement req = XRequirementBuilder.create(PACKAGE_NAMESPACE, "org.acme.pkg" + i).getRequirement();
+            Collection<Capability> providers = storage.findProviders(req);
+            Assert.assertEquals("org.acme.pkg" + i, 1, providers.size());
+            Capability cap = providers.iterator().next();
+            Assert.assertEquals(Version.parseVersion("1." + i), cap.getAttributes().get(CAPABILITY_VERSION_ATTRIBUTE));
+        }
+
+        int read = 0;
+        RepositoryReader reader = storage.getRepositoryReader();
+        while (reader.nextResource() != null) {
+            read++;
+        }
+        Assert.assertEquals(count, read);
+    }
+
+    @Test
+    public void testInterruptedModification() throws Exception {
+        List<XResource> resources = new ArrayList<XResource>();
+        for (int i = 0; i < 1000; i++) {
+            resources.add(createPackageResource("org.acme.pkg" + i, "1.0"));
+        }
+        storage.addResources(resources);
+
+        // The batch is spread over the index, so that it modifies more pages than are cached.
+        // Copy the files in the middle of a modification, which is what a crash leaves on disk
+        final File crashDir = new File(storageDir.getPath() + "-crash");
+        final List<XResource> batch = new ArrayList<XResource>();
+        for (int i = 0; i < 200; i++) {
+            batch.add(createPackageResource("org.acme.pkg" + i + ".batch", "1.0"));
+        }
+        storage.addResources(new AbstractCollection<XResource>() {
+            @Override
+            public int size() {
+                return batch.size();
+            }
+
+            @Override
+            public Iterator<XResource> iterator() {
+                final Iterator<XResource> itres = batch.iterator();
+                return new Iterator<XResource>() {
+                    private int index;
+
+                    @Override
+                    public boolean hasNext() {
+                        return itres.hasNext();
+                    }
+
+                    @Override
+                    public XResource next() {
+                        // The copy of the last pass over the batch is kept
+                        if (index++ == batch.size() / 2) {
+                            copyFiles(storageDir, crashDir);
+                        }
+                        return itres.next();
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        });
+        File logFile = new File(crashDir, DiskRepositoryStorage.TREE_FILE_NAME + ".log");
+        Assert.assertTrue("Pages of the interrupted modification written", logFile.length() > 0);
+
+        // The resources from before the interrupted modification survive
+        DiskRepositoryStorage recovered = new DiskRepositoryStorage(repository, crashDir, config);
+        try {
+            for (XResource res : resources) {
+                Assert.assertNotNull(recovered.getResource(res.getIdentityCapability()));
+            }
+            for (XResource res : batch) {
+                Assert.assertNull(recovered.getResource(res.getIdentityCapability()));
+            }
+            int read = 0;
+            RepositoryReader reader = recovered.getRepositoryReader();
+            while (reader.nextResource() != null) {
+                read++;
+            }
+            Assert.assertEquals(resources.size(), read);
+
+            recovered.addResources(batch);
+            XRequirement req = XRequirementBuilder.create(PACKAGE_NAMESPACE, "org.acme.pkg7.batch").getRequirement();
+            Assert.assertEquals(1, recovered.findProviders(req).size());
+        } finally {
+            recovered.close();
+            deleteRecursive(crashDir);
+        }
+    }
+
+    @Test
+    public void testFailedModification() throws Exception {
+        List<XResource> resources = new ArrayList<XResource>();
+        for (int i = 0; i < 1000; i++) {
+            resources.add(createPackageResource("org.acme.pkg" + i, "1.0"));
+        }
+        storage.addResources(resources);
+        String increment = storage.getRepositoryReader().getRepositoryAttributes().get("increment");
+
+        // Fail in the middle of the pass that modifies the tree, after the batch was validated
+        final List<XResource> batch = new ArrayList<XResource>();
+        for (int i = 0; i < 200; i++) {
+            batch.add(createPackageResource("org.acme.pkg" + i + ".batch", "1.0"));
+        }
+        try {
+            storage.addResources(new AbstractCollection<XResource>() {
+                private int passes;
+
+                @Override
+                public int size() {
+                    return batch.size();
+                }
+
+                @Override
+                public Iterator<XResource> iterator() {
+                    final boolean fail = ++passes > 1;
+                    final Iterator<XResource> itres = batch.iterator();
+                    return new Iterator<XResource>() {
+                        private int index;
+
+                        @Override
+                        public boolean hasNext() {
+                            return itres.hasNext();
+                        }
+
+                        @Override
+                        public XResource next() {
+                            if (fail && index++ == batch.size() / 2)
+                                throw new IllegalStateException("Simulated failure");
+                            return itres.next();
+                        }
+
+                        @Override
+                        public void remove() {
+                            throw new UnsupportedOperationException();
+                        }
+                    };
+                }
+            });
+            Assert.fail("IllegalStateException expected");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+
+        // The failed modification is rolled back and the storage is still usable
+        Assert.assertEquals(increment, storage.getRepositoryReader().getRepositoryAttributes().get("increment"));
+        for (XResource res : batch) {
+            Assert.assertNull(storage.getResource(res.getIdentityCapability()));
+        }
+        Assert.assertNotNull(storage.getResource(resources.get(7).getIdentityCapability()));
+        storage.addResources(batch);
+        storage.close();
+
+        storage = new DiskRepositoryStorage(repository, storageDir, config);
+        int read = 0;
+        RepositoryReader reader = storage.getRepositoryReader();
+        while (reader.nextResource() != null) {
+            read++;
+        }
+        Assert.assertEquals(resources.size() + batch.size(), read);
+    }
+
+    private XResource createPackageResource(String pkgname, String version) {
+        XResourceBuilder<XResource> builder = XResourceBuilderFactory.create();
+        builder.addIdentityCapability(pkgname, Version.parseVersion(version));
+        Map<String, Object> atts = new HashMap<String, Object>();
+        atts.put(PACKAGE_NAMESPACE, pkgname);
+        atts.put(CAPABILITY_VERSION_ATTRIBUTE, Version.parseVersion(version));
+        builder.addCapability(PACKAGE_NAMESPACE, atts, null);
+        return builder.getResource();
+    }
+
+    private static void copyFiles(File sourceDir, File targetDir) {
+        targetDir.mkdirs();
+        try {
+            for (File file : sourceDir.listFiles()) {
+                Files.copy(file.toPath(), new File(targetDir, file.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -27,16 +27,30 @@ import static org.osgi.service.repository.ContentNamespace.CAPABILITY_URL_ATTRIB
 import static org.osgi.service.repository.ContentNamespace.CONTENT_NAMESPACE;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.InputStream;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.jboss.osgi.metadata.OSGiManifestBuilder;
 import org.jboss.osgi.repository.RepositoryContentHelper;
@@ -45,7 +59,9 @@ import org.jboss.osgi.repository.RepositoryStorage;
 import org.jboss.osgi.repository.URLResourceBuilderFactory;
 import org.jboss.osgi.repository.XContentCapability;
 import org.jboss.osgi.repository.XRepository;
+import org.jboss.osgi.repository.XRepositoryContent;
 import org.jboss.osgi.repository.spi.FileBasedRepositoryStorage;
+import org.jboss.osgi.repository.spi.FileBasedRepositoryStorage.Durability;
 import org.jboss.osgi.repository.spi.MavenIdentityRepository.ConfigurationPropertyProvider;
 import org.jboss.osgi.resolver.XCapability;
 import org.jboss.osgi.resolver.XIdentityCapability;
@@ -66,6 +82,9 @@ import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.osgi.framework.Version;
 import org.osgi.resource.Capability;
 import org.osgi.service.repository.RepositoryContent;
 
@@ -109,6 +128,27 @@ public class FileBasedRepositoryStorageTestCase extends AbstractRepositoryTest {
         bundleAtxt.delete();
     }
 
+    @Test
+    public void testDurabilityRestart() throws Exception {
+        for (Durability durability : Durability.values()) {
+            File durableDir = new File(storageDir, "durable-" + durability);
+            ConfigurationPropertyProvider config = Mockito.mock(ConfigurationPropertyProvider.class);
+            Mockito.when(config.getProperty(XRepository.PROPERTY_REPOSITORY_STORAGE_FILE, FileBasedRepositoryStorage.REPOSITORY_XML_NAME)).thenReturn(FileBasedRepositoryStorage.REPOSITORY_XML_NAME);
+            Mockito.when(config.getProperty(XRepository.PROPERTY_REPOSITORY_STORAGE_DURABILITY, null)).thenReturn(durability.name().toLowerCase());
+            FileBasedRepositoryStorage durableStorage = new FileBasedRepositoryStorage(repository, durableDir, config);
+            Assert.assertEquals(durability, durableStorage.getDurability());
+            XResource resource = durableStorage.addResource(getRepositoryReader("xml/repository-testA.xml").nextResource());
+            Assert.assertTrue(new File(durableDir, FileBasedRepositoryStorage.REPOSITORY_XML_NAME).exists());
+
+            // The modification survives a restart and leaves no temporary files
+            RepositoryStorage other = new FileBasedRepositoryStorage(repository, durableDir, config);
+            Assert.assertNotNull("Resource restored: " + durability, other.getResource(resource.getIdentityCapability()));
+            for (String name : durableDir.list()) {
+                Assert.assertFalse("Temporary file: " + name, name.endsWith(".tmp"));
+            }
+        }
+    }
+
     @Test
     public void testAddResourceFromXML() throws Exception {
         // Add a resource from XML
@@ -165,6 +205,33 @@ public class FileBasedRepositoryStorageTestCase extends AbstractRepositoryTest {
         br.close();
     }
 
+    @Test
+    public void testLocalContentAccess() throws Exception {
+        // Add a resource from XML
+        RepositoryReader reader = getRepositoryReader("xml/repository-testA.xml");
+        XResource resource = storage.addResource(reader.nextResource());
+        XContentCapability ccap = ((XCapability) resource.getCapabilities(CONTENT_NAMESPACE).get(0)).adapt(XContentCapability.class);
+
+        XRepositoryContent content = (XRepositoryContent) resource;
+        File contentFile = URLResourceBuilderFactory.urlToFile(new URL(ccap.getContentURL()));
+        Assert.assertEquals(contentFile.getAbsoluteFile().toPath(), content.getContentPath().toAbsolutePath());
+
+        // Transfer the content from the channel
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        FileChannel channel = content.getContentChannel();
+        try {
+            channel.transferTo(0, channel.size(), Channels.newChannel(output));
+        } finally {
+            channel.close();
+        }
+        Assert.assertEquals(ccap.getSize().longValue(), output.size());
+        Assert.assertEquals(ccap.getDigest(), RepositoryContentHelper.getDigest(new ByteArrayInputStream(output.toByteArray())));
+
+        ByteBuffer buffer = content.mapContent();
+        Assert.assertEquals(ccap.getSize().longValue(), buffer.remaining());
+        Assert.assertEquals(output.toByteArray()[0], buffer.get(0));
+    }
+
     @Test
     public void testAddResourceFromOSGiMetadata() throws Exception {
 
@@ -183,6 +250,116 @@ public class FileBasedRepositoryStorageTestCase extends AbstractRepositoryTest {
         verifyProviders(storage);
     }
 
+    @Test
+    public void testConcurrentContentIngestion() throws Exception {
+
+        // Add resources with equal content from concurrent threads
+        final List<XResource> results = Collections.synchronizedList(new ArrayList<XResource>());
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i++) {
+            final XResource resource = createContentResource("bundle" + i, XContentCapability.DEFAULT_DIGEST, "file:./target/bundleA.jar");
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        results.add(storage.addResource(resource));
+                    } catch (Throwable th) {
+                        failures.add(th);
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(Collections.emptyList(), failures);
+        Assert.assertEquals(8, results.size());
+
+        // All resources share one stored copy
+        Set<String> contentURLs = new HashSet<String>();
+        for (XResource res : results) {
+            XContentCapability ccap = ((XCapability) res.getCapabilities(CONTENT_NAMESPACE).get(0)).adapt(XContentCapability.class);
+            contentURLs.add(ccap.getContentURL());
+        }
+        Assert.assertEquals(1, contentURLs.size());
+        File contentFile = URLResourceBuilderFactory.urlToFile(new URL(contentURLs.iterator().next()));
+        Assert.assertEquals(bundleAjar.length(), contentFile.length());
+
+        // No temporary content is left behind
+        for (String name : storageDir.list()) {
+            Assert.assertFalse("Temporary content: " + name, name.startsWith("temp-content"));
+        }
+    }
+
+    @Test
+    public void testTemporaryContentDeleted() throws Exception {
+
+        // The content of an ingestion that did not complete
+        storageDir.mkdirs();
+        File tempFile = File.createTempFile("temp-content", null, storageDir);
+        Assert.assertTrue(tempFile.exists());
+
+        new FileBasedRepositoryStorage(repository, storageDir, createConfiguration());
+        Assert.assertFalse("Temporary content deleted", tempFile.exists());
+    }
+
+    @Test
+    public void testContentReferences() throws Exception {
+
+        XResource resA = storage.addResource(createContentResource("bundle1", XContentCapability.DEFAULT_DIGEST, "file:./target/bundleA.jar"));
+        XContentCapability ccapA = ((XCapability) resA.getCapabilities(CONTENT_NAMESPACE).get(0)).adapt(XContentCapability.class);
+        File contentFile = URLResourceBuilderFactory.urlToFile(new URL(ccapA.getContentURL()));
+        Assert.assertTrue("File exists: " + contentFile, contentFile.exists());
+
+        // Equal content is shared, whatever digest is declared
+        XResource resB = storage.addResource(createContentResource("bundle2", XContentCapability.DEFAULT_DIGEST, "file:./target/bundleA.jar"));
+        XContentCapability ccapB = ((XCapability) resB.getCapabilities(CONTENT_NAMESPACE).get(0)).adapt(XContentCapability.class);
+        Assert.assertEquals(ccapA.getContentURL(), ccapB.getContentURL());
+        Assert.assertEquals(ccapA.getSize(), ccapB.getSize());
+
+        // A stale digest of stored content does not link other content to it
+        XResource resC = storage.addResource(createContentResource("bundle3", ccapA.getDigest(), "file:./target/bundleA.txt"));
+        XContentCapability ccapC = ((XCapability) resC.getCapabilities(CONTENT_NAMESPACE).get(0)).adapt(XContentCapability.class);
+        Assert.assertFalse(ccapA.getContentURL().equals(ccapC.getContentURL()));
+        Assert.assertFalse(ccapA.getDigest().equals(ccapC.getDigest()));
+        Assert.assertEquals(Long.valueOf(bundleAtxt.length()), ccapC.getSize());
+
+        // The content is deleted with the last reference
+        Assert.assertTrue(storage.removeResource(resA));
+        Assert.assertTrue("File exists: " + contentFile, contentFile.exists());
+        Assert.assertTrue(storage.removeResource(resB));
+        Assert.assertFalse("File deleted: " + contentFile, contentFile.exists());
+    }
+
+    @Test
+    public void testContentReferencesRestart() throws Exception {
+
+        XResource resA = storage.addResource(createContentResource("bundle1", XContentCapability.DEFAULT_DIGEST, "file:./target/bundleA.jar"));
+        storage.addResource(createContentResource("bundle2", XContentCapability.DEFAULT_DIGEST, "file:./target/bundleA.jar"));
+        XContentCapability ccapA = ((XCapability) resA.getCapabilities(CONTENT_NAMESPACE).get(0)).adapt(XContentCapability.class);
+        File contentFile = URLResourceBuilderFactory.urlToFile(new URL(ccapA.getContentURL()));
+
+        // The references are counted again when the storage is loaded
+        RepositoryStorage other = new FileBasedRepositoryStorage(repository, storageDir, Mockito.mock(ConfigurationPropertyProvider.class));
+        Assert.assertTrue(other.removeResource(other.getResource(resA.getIdentityCapability())));
+        Assert.assertTrue("File exists: " + contentFile, contentFile.exists());
+    }
+
+    private XResource createContentResource(String name, String digest, String contentURL) {
+        XResourceBuilder<XResource> builder = XResourceBuilderFactory.create();
+        builder.addIdentityCapability(name, Version.emptyVersion);
+        Map<String, Object> atts = new HashMap<String, Object>();
+        atts.put(CONTENT_NAMESPACE, digest);
+        atts.put(CAPABILITY_MIME_ATTRIBUTE, "application/vnd.osgi.bundle");
+        atts.put(CAPABILITY_URL_ATTRIBUTE, contentURL);
+        builder.addCapability(CONTENT_NAMESPACE, atts, null);
+        return builder.getResource();
+    }
+
     @Test
     public void testFileStorageRestart() throws Exception {
 
@@ -197,6 +374,160 @@ public class FileBasedRepositoryStorageTestCase extends AbstractRepositoryTest {
         verifyProviders(other);
     }
 
+    @Test
+    public void testJournalRestart() throws Exception {
+
+        ConfigurationPropertyProvider config = createConfiguration();
+        Mockito.when(config.getProperty(XRepository.PROPERTY_REPOSITORY_STORAGE_JOURNAL, null)).thenReturn("true");
+        storage = new FileBasedRepositoryStorage(repository, storageDir, config);
+
+        // Add a resource from XML
+        RepositoryReader reader = getRepositoryReader("xml/repository-testA.xml");
+        XResource resource = storage.addResource(reader.nextResource());
+        verifyResource(resource);
+
+        // The modification is only appended to the journal
+        File repoFile = new File(storageDir, FileBasedRepositoryStorage.REPOSITORY_XML_NAME);
+        File journalFile = new File(repoFile.getPath() + FileBasedRepositoryStorage.JOURNAL_SUFFIX);
+        Assert.assertFalse("Repository file not written", repoFile.exists());
+        Assert.assertTrue("Journal file exists", journalFile.exists());
+
+        RepositoryStorage other = new FileBasedRepositoryStorage(repository, storageDir, config);
+        verifyProviders(other);
+
+        Assert.assertTrue("Resource removed", other.removeResource(other.getResource(resource.getIdentityCapability())));
+        other = new FileBasedRepositoryStorage(repository, storageDir, config);
+        Assert.assertNull("Resource removed", other.getResource(resource.getIdentityCapability()));
+
+        // Without the journal, the journal is replayed once into the repository file
+        XResource added = other.addResource(getRepositoryReader("xml/repository-testA.xml").nextResource());
+        other = new FileBasedRepositoryStorage(repository, storageDir, createConfiguration());
+        Assert.assertNotNull(other.getResource(added.getIdentityCapability()));
+        Assert.assertTrue("Repository file written", repoFile.exists());
+        Assert.assertFalse("Journal file deleted", journalFile.exists());
+    }
+
+    @Test
+    public void testJournalCorruptTail() throws Exception {
+
+        ConfigurationPropertyProvider config = createConfiguration();
+        Mockito.when(config.getProperty(XRepository.PROPERTY_REPOSITORY_STORAGE_JOURNAL, null)).thenReturn("true");
+        FileBasedRepositoryStorage journalStorage = new FileBasedRepositoryStorage(repository, storageDir, config);
+        XResource resource = journalStorage.addResource(getRepositoryReader("xml/repository-testA.xml").nextResource());
+        journalStorage.close();
+
+        File journalFile = new File(storageDir, FileBasedRepositoryStorage.REPOSITORY_XML_NAME + FileBasedRepositoryStorage.JOURNAL_SUFFIX);
+        long validLength = journalFile.length();
+
+        // A zero filled tail, like the one that delayed allocation may leave after a power loss
+        appendBytes(journalFile, new byte[4096]);
+        journalStorage = new FileBasedRepositoryStorage(repository, storageDir, config);
+        Assert.assertNotNull(journalStorage.getResource(resource.getIdentityCapability()));
+        Assert.assertEquals(validLength, journalFile.length());
+        journalStorage.close();
+
+        // A garbage tail with an operation that parses and a huge length
+        byte[] garbage = new byte[1024];
+        Arrays.fill(garbage, (byte) 0x7F);
+        garbage[0] = 0;
+        appendBytes(journalFile, garbage);
+        journalStorage = new FileBasedRepositoryStorage(repository, storageDir, config);
+        Assert.assertNotNull(journalStorage.getResource(resource.getIdentityCapability()));
+        Assert.assertEquals(validLength, journalFile.length());
+
+        // Records that are appended after the truncated tail are replayed
+        Assert.assertTrue(journalStorage.removeResource(journalStorage.getResource(resource.getIdentityCapability())));
+        journalStorage.close();
+        journalStorage = new FileBasedRepositoryStorage(repository, storageDir, config);
+        Assert.assertNull(journalStorage.getResource(resource.getIdentityCapability()));
+        journalStorage.close();
+    }
+
+    @Test
+    public void testRemoveEqualCopy() throws Exception {
+
+        ConfigurationPropertyProvider config = createConfiguration();
+        Mockito.when(config.getProperty(XRepository.PROPERTY_REPOSITORY_STORAGE_JOURNAL, null)).thenReturn("true");
+        FileBasedRepositoryStorage journalStorage = new FileBasedRepositoryStorage(repository, storageDir, config);
+        XResource resource = journalStorage.addResource(getRepositoryReader("xml/repository-testA.xml").nextResource());
+        File journalFile = new File(storageDir, FileBasedRepositoryStorage.REPOSITORY_XML_NAME + FileBasedRepositoryStorage.JOURNAL_SUFFIX);
+        long journalLength = journalFile.length();
+
+        // Only the stored instance is removed, an equal copy is not, and nothing is journaled
+        XResource copy = getRepositoryReader("xml/repository-testA.xml").nextResource();
+        Assert.assertFalse(journalStorage.removeResource(copy));
+        Assert.assertSame(resource, journalStorage.getResource(resource.getIdentityCapability()));
+        Assert.assertEquals(journalLength, journalFile.length());
+
+        Assert.assertTrue(journalStorage.removeResource(resource));
+        Assert.assertTrue(journalFile.length() > journalLength);
+        journalStorage.close();
+    }
+
+    @Test
+    public void testBackgroundSnapshot() throws Exception {
+
+        ConfigurationPropertyProvider config = createConfiguration();
+        Mockito.when(config.getProperty(XRepository.PROPERTY_REPOSITORY_STORAGE_SNAPSHOT_INTERVAL, null)).thenReturn("60000");
+        FileBasedRepositoryStorage snapshotStorage = new FileBasedRepositoryStorage(repository, storageDir, config);
+        try {
+            // Add a resource from XML
+            RepositoryReader reader = getRepositoryReader("xml/repository-testA.xml");
+            XResource resource = snapshotStorage.addResource(reader.nextResource());
+            verifyResource(resource);
+
+            // The modification is not yet written
+            File repoFile = new File(storageDir, FileBasedRepositoryStorage.REPOSITORY_XML_NAME);
+            Assert.assertFalse("Repository file not written", repoFile.exists());
+            Assert.assertEquals(1, snapshotStorage.getSnapshotLag());
+
+            snapshotStorage.flush();
+            Assert.assertTrue("Repository file written", repoFile.exists());
+            Assert.assertEquals(0, snapshotStorage.getSnapshotLag());
+
+            RepositoryStorage other = new FileBasedRepositoryStorage(repository, storageDir, Mockito.mock(ConfigurationPropertyProvider.class));
+            verifyProviders(other);
+        } finally {
+            snapshotStorage.close();
+        }
+    }
+
+    @Test
+    public void testIndexRestart() throws Exception {
+
+        ConfigurationPropertyProvider config = createConfiguration();
+        Mockito.when(config.getProperty(XRepository.PROPERTY_REPOSITORY_STORAGE_INDEX, null)).thenReturn("true");
+        RepositoryStorage indexStorage = new FileBasedRepositoryStorage(repository, storageDir, config);
+
+        // Add a resource from XML
+        RepositoryReader reader = getRepositoryReader("xml/repository-testA.xml");
+        XResource resource = indexStorage.addResource(reader.nextResource());
+        verifyResource(resource);
+
+        File indexFile = new File(storageDir, FileBasedRepositoryStorage.REPOSITORY_XML_NAME + FileBasedRepositoryStorage.INDEX_SUFFIX);
+        Assert.assertTrue("Index file written", indexFile.exists());
+
+        // Load the resources from the index
+        RepositoryStorage other = new FileBasedRepositoryStorage(repository, storageDir, config);
+        verifyProviders(other);
+
+        // Load the resources from the repository file, if the index is corrupt
+        byte[] indexBytes = Files.readAllBytes(indexFile.toPath());
+        RandomAccessFile raf = new RandomAccessFile(indexFile, "rw");
+        raf.setLength(indexFile.length() / 2);
+        raf.close();
+        other = new FileBasedRepositoryStorage(repository, storageDir, config);
+        verifyProviders(other);
+
+        // Also if the data of the index is invalid, past its header
+        for (int i = indexBytes.length / 4; i < indexBytes.length; i++) {
+            indexBytes[i] = (byte) 0x41;
+        }
+        Files.write(indexFile.toPath(), indexBytes);
+        other = new FileBasedRepositoryStorage(repository, storageDir, config);
+        verifyProviders(other);
+    }
+
     @Test
     public void testBundleInfo() throws Exception {
 
@@ -272,6 +603,25 @@ public class FileBasedRepositoryStorageTestCase extends AbstractRepositoryTest {
         verifyResource(pcap.getResource());
     }
 
+    // The file name and other properties that are not stubbed have their default value
+    private static ConfigurationPropertyProvider createConfiguration() {
+        return Mockito.mock(ConfigurationPropertyProvider.class, new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) {
+                return invocation.getArguments()[1];
+            }
+        });
+    }
+
+    private static void appendBytes(File file, byte[] bytes) throws IOException {
+        FileOutputStream output = new FileOutputStream(file, true);
+        try {
+            output.write(bytes);
+        } finally {
+            output.close();
+        }
+    }
+
     private JavaArchive getBundleA() {
         final JavaArchive archive = ShrinkWrap.create(JavaArchive.class, "bundleA");
         archive.setManifest(new Asset() {
@@ -0,0 +1,153 @@
+package org.jboss.test.osgi.repository;
+/*
+ * #%L
+ * JBossOSGi Repository
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jboss.logging.Logger;
+import org.jboss.osgi.repository.RepositoryStorage;
+import org.jboss.osgi.repository.XRepository;
+import org.jboss.osgi.repository.spi.MemoryRepositoryStorage;
+import org.jboss.osgi.resolver.XRequirement;
+import org.jboss.osgi.resolver.XRequirementBuilder;
+import org.jboss.osgi.resolver.XResource;
+import org.jboss.osgi.resolver.XResourceBuilder;
+import org.jboss.osgi.resolver.XResourceBuilderFactory;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.osgi.framework.Version;
+import org.osgi.framework.namespace.PackageNamespace;
+
+/**
+ * Measure the {@link MemoryRepositoryStorage} findProviders throughput
+ * with concurrent readers while a writer is adding resources.
+ *
+ * The throughput is logged for 1, 4, 16 and 64 reader threads.
+ *
+ * Run with: mvn test -Pbenchmark
+ *
+ * @author agent@local
+ * @since 18-Oct-2026
+ */
+public class MemoryRepositoryStorageConcurrencyBenchmark extends AbstractRepositoryTest {
+
+    private static final Logger log = Logger.getLogger(MemoryRepositoryStorageConcurrencyBenchmark.class);
+
+    private static final int PACKAGE_COUNT = 2000;
+    private static final long DURATION_MILLIS = 250;
+
+    private RepositoryStorage storage;
+    private List<XRequirement> requirements;
+
+    @Before
+    public void setUp() throws Exception {
+        storage = new MemoryRepositoryStorage(Mockito.mock(XRepository.class));
+        requirements = new ArrayList<XRequirement>();
+        for (int i = 0; i < PACKAGE_COUNT; i++) {
+            storage.addResource(createResource("org.acme.bundle" + i, "org.acme.pkg" + i));
+            requirements.add(XRequirementBuilder.create(PackageNamespace.PACKAGE_NAMESPACE, "org.acme.pkg" + i).getRequirement());
+        }
+    }
+
+    @Test
+    public void testFindProvidersThroughput() throws Exception {
+        for (int threads : new int[] { 1, 4, 16, 64 }) {
+            long count = runReaders(threads);
+            log.infof("findProviders with %d reader threads: %d ops/sec", threads, count * 1000 / DURATION_MILLIS);
+        }
+    }
+
+    private long runReaders(final int threadCount) throws Exception {
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong operations = new AtomicLong();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch startLatch = new CountDownLatch(1);
+
+        List<Thread> threads = new ArrayList<Thread>();
+        threads.add(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    startLatch.await();
+                    int index = 0;
+                    while (running.get()) {
+                        String name = "org.acme.writer" + threadCount + "." + index++;
+                        storage.addResource(createResource(name, name));
+                    }
+                } catch (Throwable th) {
+                    failure.compareAndSet(null, th);
+                }
+            }
+        }));
+        for (int i = 0; i < threadCount; i++) {
+            final Random random = new Random(i);
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        startLatch.await();
+                        long count = 0;
+                        while (running.get()) {
+                            XRequirement req = requirements.get(random.nextInt(PACKAGE_COUNT));
+                            int size = storage.findProviders(req).size();
+                            if (size != 1)
+                                throw new IllegalStateException("Expected one provider for " + req + ", but was " + size);
+                            count++;
+                        }
+                        operations.addAndGet(count);
+                    } catch (Throwable th) {
+                        failure.compareAndSet(null, th);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        startLatch.countDown();
+        Thread.sleep(DURATION_MILLIS);
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertNull("No failure", failure.get());
+        return operations.get();
+    }
+
+    private XResource createResource(String name, String pkgname) {
+        XResourceBuilder<XResource> builder = XResourceBuilderFactory.create();
+        builder.addIdentityCapability(name, Version.parseVersion("1.0"));
+        Map<String, Object> atts = new HashMap<String, Object>();
+        atts.put(PackageNamespace.PACKAGE_NAMESPACE, pkgname);
+        atts.put(PackageNamespace.CAPABILITY_VERSION_ATTRIBUTE, Version.parseVersion("1.0"));
+        builder.addCapability(PackageNamespace.PACKAGE_NAMESPACE, atts, null);
+        return builder.getResource();
+    }
+}
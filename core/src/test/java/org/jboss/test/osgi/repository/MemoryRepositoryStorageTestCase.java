@@ -19,23 +19,40 @@ package org.jboss.test.osgi.repository;
  * #L%
  */
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.junit.Assert;
 
 import org.jboss.osgi.repository.RepositoryReader;
 import org.jboss.osgi.repository.RepositoryStorage;
 import org.jboss.osgi.repository.XRepository;
+import org.jboss.osgi.repository.internal.RequirementBuilderImpl;
+import org.jboss.osgi.repository.spi.AbstractRepositoryStorage;
 import org.jboss.osgi.repository.spi.MemoryRepositoryStorage;
 import org.jboss.osgi.resolver.XCapability;
+import org.jboss.osgi.resolver.XIdentityCapability;
+import org.jboss.osgi.resolver.XPackageCapability;
 import org.jboss.osgi.resolver.XRequirement;
 import org.jboss.osgi.resolver.XRequirementBuilder;
 import org.jboss.osgi.resolver.XResource;
+import org.jboss.osgi.resolver.XResourceBuilder;
+import org.jboss.osgi.resolver.XResourceBuilderFactory;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mockito;
+import org.osgi.framework.Version;
 import org.osgi.framework.namespace.BundleNamespace;
+import org.osgi.framework.namespace.PackageNamespace;
 import org.osgi.resource.Capability;
+import org.osgi.resource.Namespace;
+import org.osgi.resource.Requirement;
 
 /**
  * Test the {@link MemoryRepositoryStorage}
@@ -85,4 +102,348 @@ public class MemoryRepositoryStorageTestCase extends AbstractRepositoryTest {
         Assert.assertNotNull("Providers not null", providers);
         Assert.assertEquals("One provider", 1, providers.size());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testRequirePackageWithFilter() throws Exception {
+
+        Requirement req = new RequirementBuilderImpl(PackageNamespace.PACKAGE_NAMESPACE)
+            .addDirective(PackageNamespace.REQUIREMENT_FILTER_DIRECTIVE, "(&(osgi.wiring.package=org.acme.pool)(version>=1.1))").build();
+        Collection<Capability> providers = storage.findProviders(req);
+        Assert.assertEquals("One provider", 1, providers.size());
+
+        req = new RequirementBuilderImpl(PackageNamespace.PACKAGE_NAMESPACE)
+            .addDirective(PackageNamespace.REQUIREMENT_FILTER_DIRECTIVE, "(&(osgi.wiring.package=org.acme.pool)(version>=2.0))").build();
+        providers = storage.findProviders(req);
+        Assert.assertEquals("No provider", 0, providers.size());
+
+        req = new RequirementBuilderImpl(PackageNamespace.PACKAGE_NAMESPACE)
+            .addDirective(PackageNamespace.REQUIREMENT_FILTER_DIRECTIVE, "(osgi.wiring.package=org.acme.other)").build();
+        providers = storage.findProviders(req);
+        Assert.assertEquals("No provider", 0, providers.size());
+
+        req = new RequirementBuilderImpl(PackageNamespace.PACKAGE_NAMESPACE)
+            .addDirective(PackageNamespace.REQUIREMENT_FILTER_DIRECTIVE, "(osgi.wiring.package=org.acme.*)").build();
+        providers = storage.findProviders(req);
+        Assert.assertEquals("One provider", 1, providers.size());
+    }
+
+    @Test
+    public void testRequirePackageVersionRange() throws Exception {
+
+        for (String version : new String[] { "1.0", "2.0", "1.5", "2.5" }) {
+            addPackageResource("org.acme.versioned", version);
+        }
+
+        Requirement req = new RequirementBuilderImpl(PackageNamespace.PACKAGE_NAMESPACE)
+            .addDirective(PackageNamespace.REQUIREMENT_FILTER_DIRECTIVE, "(&(osgi.wiring.package=org.acme.versioned)(version>=1.2)(!(version>=2.0)))").build();
+        Collection<Capability> providers = storage.findProviders(req);
+        Assert.assertEquals("One provider", 1, providers.size());
+        XPackageCapability pcap = ((XCapability) providers.iterator().next()).adapt(XPackageCapability.class);
+        Assert.assertEquals(Version.parseVersion("1.5"), pcap.getVersion());
+
+        req = new RequirementBuilderImpl(PackageNamespace.PACKAGE_NAMESPACE)
+            .addDirective(PackageNamespace.REQUIREMENT_FILTER_DIRECTIVE, "(&(osgi.wiring.package=org.acme.versioned)(version>=1.5))").build();
+        providers = storage.findProviders(req);
+        Assert.assertEquals("Three providers", 3, providers.size());
+        List<Version> versions = new ArrayList<Version>();
+        for (Capability cap : providers) {
+            versions.add(((XCapability) cap).adapt(XPackageCapability.class).getVersion());
+        }
+        Assert.assertEquals("Highest version first", Arrays.asList(Version.parseVersion("2.5"), Version.parseVersion("2.0"), Version.parseVersion("1.5")), versions);
+
+        req = new RequirementBuilderImpl(PackageNamespace.PACKAGE_NAMESPACE)
+            .addDirective(PackageNamespace.REQUIREMENT_FILTER_DIRECTIVE, "(&(osgi.wiring.package=org.acme.versioned)(version>=3.0))").build();
+        providers = storage.findProviders(req);
+        Assert.assertEquals("No provider", 0, providers.size());
+
+        req = new RequirementBuilderImpl(PackageNamespace.PACKAGE_NAMESPACE)
+            .addDirective(PackageNamespace.REQUIREMENT_FILTER_DIRECTIVE, "(&(osgi.wiring.package=org.acme.versioned)(version>=2.0)(!(version>=1.5)))").build();
+        providers = storage.findProviders(req);
+        Assert.assertEquals("No provider in empty range", 0, providers.size());
+    }
+
+    @Test
+    public void testRepositoryReaderSnapshot() throws Exception {
+
+        RepositoryReader reader = storage.getRepositoryReader();
+        String increment = reader.getRepositoryAttributes().get("increment");
+
+        // Modify the storage while the reader is open
+        XResource other = addPackageResource("org.acme.other", "1.0");
+        XResource resource = storage.getRepositoryReader().nextResource();
+        Assert.assertTrue("Resource removed", storage.removeResource(resource));
+
+        Assert.assertSame(resource, reader.nextResource());
+        Assert.assertNull("One resource only", reader.nextResource());
+        Assert.assertEquals(increment, reader.getRepositoryAttributes().get("increment"));
+        reader.close();
+
+        reader = storage.getRepositoryReader();
+        Assert.assertSame(other, reader.nextResource());
+        Assert.assertNull("One resource only", reader.nextResource());
+        Assert.assertFalse(increment.equals(reader.getRepositoryAttributes().get("increment")));
+        reader.close();
+    }
+
+    @Test
+    public void testResourceIdentity() throws Exception {
+
+        XResource resource = addPackageResource("org.acme.identity", "1.0");
+        XIdentityCapability icap = createIdentityResource("org.acme.identity", "1.0").getIdentityCapability();
+        Assert.assertSame(resource, storage.getResource(icap));
+
+        icap = createIdentityResource("org.acme.identity", "2.0").getIdentityCapability();
+        Assert.assertNull("No resource", storage.getResource(icap));
+
+        try {
+            storage.addResource(createIdentityResource("org.acme.identity", "1.0"));
+            Assert.fail("IllegalStateException expected");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+
+        Assert.assertTrue("Resource removed", storage.removeResource(resource));
+        icap = resource.getIdentityCapability();
+        Assert.assertNull("No resource", storage.getResource(icap));
+        Assert.assertNotNull(storage.addResource(createIdentityResource("org.acme.identity", "1.0")));
+    }
+
+    @Test
+    public void testRemoveResource() throws Exception {
+
+        XResource resA = addPackageResource("org.acme.removed", "1.0");
+        XResource resB = addPackageResource("org.acme.removed", "2.0");
+
+        Requirement req = new RequirementBuilderImpl(PackageNamespace.PACKAGE_NAMESPACE)
+            .addDirective(PackageNamespace.REQUIREMENT_FILTER_DIRECTIVE, "(osgi.wiring.package=org.acme.removed)").build();
+        Assert.assertEquals("Two providers", 2, storage.findProviders(req).size());
+
+        Assert.assertTrue("Resource removed", storage.removeResource(resA));
+        Assert.assertFalse("Resource already removed", storage.removeResource(resA));
+        Collection<Capability> providers = storage.findProviders(req);
+        Assert.assertEquals("One provider", 1, providers.size());
+        Assert.assertSame(resB, providers.iterator().next().getResource());
+
+        Assert.assertTrue("Resource removed", storage.removeResource(resB));
+        Assert.assertEquals("No provider", 0, storage.findProviders(req).size());
+
+        // The pruned slot is recreated on demand
+        XResource resC = addPackageResource("org.acme.removed", "3.0");
+        providers = storage.findProviders(req);
+        Assert.assertEquals("One provider", 1, providers.size());
+        Assert.assertSame(resC, providers.iterator().next().getResource());
+    }
+
+    @Test
+    public void testRequireWithTypedFilter() throws Exception {
+
+        XResourceBuilder<XResource> builder = XResourceBuilderFactory.create();
+        builder.addIdentityCapability("org.acme.typed", Version.parseVersion("1.0"));
+        Map<String, Object> atts = new HashMap<String, Object>();
+        atts.put("org.acme.typed", "acme.typed");
+        atts.put("version", Version.parseVersion("1.2"));
+        atts.put("count", Long.valueOf(5));
+        atts.put("ratio", Double.valueOf(0.5));
+        atts.put("tags", Arrays.asList("red", "green"));
+        builder.addCapability("org.acme.typed", atts, null);
+        storage.addResource(builder.getResource());
+
+        assertProviders("(version>=1.1)", 1);
+        assertProviders("(version>=1.10)", 0);
+        assertProviders("(count>=3)", 1);
+        assertProviders("(count<=4)", 0);
+        assertProviders("(ratio=0.50)", 1);
+        assertProviders("(tags=green)", 1);
+        assertProviders("(tags=blue)", 0);
+        assertProviders("(Count=5)", 1);
+        assertProviders("(org.acme.typed=acme.t*d)", 1);
+        assertProviders("(&(org.acme.typed=acme.typed)(!(ratio>=0.25)))", 0);
+        assertProviders("(|(tags=blue)(count=5))", 1);
+    }
+
+    @Test
+    public void testProviderCache() throws Exception {
+
+        MemoryRepositoryStorage cachingStorage = new MemoryRepositoryStorage(Mockito.mock(XRepository.class), 16);
+        storage = cachingStorage;
+        addPackageResource("org.acme.cached", "1.0");
+
+        Requirement req = new RequirementBuilderImpl(PackageNamespace.PACKAGE_NAMESPACE)
+            .addDirective(PackageNamespace.REQUIREMENT_FILTER_DIRECTIVE, "(osgi.wiring.package=org.acme.cached)").build();
+        Assert.assertEquals("One provider", 1, storage.findProviders(req).size());
+        Assert.assertEquals("One provider", 1, storage.findProviders(req).size());
+        Assert.assertEquals(1, cachingStorage.getProviderCacheHitCount());
+        Assert.assertEquals(1, cachingStorage.getProviderCacheMissCount());
+
+        // A modification of another namespace does not invalidate the providers
+        storage.addResource(createIdentityResource("org.acme.unrelated", "1.0"));
+        Assert.assertEquals("One provider", 1, storage.findProviders(req).size());
+        Assert.assertEquals(2, cachingStorage.getProviderCacheHitCount());
+
+        XResource resource = addPackageResource("org.acme.cached", "2.0");
+        Assert.assertEquals("Two providers", 2, storage.findProviders(req).size());
+        Assert.assertEquals(2, cachingStorage.getProviderCacheMissCount());
+
+        storage.removeResource(resource);
+        Assert.assertEquals("One provider", 1, storage.findProviders(req).size());
+        Assert.assertEquals(3, cachingStorage.getProviderCacheMissCount());
+    }
+
+    @Test
+    public void testProviderCacheConcurrentBatches() throws Exception {
+
+        MemoryRepositoryStorage cachingStorage = new MemoryRepositoryStorage(Mockito.mock(XRepository.class), 16);
+        storage = cachingStorage;
+        final Requirement req = new RequirementBuilderImpl(PackageNamespace.PACKAGE_NAMESPACE)
+            .addDirective(PackageNamespace.REQUIREMENT_FILTER_DIRECTIVE, "(osgi.wiring.package=org.acme.batch)").build();
+
+        // Fill the cache while the batches are added
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                while (!done.get()) {
+                    storage.findProviders(req);
+                }
+            }
+        };
+        reader.start();
+        try {
+            int count = 0;
+            for (int batch = 0; batch < 200; batch++) {
+                List<XResource> resources = new ArrayList<XResource>();
+                for (int i = 0; i < 10; i++) {
+                    resources.add(createPackageResource("org.acme.batch", "1.0." + count++));
+                }
+                storage.addResources(resources);
+                Assert.assertEquals("Complete batch cached", count, storage.findProviders(req).size());
+            }
+            for (int batch = 0; batch < 200; batch++) {
+                List<XResource> resources = new ArrayList<XResource>();
+                for (int i = 0; i < 10; i++) {
+                    resources.add(storage.getResource(createPackageResource("org.acme.batch", "1.0." + --count).getIdentityCapability()));
+                }
+                storage.removeResources(resources);
+                Assert.assertEquals("Complete batch cached", count, storage.findProviders(req).size());
+            }
+        } finally {
+            done.set(true);
+            reader.join();
+        }
+    }
+
+    @Test
+    public void testAddRemoveResources() throws Exception {
+
+        long increment = getIncrement();
+        List<XResource> resources = new ArrayList<XResource>();
+        resources.add(createIdentityResource("org.acme.batchA", "1.0"));
+        resources.add(createIdentityResource("org.acme.batchB", "1.0"));
+        List<XResource> added = storage.addResources(resources);
+        Assert.assertEquals(resources, added);
+        Assert.assertEquals("One increment per batch", increment + 1, getIncrement());
+
+        // A batch is rejected as a whole
+        List<XResource> invalid = new ArrayList<XResource>();
+        invalid.add(createIdentityResource("org.acme.batchC", "1.0"));
+        invalid.add(createIdentityResource("org.acme.batchA", "1.0"));
+        try {
+            storage.addResources(invalid);
+            Assert.fail("IllegalStateException expected");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+        Assert.assertNull(storage.getResource(invalid.get(0).getIdentityCapability()));
+        Assert.assertEquals(increment + 1, getIncrement());
+
+        Assert.assertTrue("Resources removed", storage.removeResources(added));
+        Assert.assertEquals("One increment per batch", increment + 2, getIncrement());
+        Assert.assertNull(storage.getResource(added.get(0).getIdentityCapability()));
+        Assert.assertFalse("Resources already removed", storage.removeResources(added));
+    }
+
+    @Test
+    public void testDefaultBatchMethods() throws Exception {
+
+        // A storage that only implements the single resource methods
+        final RepositoryStorage delegate = new MemoryRepositoryStorage(Mockito.mock(XRepository.class));
+        RepositoryStorage simple = new AbstractRepositoryStorage() {
+            @Override
+            public XRepository getRepository() {
+                return delegate.getRepository();
+            }
+            @Override
+            public Collection<Capability> findProviders(Requirement requirement) {
+                return delegate.findProviders(requirement);
+            }
+            @Override
+            public RepositoryReader getRepositoryReader() {
+                return delegate.getRepositoryReader();
+            }
+            @Override
+            public XResource getResource(XIdentityCapability icap) {
+                return delegate.getResource(icap);
+            }
+            @Override
+            public XResource addResource(XResource resource) {
+                return delegate.addResource(resource);
+            }
+            @Override
+            public boolean removeResource(XResource resource) {
+                return delegate.removeResource(resource);
+            }
+        };
+        Assert.assertTrue("Ready", simple.isReady());
+        Assert.assertNull("Changes not known", simple.getRepositoryDeltaReader(0));
+
+        List<XResource> resources = new ArrayList<XResource>();
+        resources.add(createIdentityResource("org.acme.batchA", "1.0"));
+        resources.add(createIdentityResource("org.acme.batchB", "1.0"));
+        List<XResource> added = simple.addResources(resources);
+        Assert.assertEquals(resources, added);
+        Assert.assertSame(added.get(1), simple.getResource(resources.get(1).getIdentityCapability()));
+
+        Assert.assertTrue("Resources removed", simple.removeResources(added));
+        Assert.assertNull(simple.getResource(added.get(0).getIdentityCapability()));
+        Assert.assertFalse("Resources already removed", simple.removeResources(added));
+    }
+
+    private long getIncrement() {
+        RepositoryReader reader = storage.getRepositoryReader();
+        try {
+            return Long.parseLong(reader.getRepositoryAttributes().get("increment"));
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void assertProviders(String filter, int expected) {
+        Map<String, String> dirs = new HashMap<String, String>();
+        dirs.put(Namespace.REQUIREMENT_FILTER_DIRECTIVE, filter);
+        Requirement req = Mockito.mock(Requirement.class);
+        Mockito.when(req.getNamespace()).thenReturn("org.acme.typed");
+        Mockito.when(req.getDirectives()).thenReturn(dirs);
+        Mockito.when(req.getAttributes()).thenReturn(Collections.<String, Object> emptyMap());
+        Assert.assertEquals(filter, expected, storage.findProviders(req).size());
+    }
+
+    private XResource createIdentityResource(String name, String version) {
+        XResourceBuilder<XResource> builder = XResourceBuilderFactory.create();
+        builder.addIdentityCapability(name, Version.parseVersion(version));
+        return builder.getResource();
+    }
+
+    private XResource addPackageResource(String pkgname, String version) {
+        return storage.addResource(createPackageResource(pkgname, version));
+    }
+
+    private XResource createPackageResource(String pkgname, String version) {
+        XResourceBuilder<XResource> builder = XResourceBuilderFactory.create();
+        builder.addIdentityCapability(pkgname, Version.parseVersion(version));
+        Map<String, Object> atts = new HashMap<String, Object>();
+        atts.put(PackageNamespace.PACKAGE_NAMESPACE, pkgname);
+        atts.put(PackageNamespace.CAPABILITY_VERSION_ATTRIBUTE, Version.parseVersion(version));
+        builder.addCapability(PackageNamespace.PACKAGE_NAMESPACE, atts, null);
+        return builder.getResource();
+    }
+}
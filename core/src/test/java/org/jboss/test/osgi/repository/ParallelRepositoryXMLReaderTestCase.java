@@ -0,0 +1,115 @@
+package org.jboss.test.osgi.repository;
+/*
+ * #%L
+ * JBossOSGi Repository
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.jboss.osgi.repository.Namespace100;
+import org.jboss.osgi.repository.ParallelRepositoryXMLReader;
+import org.jboss.osgi.repository.RepositoryReader;
+import org.jboss.osgi.repository.RepositoryXMLReader;
+import org.jboss.osgi.resolver.XResource;
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.Version;
+
+/**
+ * Test the {@link ParallelRepositoryXMLReader}.
+ *
+ * @author agent@local
+ * @since 18-Oct-2026
+ */
+public class ParallelRepositoryXMLReaderTestCase extends AbstractRepositoryTest {
+
+    @Test
+    public void testSampleRepositoryXML() throws Exception {
+        InputStream input = getClass().getClassLoader().getResourceAsStream("xml/sample-repository.xml");
+        RepositoryReader reader = ParallelRepositoryXMLReader.create(input);
+        SampleRepositoryReaderTestCase.verifyContent(reader.getRepositoryAttributes(), getResources(reader));
+    }
+
+    @Test
+    public void testEmptyRepository() throws Exception {
+        String xml = "<?xml version='1.0'?><repository xmlns='" + Namespace100.REPOSITORY_NAMESPACE + "' name='Empty' increment='3'/>";
+        RepositoryReader reader = ParallelRepositoryXMLReader.create(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+        Assert.assertEquals("3", reader.getRepositoryAttributes().get("increment"));
+        Assert.assertNull(reader.nextResource());
+    }
+
+    @Test
+    public void testDocumentOrder() throws Exception {
+        int count = 20000;
+        byte[] xml = createRepositoryXML(count);
+
+        long start = System.currentTimeMillis();
+        List<XResource> expected = getResources(RepositoryXMLReader.create(new ByteArrayInputStream(xml)));
+        long sequential = System.currentTimeMillis() - start;
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            start = System.currentTimeMillis();
+            RepositoryReader reader = ParallelRepositoryXMLReader.create(new ByteArrayInputStream(xml), null, pool, true);
+            List<XResource> resources = getResources(reader);
+            long parallel = System.currentTimeMillis() - start;
+            System.out.println("Read " + count + " resources (" + xml.length / 1024 + " KB) sequential: " + sequential + "ms, parallel: " + parallel + "ms");
+
+            Assert.assertEquals("2", reader.getRepositoryAttributes().get("increment"));
+            Assert.assertEquals(count, resources.size());
+            for (int i = 0; i < count; i++) {
+                XResource res = resources.get(i);
+                Assert.assertEquals(expected.get(i).getIdentityCapability().getName(), res.getIdentityCapability().getName());
+                Assert.assertEquals(Version.parseVersion("1." + i), res.getIdentityCapability().getVersion());
+            }
+
+            // Unordered reading returns every resource once
+            reader = ParallelRepositoryXMLReader.create(new ByteArrayInputStream(xml), null, pool, false);
+            Assert.assertEquals(count, getResources(reader).size());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    static byte[] createRepositoryXML(int count) throws Exception {
+        StringBuilder builder = new StringBuilder("<?xml version='1.0' encoding='UTF-8'?>\n");
+        builder.append("<repository xmlns='" + Namespace100.REPOSITORY_NAMESPACE + "' name='Large' increment='2'>\n");
+        for (int i = 0; i < count; i++) {
+            builder.append("<resource>");
+            builder.append("<capability namespace='osgi.identity'>");
+            builder.append("<attribute name='osgi.identity' value='org.acme.bundle" + i + "'/>");
+            builder.append("<attribute name='type' value='osgi.bundle'/>");
+            builder.append("<attribute name='version' value='1." + i + "' type='Version'/>");
+            builder.append("</capability>");
+            builder.append("<capability namespace='osgi.wiring.package'>");
+            builder.append("<attribute name='osgi.wiring.package' value='org.acme.pkg" + i + "'/>");
+            builder.append("<attribute name='version' value='1." + i + "' type='Version'/>");
+            builder.append("</capability>");
+            builder.append("<requirement namespace='osgi.wiring.package'>");
+            builder.append("<directive name='filter' value='(&amp;(osgi.wiring.package=org.acme.api)(version&gt;=1.0))'/>");
+            builder.append("</requirement>");
+            builder.append("</resource>\n");
+        }
+        builder.append("</repository>\n");
+        return builder.toString().getBytes("UTF-8");
+    }
+}
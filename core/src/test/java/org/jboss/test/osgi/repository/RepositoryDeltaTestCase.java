@@ -0,0 +1,302 @@
+package org.jboss.test.osgi.repository;
+/*
+ * #%L
+ * JBossOSGi Repository
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+package org.jboss.test.osgi.repository;
+
+import static org.osgi.service.repository.ContentNamespace.CAPABILITY_MIME_ATTRIBUTE;
+import static org.osgi.service.repository.ContentNamespace.CAPABILITY_URL_ATTRIBUTE;
+import static org.osgi.service.repository.ContentNamespace.CONTENT_NAMESPACE;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.jboss.osgi.repository.RepositoryContentHelper;
+import org.jboss.osgi.repository.RepositoryDeltaReader;
+import org.jboss.osgi.repository.RepositoryDeltaWriter;
+import org.jboss.osgi.repository.RepositoryReader;
+import org.jboss.osgi.repository.RepositoryStorage;
+import org.jboss.osgi.repository.RepositoryXMLReader;
+import org.jboss.osgi.repository.RepositoryXMLWriter;
+import org.jboss.osgi.repository.XRepository;
+import org.jboss.osgi.repository.spi.DiskRepositoryStorage;
+import org.jboss.osgi.repository.spi.FileBasedRepositoryStorage;
+import org.jboss.osgi.repository.spi.MavenIdentityRepository.ConfigurationPropertyProvider;
+import org.jboss.osgi.repository.spi.MemoryRepositoryStorage;
+import org.jboss.osgi.resolver.XResource;
+import org.jboss.osgi.resolver.XResourceBuilder;
+import org.jboss.osgi.resolver.XResourceBuilderFactory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.osgi.framework.Version;
+
+/**
+ * Test the {@link RepositoryDeltaReader} of the storages and the delta form of the XML reader and writer.
+ *
+ * @author agent@local
+ * @since 18-Oct-2026
+ */
+public class RepositoryDeltaTestCase extends AbstractRepositoryTest {
+
+    private XRepository repository;
+    private File baseDir;
+
+    @Before
+    public void setUp() throws Exception {
+        repository = Mockito.mock(XRepository.class);
+        Mockito.when(repository.getName()).thenReturn("MockedRepo");
+        baseDir = new File("./target/delta/" + System.currentTimeMillis()).getCanonicalFile();
+        baseDir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        deleteRecursive(baseDir);
+    }
+
+    @Test
+    public void testMemoryDelta() throws Exception {
+        verifyDelta(new MemoryRepositoryStorage(repository));
+    }
+
+    @Test
+    public void testDiskDelta() throws Exception {
+        File storageDir = new File(baseDir, "disk");
+        ConfigurationPropertyProvider config = Mockito.mock(ConfigurationPropertyProvider.class);
+        DiskRepositoryStorage storage = new DiskRepositoryStorage(repository, storageDir, config);
+        try {
+            verifyDelta(storage);
+        } finally {
+            storage.close();
+        }
+
+        // The changes are still known when the storage is opened again
+        storage = new DiskRepositoryStorage(repository, storageDir, config);
+        try {
+            RepositoryDeltaReader reader = storage.getRepositoryDeltaReader(2);
+            Assert.assertEquals(Arrays.asList("B"), getRemovedNames(reader));
+            Assert.assertEquals(Collections.emptyList(), getNames(reader));
+        } finally {
+            storage.close();
+        }
+    }
+
+    @Test
+    public void testMemoryTombstoneRetention() throws Exception {
+        verifyTombstoneRetention(new MemoryRepositoryStorage(repository, 0, 1));
+    }
+
+    @Test
+    public void testDiskTombstoneRetention() throws Exception {
+        ConfigurationPropertyProvider config = Mockito.mock(ConfigurationPropertyProvider.class);
+        Mockito.when(config.getProperty(XRepository.PROPERTY_REPOSITORY_STORAGE_TOMBSTONES, null)).thenReturn("1");
+        DiskRepositoryStorage storage = new DiskRepositoryStorage(repository, new File(baseDir, "disk"), config);
+        try {
+            verifyTombstoneRetention(storage);
+        } finally {
+            storage.close();
+        }
+    }
+
+    @Test
+    public void testFileBasedRestart() throws Exception {
+        File contentFile = new File(baseDir, "content.txt");
+        FileWriter writer = new FileWriter(contentFile);
+        writer.write("delta");
+        writer.close();
+        String digest = RepositoryContentHelper.getDigest(new FileInputStream(contentFile));
+
+        File storageDir = new File(baseDir, "storage");
+        ConfigurationPropertyProvider config = Mockito.mock(ConfigurationPropertyProvider.class);
+        RepositoryStorage storage = new FileBasedRepositoryStorage(repository, storageDir, config);
+        storage.addResource(createContentResource("A", digest, contentFile));
+        XResource resB = storage.addResource(createContentResource("B", digest, contentFile));
+        storage.removeResource(resB);
+        RepositoryDeltaReader reader = storage.getRepositoryDeltaReader(0);
+        Assert.assertEquals(Collections.emptyList(), getRemovedNames(reader));
+        Assert.assertEquals(Arrays.asList("A"), getNames(reader));
+
+        // The changes that led to the loaded resources are not known
+        RepositoryStorage other = new FileBasedRepositoryStorage(repository, storageDir, config);
+        Assert.assertNull(other.getRepositoryDeltaReader(0));
+        reader = other.getRepositoryDeltaReader(3);
+        Assert.assertNotNull(reader);
+        Assert.assertEquals("3", reader.getRepositoryAttributes().get("increment"));
+        Assert.assertEquals(Collections.emptyList(), getRemovedNames(reader));
+        Assert.assertEquals(Collections.emptyList(), getNames(reader));
+    }
+
+    @Test
+    public void testFollowerSync() throws Exception {
+        RepositoryStorage leader = new MemoryRepositoryStorage(repository);
+        RepositoryStorage follower = new MemoryRepositoryStorage(repository);
+        leader.addResources(Arrays.asList(createResource("A"), createResource("B")));
+
+        // The follower starts from the full repository
+        RepositoryReader fullReader = leader.getRepositoryReader();
+        long increment = Long.parseLong(fullReader.getRepositoryAttributes().get("increment"));
+        follower.addResources(getResources(fullReader));
+
+        leader.removeResource(leader.getResource(createResource("A").getIdentityCapability()));
+        leader.addResource(createResource("C"));
+        leader.removeResource(leader.getResource(createResource("C").getIdentityCapability()));
+        leader.addResource(createResource("D"));
+
+        // The changes are exported as XML
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        RepositoryDeltaReader reader = leader.getRepositoryDeltaReader(increment);
+        RepositoryDeltaWriter writer = RepositoryXMLWriter.createDeltaWriter(output);
+        writer.writeRepositoryElement(reader.getRepositoryAttributes());
+        XResource res = reader.nextRemovedResource();
+        while (res != null) {
+            writer.writeRemovedResource(res);
+            res = reader.nextRemovedResource();
+        }
+        res = reader.nextResource();
+        while (res != null) {
+            writer.writeResource(res);
+            res = reader.nextResource();
+        }
+        writer.close();
+
+        // The follower applies the changes
+        RepositoryDeltaReader xmlReader = RepositoryXMLReader.createDeltaReader(new ByteArrayInputStream(output.toByteArray()));
+        Assert.assertEquals("5", xmlReader.getRepositoryAttributes().get("increment"));
+        Assert.assertEquals(Long.toString(increment), xmlReader.getRepositoryAttributes().get("since"));
+        res = xmlReader.nextRemovedResource();
+        while (res != null) {
+            Assert.assertTrue(follower.removeResource(follower.getResource(res.getIdentityCapability())));
+            res = xmlReader.nextRemovedResource();
+        }
+        follower.addResources(getResources(xmlReader));
+
+        Assert.assertEquals(getIdentities(leader), getIdentities(follower));
+        Assert.assertEquals(new TreeSet<String>(Arrays.asList("B", "D")), getIdentities(follower));
+    }
+
+    @Test
+    public void testXMLReaderSkipsTombstones() throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        RepositoryDeltaWriter writer = RepositoryXMLWriter.createDeltaWriter(output);
+        writer.writeRepositoryElement(Collections.singletonMap("name", "delta"));
+        writer.writeRemovedResource(createResource("A"));
+        writer.writeResource(createResource("B"));
+        writer.close();
+
+        RepositoryReader reader = RepositoryXMLReader.create(new ByteArrayInputStream(output.toByteArray()));
+        Assert.assertEquals(Arrays.asList("B"), getNames(reader));
+    }
+
+    // inc1: add A, B - inc2: add C - inc3: remove B - inc4: add D - inc5: remove D
+    private void verifyDelta(RepositoryStorage storage) {
+        storage.addResources(Arrays.asList(createResource("A"), createResource("B")));
+        storage.addResource(createResource("C"));
+        storage.removeResource(storage.getResource(createResource("B").getIdentityCapability()));
+        storage.addResource(createResource("D"));
+        storage.removeResource(storage.getResource(createResource("D").getIdentityCapability()));
+
+        RepositoryDeltaReader reader = storage.getRepositoryDeltaReader(0);
+        Assert.assertEquals("5", reader.getRepositoryAttributes().get("increment"));
+        Assert.assertEquals("0", reader.getRepositoryAttributes().get("since"));
+        Assert.assertEquals(Collections.emptyList(), getRemovedNames(reader));
+        Assert.assertEquals(Arrays.asList("A", "C"), getNames(reader));
+
+        // Resource D was added and removed after the increment
+        reader = storage.getRepositoryDeltaReader(2);
+        Assert.assertEquals(Arrays.asList("B"), getRemovedNames(reader));
+        Assert.assertEquals(Collections.emptyList(), getNames(reader));
+
+        reader = storage.getRepositoryDeltaReader(3);
+        Assert.assertEquals(Collections.emptyList(), getRemovedNames(reader));
+        Assert.assertEquals(Collections.emptyList(), getNames(reader));
+
+        reader = storage.getRepositoryDeltaReader(5);
+        Assert.assertEquals(Collections.emptyList(), getRemovedNames(reader));
+        Assert.assertEquals(Collections.emptyList(), getNames(reader));
+
+        // The increment is ahead of the storage
+        Assert.assertNull(storage.getRepositoryDeltaReader(6));
+    }
+
+    // inc1: add A, B - inc2: remove A - inc3: remove B
+    private void verifyTombstoneRetention(RepositoryStorage storage) {
+        storage.addResources(Arrays.asList(createResource("A"), createResource("B")));
+        storage.removeResource(storage.getResource(createResource("A").getIdentityCapability()));
+        storage.removeResource(storage.getResource(createResource("B").getIdentityCapability()));
+
+        // Only the removal of B is remembered
+        Assert.assertNull(storage.getRepositoryDeltaReader(0));
+        Assert.assertNull(storage.getRepositoryDeltaReader(1));
+        RepositoryDeltaReader reader = storage.getRepositoryDeltaReader(2);
+        Assert.assertEquals(Arrays.asList("B"), getRemovedNames(reader));
+        Assert.assertEquals(Collections.emptyList(), getNames(reader));
+    }
+
+    private List<String> getRemovedNames(RepositoryDeltaReader reader) {
+        List<String> result = new ArrayList<String>();
+        XResource res = reader.nextRemovedResource();
+        while (res != null) {
+            result.add(res.getIdentityCapability().getSymbolicName());
+            res = reader.nextRemovedResource();
+        }
+        return result;
+    }
+
+    private List<String> getNames(RepositoryReader reader) {
+        List<String> result = new ArrayList<String>();
+        for (XResource res : getResources(reader)) {
+            result.add(res.getIdentityCapability().getSymbolicName());
+        }
+        return result;
+    }
+
+    private Set<String> getIdentities(RepositoryStorage storage) {
+        return new TreeSet<String>(getNames(storage.getRepositoryReader()));
+    }
+
+    private XResource createResource(String name) {
+        XResourceBuilder<XResource> builder = XResourceBuilderFactory.create();
+        builder.addIdentityCapability(name, Version.emptyVersion);
+        return builder.getResource();
+    }
+
+    private XResource createContentResource(String name, String digest, File contentFile) {
+        XResourceBuilder<XResource> builder = XResourceBuilderFactory.create();
+        builder.addIdentityCapability(name, Version.emptyVersion);
+        Map<String, Object> atts = new HashMap<String, Object>();
+        atts.put(CONTENT_NAMESPACE, digest);
+        atts.put(CAPABILITY_MIME_ATTRIBUTE, "text/plain");
+        atts.put(CAPABILITY_URL_ATTRIBUTE, contentFile.toURI().toString());
+        builder.addCapability(CONTENT_NAMESPACE, atts, null);
+        return builder.getResource();
+    }
+}
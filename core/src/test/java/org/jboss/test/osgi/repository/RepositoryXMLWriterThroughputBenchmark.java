@@ -0,0 +1,138 @@
+package org.jboss.test.osgi.repository;
+/*
+ * #%L
+ * JBossOSGi Repository
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+package org.jboss.test.osgi.repository;
+
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.jboss.logging.Logger;
+import org.jboss.osgi.repository.RepositoryWriter;
+import org.jboss.osgi.repository.RepositoryXMLWriter;
+import org.jboss.osgi.resolver.XResource;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Measure the throughput of the {@link RepositoryXMLWriter}.
+ *
+ * Writes 100k resources and logs the MB/s and the bytes allocated per resource.
+ * The allocation is the growth of the used heap, over the intervals in which no
+ * garbage was collected.
+ *
+ * Run with: mvn test -Pbenchmark
+ *
+ * @author agent@local
+ * @since 18-Oct-2026
+ */
+public class RepositoryXMLWriterThroughputBenchmark extends AbstractRepositoryTest {
+
+    private static final Logger log = Logger.getLogger(RepositoryXMLWriterThroughputBenchmark.class);
+
+    private static final int RESOURCE_COUNT = 100000;
+    private static final int SAMPLE_INTERVAL = 1000;
+
+    @Test
+    public void testWriteThroughput() throws Exception {
+        List<XResource> resources = new ArrayList<XResource>(RESOURCE_COUNT);
+        for (int i = 0; i < RESOURCE_COUNT; i++) {
+            resources.add(SampleRepositoryWriterTestCase.createTypedResource(i));
+        }
+
+        // Warm up the writer before it is measured
+        writeResources(resources.subList(0, RESOURCE_COUNT / 10), new CountingOutputStream(), null);
+
+        CountingOutputStream output = new CountingOutputStream();
+        AllocationSampler sampler = new AllocationSampler();
+        long start = System.nanoTime();
+        writeResources(resources, output, sampler);
+        long time = Math.max(1, System.nanoTime() - start);
+
+        Assert.assertTrue("Output written", output.count > 0);
+        double megaBytesPerSecond = (output.count / (1024.0 * 1024.0)) / (time / 1000000000.0);
+        log.infof("Wrote %d resources, %d bytes in %d ms: %.1f MB/s", RESOURCE_COUNT, output.count, time / 1000000, megaBytesPerSecond);
+        if (sampler.resources > 0) {
+            log.infof("Allocated %d bytes per resource, sampled over %d resources", sampler.allocated / sampler.resources, sampler.resources);
+        } else {
+            log.infof("Allocation not measured, garbage was collected in every interval");
+        }
+    }
+
+    private void writeResources(List<XResource> resources, OutputStream output, AllocationSampler sampler) {
+        RepositoryWriter writer = RepositoryXMLWriter.create(output);
+        writer.writeRepositoryElement(Collections.singletonMap("name", "throughput"));
+        int count = 0;
+        for (XResource res : resources) {
+            writer.writeResource(res);
+            if (sampler != null && ++count % SAMPLE_INTERVAL == 0) {
+                sampler.sample(SAMPLE_INTERVAL);
+            }
+        }
+        writer.close();
+    }
+
+    // Adds up the growth of the used heap over the intervals without a garbage collection
+    private static class AllocationSampler {
+
+        private final MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+        private long lastUsed = memoryBean.getHeapMemoryUsage().getUsed();
+        private long lastCollections = getCollectionCount();
+        private long allocated;
+        private long resources;
+
+        void sample(int count) {
+            long used = memoryBean.getHeapMemoryUsage().getUsed();
+            long collections = getCollectionCount();
+            if (collections == lastCollections && used >= lastUsed) {
+                allocated += used - lastUsed;
+                resources += count;
+            }
+            lastUsed = used;
+            lastCollections = collections;
+        }
+
+        private static long getCollectionCount() {
+            long result = 0;
+            for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+                result += Math.max(0, bean.getCollectionCount());
+            }
+            return result;
+        }
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package org.jboss.test.osgi.repository;
+/*
+ * #%L
+ * JBossOSGi Repository
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinPool.ForkJoinWorkerThreadFactory;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.osgi.repository.ParallelRepositoryXMLReader;
+import org.jboss.osgi.repository.RepositoryReader;
+import org.jboss.osgi.repository.ResourceSpliterator;
+import org.jboss.osgi.repository.ResourceSpliterator.ResourceFunction;
+import org.jboss.osgi.resolver.XResource;
+import org.jboss.osgi.resolver.XResourceBuilder;
+import org.jboss.osgi.resolver.XResourceBuilderFactory;
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.Version;
+
+/**
+ * Test the {@link ResourceSpliterator}.
+ *
+ * @author agent@local
+ * @since 18-Oct-2026
+ */
+public class ResourceSpliteratorTestCase extends AbstractRepositoryTest {
+
+    @Test
+    public void testListSplit() throws Exception {
+        List<XResource> resources = new ArrayList<XResource>();
+        for (int i = 0; i < 10; i++) {
+            resources.add(createResource("org.acme.bundle" + i, "1." + i));
+        }
+        ResourceSpliterator spliterator = ResourceSpliterator.create(resources);
+        Assert.assertTrue(spliterator.hasCharacteristics(ResourceSpliterator.SIZED | ResourceSpliterator.ORDERED));
+        Assert.assertEquals(10, spliterator.getExactSizeIfKnown());
+
+        ResourceSpliterator prefix = spliterator.trySplit();
+        Assert.assertEquals(5, prefix.estimateSize());
+        Assert.assertEquals(5, spliterator.estimateSize());
+        Assert.assertSame(resources.get(0), prefix.next());
+        Assert.assertSame(resources.get(5), spliterator.next());
+    }
+
+    @Test
+    public void testReaderIterable() throws Exception {
+        RepositoryReader reader = getRepositoryReader("xml/sample-repository.xml");
+        ResourceSpliterator spliterator = ResourceSpliterator.create(reader);
+        Assert.assertEquals(-1, spliterator.getExactSizeIfKnown());
+        int count = 0;
+        for (XResource res : ResourceSpliterator.iterable(getRepositoryReader("xml/sample-repository.xml"))) {
+            Assert.assertEquals("org.acme.pool", res.getIdentityCapability().getName());
+            count++;
+        }
+        Assert.assertEquals(1, count);
+    }
+
+    @Test
+    public void testChunkSplits() throws Exception {
+        int count = 10000;
+        byte[] xml = ParallelRepositoryXMLReaderTestCase.createRepositoryXML(count);
+        ParallelRepositoryXMLReader reader = (ParallelRepositoryXMLReader) ParallelRepositoryXMLReader.create(new ByteArrayInputStream(xml));
+        ResourceSpliterator spliterator = reader.spliterator();
+        Assert.assertFalse(spliterator.hasCharacteristics(ResourceSpliterator.SIZED));
+
+        // The splits are chunks of known size, that add up to all resources
+        long total = 0;
+        ResourceSpliterator split = spliterator.trySplit();
+        while (split != null) {
+            Assert.assertTrue(split.hasCharacteristics(ResourceSpliterator.SIZED));
+            long size = split.estimateSize();
+            while (split.hasNext()) {
+                split.next();
+                total++;
+            }
+            Assert.assertTrue(size > 0);
+            split = spliterator.trySplit();
+        }
+        Assert.assertFalse(spliterator.hasNext());
+        Assert.assertEquals(count, total);
+    }
+
+    @Test
+    public void testIterableParsesOnPool() throws Exception {
+        int count = 10000;
+        byte[] xml = ParallelRepositoryXMLReaderTestCase.createRepositoryXML(count);
+        final AtomicInteger workers = new AtomicInteger();
+        ForkJoinPool pool = new ForkJoinPool(2, new ForkJoinWorkerThreadFactory() {
+            @Override
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                workers.incrementAndGet();
+                return ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            }
+        }, null, false);
+        try {
+            // A loop over a parallel reader parses the chunks on the pool of the reader
+            final AtomicBoolean closed = new AtomicBoolean();
+            InputStream input = new ByteArrayInputStream(xml) {
+                @Override
+                public void close() throws IOException {
+                    closed.set(true);
+                }
+            };
+            RepositoryReader reader = ParallelRepositoryXMLReader.create(input, null, pool, true);
+            int index = 0;
+            for (XResource res : ResourceSpliterator.iterable(reader)) {
+                Assert.assertEquals("org.acme.bundle" + index++, res.getIdentityCapability().getName());
+            }
+            Assert.assertEquals(count, index);
+            Assert.assertTrue("Parsed on the pool", workers.get() > 0);
+            Assert.assertTrue("Reader closed", closed.get());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testChunkSpliteratorClosesReader() throws Exception {
+        byte[] xml = ParallelRepositoryXMLReaderTestCase.createRepositoryXML(1000);
+        final AtomicBoolean closed = new AtomicBoolean();
+        InputStream input = new ByteArrayInputStream(xml) {
+            @Override
+            public void close() throws IOException {
+                closed.set(true);
+            }
+        };
+        ParallelRepositoryXMLReader reader = (ParallelRepositoryXMLReader) ParallelRepositoryXMLReader.create(input);
+        ResourceSpliterator spliterator = reader.spliterator();
+        int count = 0;
+        while (spliterator.hasNext()) {
+            spliterator.next();
+            count++;
+        }
+        Assert.assertEquals(1000, count);
+        Assert.assertTrue("Reader closed", closed.get());
+    }
+
+    @Test
+    public void testParallelTransform() throws Exception {
+        int count = 10000;
+        byte[] xml = ParallelRepositoryXMLReaderTestCase.createRepositoryXML(count);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            ResourceFunction<String> function = new ResourceFunction<String>() {
+                @Override
+                public String apply(XResource resource) {
+                    // Keep the resources with an even minor version
+                    Version version = resource.getIdentityCapability().getVersion();
+                    return version.getMinor() % 2 == 0 ? resource.getIdentityCapability().getName() : null;
+                }
+            };
+            RepositoryReader reader = ParallelRepositoryXMLReader.create(new ByteArrayInputStream(xml));
+            List<String> names = ResourceSpliterator.create(reader).transform(pool, function);
+            Assert.assertEquals(count / 2, names.size());
+            for (int i = 0; i < names.size(); i++) {
+                Assert.assertEquals("org.acme.bundle" + 2 * i, names.get(i));
+            }
+
+            // A sequential reader is split into batches
+            names = ResourceSpliterator.create(getRepositoryReader("xml/sample-repository.xml")).transform(pool, function);
+            Assert.assertEquals(0, names.size());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private XResource createResource(String name, String version) {
+        XResourceBuilder<XResource> builder = XResourceBuilderFactory.create();
+        builder.addIdentityCapability(name, Version.parseVersion(version));
+        return builder.getResource();
+    }
+}
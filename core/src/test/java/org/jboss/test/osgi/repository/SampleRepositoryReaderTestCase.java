@@ -19,6 +19,7 @@ package org.jboss.test.osgi.repository;
  * #L%
  */
 
+import java.io.ByteArrayInputStream;
 import java.util.List;
 import java.util.Map;
 
@@ -54,6 +55,30 @@ public class SampleRepositoryReaderTestCase extends AbstractRepositoryTest {
         List<XResource> resources = getResources(reader);
         verifyContent(attributes, resources);
     }
+
+    @Test
+    public void testContentCapabilityAfterIdentity() throws Exception {
+        String xml = "<repository xmlns='" + Namespace100.REPOSITORY_NAMESPACE + "' name='Test' increment='1'>"
+                + "<resource custom='value'>"
+                + "<capability namespace='osgi.identity'><attribute name='osgi.identity' value='bundleA'/>"
+                + "<attribute name='type' value='osgi.bundle'/><attribute name='version' value='1.0.0' type='Version'/></capability>"
+                + "<capability namespace='osgi.content'><attribute name='osgi.content' value='digest'/>"
+                + "<attribute name='url' value='http://www.acme.com/bundleA.jar'/></capability>"
+                + "<requirement namespace='osgi.wiring.package'><directive name='filter' value='(osgi.wiring.package=org.acme)'/></requirement>"
+                + "</resource></repository>";
+        RepositoryReader reader = RepositoryXMLReader.create(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+        XResource resource = reader.nextResource();
+        Assert.assertNull(reader.nextResource());
+        reader.close();
+
+        // The resource is an URLResource that keeps its attributes
+        Assert.assertTrue("RepositoryContent", resource instanceof RepositoryContent);
+        Assert.assertEquals("value", resource.getAttributes().get("custom"));
+        Assert.assertEquals("bundleA", resource.getIdentityCapability().getName());
+        Assert.assertEquals(2, resource.getCapabilities(null).size());
+        Assert.assertEquals(1, resource.getCapabilities(ContentNamespace.CONTENT_NAMESPACE).size());
+        Assert.assertEquals(1, resource.getRequirements(PackageNamespace.PACKAGE_NAMESPACE).size());
+    }
     
     static void verifyContent(Map<String, String> attributes, List<XResource> resources) {
         Assert.assertEquals("Two attributes", 2, attributes.size());
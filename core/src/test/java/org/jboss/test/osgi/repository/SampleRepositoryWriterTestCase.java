@@ -19,9 +19,14 @@ package org.jboss.test.osgi.repository;
  * #L%
  */
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -29,8 +34,14 @@ import org.jboss.osgi.repository.RepositoryReader;
 import org.jboss.osgi.repository.RepositoryWriter;
 import org.jboss.osgi.repository.RepositoryXMLReader;
 import org.jboss.osgi.repository.RepositoryXMLWriter;
+import org.jboss.osgi.resolver.XCapability;
 import org.jboss.osgi.resolver.XResource;
+import org.jboss.osgi.resolver.XResourceBuilder;
+import org.jboss.osgi.resolver.XResourceBuilderFactory;
+import org.junit.Assert;
 import org.junit.Test;
+import org.osgi.framework.Version;
+import org.osgi.framework.namespace.PackageNamespace;
 
 /**
  * Test the repository reader/writer
@@ -58,4 +69,44 @@ public class SampleRepositoryWriterTestCase extends AbstractRepositoryTest {
         reader = RepositoryXMLReader.create(new FileInputStream(file));
         SampleRepositoryReaderTestCase.verifyContent(reader.getRepositoryAttributes(), getResources(reader));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testAttributeTypesRoundTrip() throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        RepositoryWriter writer = RepositoryXMLWriter.create(output);
+        writer.writeRepositoryElement(Collections.singletonMap("name", "types"));
+        for (int i = 0; i < 10; i++) {
+            writer.writeResource(createTypedResource(i));
+        }
+        writer.close();
+
+        RepositoryReader reader = RepositoryXMLReader.create(new ByteArrayInputStream(output.toByteArray()));
+        Assert.assertEquals("types", reader.getRepositoryAttributes().get("name"));
+        List<XResource> result = getResources(reader);
+        Assert.assertEquals(10, result.size());
+        for (int i = 0; i < result.size(); i++) {
+            XResource res = result.get(i);
+            Assert.assertEquals("org.acme.bundle" + i, res.getIdentityCapability().getSymbolicName());
+            XCapability cap = (XCapability) res.getCapabilities(PackageNamespace.PACKAGE_NAMESPACE).get(0);
+            Assert.assertEquals(Version.parseVersion("1.2." + i), cap.getAttribute(PackageNamespace.CAPABILITY_VERSION_ATTRIBUTE));
+            Assert.assertEquals(Arrays.asList("a,b", "c<d>", "e&f"), cap.getAttribute("tags"));
+            Assert.assertEquals("x<y \"z\"", cap.getAttribute("description"));
+            Assert.assertEquals(Long.valueOf(i), cap.getAttribute("size"));
+        }
+    }
+
+    static XResource createTypedResource(int index) {
+        XResourceBuilder<XResource> builder = XResourceBuilderFactory.create();
+        builder.addIdentityCapability("org.acme.bundle" + index, Version.parseVersion("1.0." + index));
+        Map<String, Object> atts = new HashMap<String, Object>();
+        atts.put(PackageNamespace.PACKAGE_NAMESPACE, "org.acme.package" + index);
+        atts.put(PackageNamespace.CAPABILITY_VERSION_ATTRIBUTE, Version.parseVersion("1.2." + index));
+        atts.put("tags", Arrays.asList("a,b", "c<d>", "e&f"));
+        atts.put("description", "x<y \"z\"");
+        atts.put("size", Long.valueOf(index));
+        Map<String, String> dirs = new HashMap<String, String>();
+        dirs.put(PackageNamespace.CAPABILITY_USES_DIRECTIVE, "org.acme.api");
+        builder.addCapability(PackageNamespace.PACKAGE_NAMESPACE, atts, dirs);
+        return builder.getResource();
+    }
+}
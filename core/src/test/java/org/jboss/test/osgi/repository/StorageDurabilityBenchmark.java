@@ -0,0 +1,163 @@
+package org.jboss.test.osgi.repository;
+/*
+ * #%L
+ * JBossOSGi Repository
+ * %%
+ * Copyright (C) 2010 - 2012 JBoss by Red Hat
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+
+import static org.osgi.service.repository.ContentNamespace.CAPABILITY_MIME_ATTRIBUTE;
+import static org.osgi.service.repository.ContentNamespace.CAPABILITY_URL_ATTRIBUTE;
+import static org.osgi.service.repository.ContentNamespace.CONTENT_NAMESPACE;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.logging.Logger;
+import org.jboss.osgi.repository.RepositoryContentHelper;
+import org.jboss.osgi.repository.RepositoryStorage;
+import org.jboss.osgi.repository.XRepository;
+import org.jboss.osgi.repository.spi.FileBasedRepositoryStorage;
+import org.jboss.osgi.repository.spi.FileBasedRepositoryStorage.Durability;
+import org.jboss.osgi.repository.spi.MavenIdentityRepository.ConfigurationPropertyProvider;
+import org.jboss.osgi.resolver.XResource;
+import org.jboss.osgi.resolver.XResourceBuilder;
+import org.jboss.osgi.resolver.XResourceBuilderFactory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.osgi.framework.Version;
+
+/**
+ * Measure the latency of concurrent modifications of a {@link FileBasedRepositoryStorage}
+ * for every {@link Durability}, with and without the journal.
+ *
+ * The mean latency per modification is logged for every combination.
+ *
+ * Run with: mvn test -Pbenchmark
+ *
+ * @author agent@local
+ * @since 18-Oct-2026
+ */
+public class StorageDurabilityBenchmark extends AbstractRepositoryTest {
+
+    private static final Logger log = Logger.getLogger(StorageDurabilityBenchmark.class);
+
+    private static final int THREAD_COUNT = 4;
+    private static final int OPERATION_COUNT = 25;
+
+    private XRepository repository;
+    private File baseDir;
+    private File contentFile;
+    private String digest;
+
+    @Before
+    public void setUp() throws Exception {
+        repository = Mockito.mock(XRepository.class);
+        Mockito.when(repository.getName()).thenReturn("MockedRepo");
+        baseDir = new File("./target/durability/" + System.currentTimeMillis()).getCanonicalFile();
+        contentFile = new File(baseDir, "content.txt");
+        baseDir.mkdirs();
+        FileWriter writer = new FileWriter(contentFile);
+        writer.write("durability");
+        writer.close();
+        digest = RepositoryContentHelper.getDigest(new FileInputStream(contentFile));
+    }
+
+    @After
+    public void tearDown() {
+        deleteRecursive(baseDir);
+    }
+
+    @Test
+    public void testModificationLatency() throws Exception {
+        for (boolean journal : new boolean[] { false, true }) {
+            for (Durability durability : Durability.values()) {
+                File storageDir = new File(baseDir, "storage-" + journal + "-" + durability);
+                long latency = measureLatency(storageDir, journal, durability);
+                log.infof("journal=%s, durability=%s: %d us per modification", journal, durability, latency / 1000);
+
+                // Every modification survives a restart
+                RepositoryStorage other = new FileBasedRepositoryStorage(repository, storageDir, getConfiguration(journal, durability));
+                for (int i = 0; i < THREAD_COUNT * OPERATION_COUNT; i++) {
+                    XResource res = createResource(i);
+                    Assert.assertNotNull("Resource restored: " + i, other.getResource(res.getIdentityCapability()));
+                }
+            }
+        }
+    }
+
+    // Returns the mean latency in nanoseconds
+    private long measureLatency(File storageDir, boolean journal, Durability durability) throws Exception {
+        final RepositoryStorage storage = new FileBasedRepositoryStorage(repository, storageDir, getConfiguration(journal, durability));
+        final AtomicLong totalTime = new AtomicLong();
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < THREAD_COUNT; t++) {
+            final int offset = t * OPERATION_COUNT;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < OPERATION_COUNT; i++) {
+                            XResource res = createResource(offset + i);
+                            long start = System.nanoTime();
+                            storage.addResource(res);
+                            totalTime.addAndGet(System.nanoTime() - start);
+                        }
+                    } catch (Throwable th) {
+                        failures.add(th);
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(Collections.emptyList(), failures);
+        return totalTime.get() / (THREAD_COUNT * OPERATION_COUNT);
+    }
+
+    private ConfigurationPropertyProvider getConfiguration(boolean journal, Durability durability) {
+        ConfigurationPropertyProvider config = Mockito.mock(ConfigurationPropertyProvider.class);
+        Mockito.when(config.getProperty(XRepository.PROPERTY_REPOSITORY_STORAGE_JOURNAL, null)).thenReturn(Boolean.toString(journal));
+        Mockito.when(config.getProperty(XRepository.PROPERTY_REPOSITORY_STORAGE_DURABILITY, null)).thenReturn(durability.name().toLowerCase());
+        return config;
+    }
+
+    // All resources share the content, it is only ingested once
+    private XResource createResource(int index) {
+        XResourceBuilder<XResource> builder = XResourceBuilderFactory.create();
+        builder.addIdentityCapability("org.acme.bundle" + index, Version.emptyVersion);
+        Map<String, Object> atts = new HashMap<String, Object>();
+        atts.put(CONTENT_NAMESPACE, digest);
+        atts.put(CAPABILITY_MIME_ATTRIBUTE, "text/plain");
+        atts.put(CAPABILITY_URL_ATTRIBUTE, contentFile.toURI().toString());
+        builder.addCapability(CONTENT_NAMESPACE, atts, null);
+        return builder.getResource();
+    }
+}
@@ -20,11 +20,14 @@
 package org.jboss.test.osgi.repository.tck;
 
 import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
 import java.util.Hashtable;
+import java.util.List;
 
 import org.jboss.osgi.repository.RepositoryReader;
 import org.jboss.osgi.repository.RepositoryStorage;
 import org.jboss.osgi.repository.RepositoryXMLReader;
+import org.jboss.osgi.repository.ResourceSpliterator;
 import org.jboss.osgi.repository.XRepository;
 import org.jboss.osgi.resolver.XResource;
 import org.osgi.framework.BundleActivator;
@@ -95,11 +98,11 @@ public class Activator implements BundleActivator {
             RepositoryStorage rs = repository.adapt(RepositoryStorage.class);
 
             RepositoryReader reader = RepositoryXMLReader.create(new ByteArrayInputStream(xml.getBytes()));
-            XResource resource = reader.nextResource();
-            while (resource != null) {
-                rs.addResource(resource);
-                resource = reader.nextResource();
+            List<XResource> resources = new ArrayList<XResource>();
+            for (XResource resource : ResourceSpliterator.iterable(reader)) {
+                resources.add(resource);
             }
+            rs.addResources(resources);
 
             Hashtable<String, Object> props = new Hashtable<String, Object>();
             props.put(REPOSITORY_POPULATED_KEY, TEST_CLASS_NAME);